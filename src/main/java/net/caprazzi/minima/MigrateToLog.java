@@ -0,0 +1,41 @@
+package net.caprazzi.minima;
+
+import java.io.File;
+
+import net.caprazzi.keez.onfile.KeezOnFile;
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.MasterRecord;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsOnLog;
+
+/**
+ * Copies a Keez database directory to the log backend, so that minima
+ * can be started again with -Dminima.db.backend=log.
+ *
+ * Takes the same minima.db.dir and minima.db.prefix properties as MiniMain.
+ * The Keez files are only read; documents already in the log at the same or
+ * a later revision are left alone, so the copy can be run again.
+ */
+public class MigrateToLog {
+
+	public static void main(String[] args) throws Exception {
+		String dbDir = System.getProperty("minima.db.dir", "./minima-db");
+		String dbPrefix = System.getProperty("minima.db.prefix", "minimav0");
+
+		KeezOnFile keez = new KeezOnFile(dbDir, dbPrefix, true);
+		KeezOnFile archiveKeez = new KeezOnFile(dbDir, "archive-" + dbPrefix, true);
+
+		@SuppressWarnings("unchecked")
+		Class<? extends SlabsDoc>[] types = new Class[] { List.class, Note.class, MasterRecord.class };
+		SlabsOnLog log = new SlabsOnLog(new File(dbDir, "log"), dbPrefix, types);
+		try {
+			int copied = log.importFrom(keez, archiveKeez);
+			System.out.println("Copied " + copied + " documents from " + dbDir + " to " + new File(dbDir, "log"));
+		}
+		finally {
+			log.close();
+		}
+	}
+
+}
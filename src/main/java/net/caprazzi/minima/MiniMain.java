@@ -1,11 +1,17 @@
 package net.caprazzi.minima;
 
+import java.io.File;
+import java.util.concurrent.ScheduledExecutorService;
+
 import net.caprazzi.keez.onfile.KeezOnFile;
 import net.caprazzi.minima.framework.BuildDescriptor;
 import net.caprazzi.minima.framework.BuildServices;
 import net.caprazzi.minima.model.List;
 import net.caprazzi.minima.model.MasterRecord;
 import net.caprazzi.minima.model.Note;
+import net.caprazzi.minima.service.ArchivePolicy;
+import net.caprazzi.minima.service.Board;
+import net.caprazzi.minima.service.BoardRegistry;
 import net.caprazzi.minima.service.PushService;
 import net.caprazzi.minima.servlet.AppServlet;
 import net.caprazzi.minima.servlet.CometServlet;
@@ -13,8 +19,17 @@ import net.caprazzi.minima.servlet.IndexServlet;
 import net.caprazzi.minima.servlet.LoginServlet;
 import net.caprazzi.minima.servlet.PrivacyFilter;
 import net.caprazzi.minima.servlet.WebsocketServlet;
+import net.caprazzi.slabs.GroupCommitSlabs;
+import net.caprazzi.slabs.GroupCommitSlabs.Durability;
 import net.caprazzi.slabs.Slabs;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsCompactable;
+import net.caprazzi.slabs.SlabsCompactor;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsFileSync;
 import net.caprazzi.slabs.SlabsOnKeez;
+import net.caprazzi.slabs.SlabsOnLog;
+import net.caprazzi.slabs.SlabsSync;
 
 public class MiniMain {
 
@@ -28,22 +43,32 @@ public class MiniMain {
 		String publicView = System.getProperty("minima.readonly", "false");
 		String websocketLocation = System.getProperty("minima.websocket.location", "auto");
 		String webroot = System.getProperty("minima.webroot", "");
+		long compactMinutes = Long.parseLong(System.getProperty("minima.db.compact.minutes", "60"));
+		String doneList = System.getProperty("minima.archive.list", "done");
+		long archiveDays = Long.parseLong(System.getProperty("minima.archive.days", "0"));
+		String durability = System.getProperty("minima.db.durability", "group");
+		long syncMillis = Long.parseLong(System.getProperty("minima.db.sync.millis", "1000"));
+		String backend = System.getProperty("minima.db.backend", "keez");
+		int boardsMaxOpen = Integer.parseInt(System.getProperty("minima.boards.max.open", "100"));
+		long boardsMaxMb = Long.parseLong(System.getProperty("minima.boards.max.mb", "256"));
+		long pushWindowMillis = Long.parseLong(System.getProperty("minima.push.window.millis", "0"));
+		boolean inlineBoard = Boolean.parseBoolean(System.getProperty("minima.index.inline.board", "false"));
+		int websocketSenders = Integer.parseInt(System.getProperty("minima.websocket.senders", "16"));
 		
 		boolean requireSessionToEdit = (password != null && password.length() > 0);
 		boolean requireSessionToView = requireSessionToEdit && !publicView.equalsIgnoreCase("true");
 		
-		KeezOnFile keez = new KeezOnFile(dbDir, dbPrefix, true);
-		keez.setAutoPurge(true);
-		
 		BuildDescriptor descriptor = BuildDescriptor.fromFile("build.js");		
 		BuildServices appService = new BuildServices(descriptor);
 		
 		IndexServlet indexServlet = new IndexServlet(websocketLocation, appService);
 		indexServlet.setTitle(boardTitle);
+		indexServlet.setInlineBoard(inlineBoard);
 		
-		WebsocketServlet websocketServlet = new WebsocketServlet();
+		WebsocketServlet websocketServlet = new WebsocketServlet(websocketSenders);
 		CometServlet cometServlet = new CometServlet();		
-		PushService pushService = new PushService(websocketServlet, cometServlet);		
+		final ScheduledExecutorService fanout = PushService.createFanoutExecutor();
+		PushService pushService = new PushService(websocketServlet, cometServlet, fanout, pushWindowMillis);		
 		PrivacyFilter privacyFilter = new PrivacyFilter(requireSessionToView, requireSessionToEdit);
 		
 		LoginServlet loginServlet = (requireSessionToEdit)
@@ -56,10 +81,55 @@ public class MiniMain {
 		//minimaDbHelper.init();
 		
 		@SuppressWarnings("unchecked")
-		Slabs db = new SlabsOnKeez(keez, new Class[] { List.class, Note.class, MasterRecord.class } );
+		Class<? extends SlabsDoc>[] types = new Class[] { List.class, Note.class, MasterRecord.class };
+		
+		Slabs store;
+		SlabsSync sync;
+		SlabsCompactable compactable;
+		if (backend.equalsIgnoreCase("log")) {
+			SlabsOnLog log = new SlabsOnLog(new File(dbDir, "log"), dbPrefix, types);
+			store = log;
+			sync = log;
+			compactable = log;
+		}
+		else {
+			KeezOnFile keez = new KeezOnFile(dbDir, dbPrefix, true);
+			keez.setAutoPurge(true);
+			
+			KeezOnFile archiveKeez = new KeezOnFile(dbDir, "archive-" + dbPrefix, true);
+			archiveKeez.setAutoPurge(true);
+			
+			SlabsOnKeez keezStore = new SlabsOnKeez(keez, archiveKeez, types);
+			store = keezStore;
+			sync = new SlabsFileSync(new File(dbDir));
+			compactable = keezStore;
+		}
+		
+		Durability durabilityLevel = Durability.valueOf(durability.toUpperCase());
+		GroupCommitSlabs writer = new GroupCommitSlabs(store, sync, durabilityLevel, syncMillis);
+		writer.start();
+		
+		SlabsChanges changes = new SlabsChanges(new File(new File(dbDir, "changes"), dbPrefix + ".changes"));
+		final Board board = new Board("", store, writer, changes, pushService);
+		indexServlet.setDefaultBoard(board);
+		
+		// hosted boards always use the log backend
+		final BoardRegistry boardRegistry = new BoardRegistry(new File(dbDir, "boards"), dbPrefix,
+				durabilityLevel, syncMillis, websocketServlet, cometServlet, fanout, pushWindowMillis, types,
+				boardsMaxOpen, boardsMaxMb * 1024 * 1024);
+		
+		final SlabsCompactor compactor = new SlabsCompactor(compactable, compactMinutes * 60 * 1000);
+		compactor.start();
+		
+		final SlabsCompactor boardsCompactor = new SlabsCompactor(boardRegistry, compactMinutes * 60 * 1000);
+		boardsCompactor.start();
+		
+		final ArchivePolicy archivePolicy = new ArchivePolicy(board.getDb(), pushService, doneList, archiveDays * 24 * 60 * 60 * 1000);
+		archivePolicy.start(60 * 60 * 1000);
+		
 		final MinimaServer minimaServer = new MinimaServer(
-				db,
-				pushService,
+				board,
+				boardRegistry,
 				websocketServlet, 
 				cometServlet, 
 				indexServlet,
@@ -72,7 +142,13 @@ public class MiniMain {
 			public void run() {
 				System.out.println("Shutdown hook");
 				try {
+					compactor.stop();
+					boardsCompactor.stop();
+					archivePolicy.stop();
 					minimaServer.shutdown();
+					fanout.shutdown();
+					boardRegistry.close();
+					board.close();
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
@@ -5,16 +5,18 @@ import java.util.EnumSet;
 
 import javax.servlet.DispatcherType;
 
-import net.caprazzi.minima.service.PushService;
+import net.caprazzi.minima.service.Board;
+import net.caprazzi.minima.service.BoardRegistry;
 import net.caprazzi.minima.servlet.AppServlet;
+import net.caprazzi.minima.servlet.BoardServlet;
 import net.caprazzi.minima.servlet.ClasspathFilesServlet;
 import net.caprazzi.minima.servlet.CometServlet;
 import net.caprazzi.minima.servlet.DataServlet;
+import net.caprazzi.minima.servlet.EventsServlet;
 import net.caprazzi.minima.servlet.IndexServlet;
 import net.caprazzi.minima.servlet.LoginServlet;
 import net.caprazzi.minima.servlet.PrivacyFilter;
 import net.caprazzi.minima.servlet.WebsocketServlet;
-import net.caprazzi.slabs.Slabs;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.session.HashSessionManager;
@@ -32,12 +34,12 @@ public class MinimaServer {
 	private final PrivacyFilter privacyFilter;
 	private Server server;
 	private final AppServlet appServlet;
-	private final Slabs db;
-	private final PushService pushService;
+	private final Board board;
+	private final BoardRegistry boardRegistry;
 
-	public MinimaServer(Slabs db, PushService pushService, WebsocketServlet websocketServlet, CometServlet cometServlet, IndexServlet indexServlet, LoginServlet loginServlet, PrivacyFilter privacyFilter, AppServlet appServlet) {
-		this.db = db;
-		this.pushService = pushService;
+	public MinimaServer(Board board, BoardRegistry boardRegistry, WebsocketServlet websocketServlet, CometServlet cometServlet, IndexServlet indexServlet, LoginServlet loginServlet, PrivacyFilter privacyFilter, AppServlet appServlet) {
+		this.board = board;
+		this.boardRegistry = boardRegistry;
 		this.websocketServlet = websocketServlet;
 		this.cometServlet = cometServlet;
 		this.indexServlet = indexServlet;
@@ -69,12 +71,17 @@ public class MinimaServer {
         	context.addServlet(new ServletHolder(loginServlet), "/logout");
         }                
         
-        DataServlet minimaServlet = new DataServlet(webroot, db, pushService);
+        DataServlet minimaServlet = new DataServlet(webroot, board);
         context.addServlet(new ServletHolder(minimaServlet), "/data/*");
         ServletHolder websocketholder = new ServletHolder(websocketServlet);
         context.addServlet(websocketholder, "/websocket");
         
         context.addServlet(new ServletHolder(cometServlet), "/comet");
+        
+        EventsServlet eventsServlet = new EventsServlet(cometServlet);
+        ServletHolder eventsHolder = new ServletHolder(eventsServlet);
+        eventsHolder.setAsyncSupported(true);
+        context.addServlet(eventsHolder, "/events");
 		
         context.addServlet(new ServletHolder(new ClasspathFilesServlet("/htdocs")), "/css/*");
         context.addServlet(new ServletHolder(new ClasspathFilesServlet("/htdocs")), "/test.html");
@@ -86,6 +93,11 @@ public class MinimaServer {
         
         context.addServlet(new ServletHolder(appServlet), "/app/*");
         
+        // hosted boards, served by the same servlets
+        ServletHolder boardHolder = new ServletHolder(new BoardServlet(boardRegistry, indexServlet, minimaServlet, websocketServlet, cometServlet, eventsServlet));
+        boardHolder.setAsyncSupported(true);
+        context.addServlet(boardHolder, "/b/*");
+        
         server.start();
         System.out.println("Minima ready at http://localhost:" + port + webroot + "/index");
         server.join();
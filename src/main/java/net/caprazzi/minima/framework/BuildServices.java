@@ -2,15 +2,29 @@ package net.caprazzi.minima.framework;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BuildService provides access to client resources (js, css and templates) in plain
  * or compiled form. This is used at runtime and, at the moment, there is no caching
+ * except for the pages, parsed on first use, and the rolled-up files, which are
+ * made at build time (see Bundles).
+ * 
+ * The rolled-up files are linked as app/css/{hash}, app/libs/{hash} and app/main/{hash}:
+ * the url changes with the content, so browsers can cache them forever.
  */
 public class BuildServices {
 
 	private final BuildDescriptor descriptor;
+	
+	// guarded by this
+	private Bundles bundles;
+	
+	private final ConcurrentHashMap<String, SkimpyTemplate> pages = new ConcurrentHashMap<String, SkimpyTemplate>();
 
 	/**
 	 * Construct a new AppService using the given descriptor
@@ -52,8 +66,8 @@ public class BuildServices {
 	 * @param basepath
 	 * @return
 	 */
-	public String getProductionCssTag(String basepath) {
-		return  String.format(CSS_FMT, fixPath(basepath), "app/css");
+	public String getProductionCssTag(String basepath) throws IOException {
+		return  String.format(CSS_FMT, fixPath(basepath), "app/css/" + getProductionCssHash());
 	}
 	
 	/**
@@ -61,8 +75,8 @@ public class BuildServices {
 	 * @param basepath
 	 * @return
 	 */
-	public String getProductionLibsTag(String basepath) {
-		return  String.format(SCRIPT_FMT, fixPath(basepath), "app/libs");
+	public String getProductionLibsTag(String basepath) throws IOException {
+		return  String.format(SCRIPT_FMT, fixPath(basepath), "app/libs/" + getProductionLibsHash());
 	}
 	
 	/**
@@ -70,8 +84,55 @@ public class BuildServices {
 	 * @param basepath
 	 * @return
 	 */
-	public String getProductionMainTag(String basepath) {
-		return  String.format(SCRIPT_FMT, fixPath(basepath), "app/main");
+	public String getProductionMainTag(String basepath) throws IOException {
+		return  String.format(SCRIPT_FMT, fixPath(basepath), "app/main/" + getProductionMainHash());
+	}
+	
+	/**
+	 * @return content hash of the rolled-up css files
+	 */
+	public String getProductionCssHash() throws IOException {
+		return getBundle("css").getHash();
+	}
+	
+	/**
+	 * @return content hash of the rolled-up library files
+	 */
+	public String getProductionLibsHash() throws IOException {
+		return getBundle("libs").getHash();
+	}
+	
+	/**
+	 * @return content hash of the rolled-up application files
+	 */
+	public String getProductionMainHash() throws IOException {
+		return getBundle("main").getHash();
+	}
+	
+	/**
+	 * @param name css, libs or main
+	 * @return the rolled-up files, read on first use
+	 */
+	public synchronized Bundle getBundle(String name) throws IOException {
+		if (bundles == null)
+			bundles = Bundles.load(descriptor);
+		return bundles.get(name);
+	}
+	
+	/**
+	 * @return the first 16 hex digits of the md5 of the data
+	 */
+	public static String contentHash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 8; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
 	}
 	
 	private String fixPath(String basepath) {
@@ -164,8 +225,22 @@ public class BuildServices {
 	private static final String CSS_FMT 
 		= "<link href=\"%s%s\" rel=\"stylesheet\" type=\"text/css\"/>";
 	
+	/**
+	 * @return the page, parsed on first use
+	 */
 	public SkimpyTemplate getPage(String name) throws IOException {
-		return new SkimpyTemplate(descriptor.getPage(name));
+		SkimpyTemplate page = pages.get(name);
+		if (page == null) {
+			InputStream in = descriptor.getPage(name);
+			try {
+				page = new SkimpyTemplate(in);
+			}
+			finally {
+				in.close();
+			}
+			pages.put(name, page);
+		}
+		return page;
 	}
 
 	public void writeFile(String requestURI, OutputStream out) throws IOException {
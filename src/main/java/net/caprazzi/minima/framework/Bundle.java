@@ -0,0 +1,59 @@
+package net.caprazzi.minima.framework;
+
+/**
+ * A rolled-up file: css, library or application javascript, plain and
+ * gzipped, with the hash of its content.
+ */
+public class Bundle {
+
+	private final String name;
+	private final String hash;
+	private final byte[] plain;
+	private final byte[] gzip;
+
+	public Bundle(String name, String hash, byte[] plain, byte[] gzip) {
+		this.name = name;
+		this.hash = hash;
+		this.plain = plain;
+		this.gzip = gzip;
+	}
+
+	/**
+	 * @return css, libs or main
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public byte[] getPlain() {
+		return plain;
+	}
+
+	public byte[] getGzip() {
+		return gzip;
+	}
+
+	public String getContentType() {
+		return isCss(name) ? "text/css" : "text/javascript";
+	}
+
+	/**
+	 * @return the name of the plain file in the bundles directory
+	 */
+	public String getFileName() {
+		return getFileName(name, hash);
+	}
+
+	static String getFileName(String name, String hash) {
+		return name + "." + hash + (isCss(name) ? ".css" : ".js");
+	}
+
+	private static boolean isCss(String name) {
+		return name.equals("css");
+	}
+
+}
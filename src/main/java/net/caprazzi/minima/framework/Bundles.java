@@ -0,0 +1,184 @@
+package net.caprazzi.minima.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.type.TypeReference;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rolled-up css, library and application files.
+ * 
+ * They are made at build time, by running main() on the classes directory:
+ * each file listed in the build descriptor is minified, unless it is
+ * minified already, the files of each kind are concatenated and the result is
+ * written as bundles/{name}.{hash}.js (or .css) and gzipped next to it at
+ * the highest compression. bundles/bundles.js maps each name to its hash.
+ * 
+ * At runtime the bundles are read from the classpath as they are. When
+ * they are missing, as when running from the sources, they are made in
+ * memory, not minified.
+ */
+public class Bundles {
+
+	private static Logger logger = LoggerFactory.getLogger("Bundles");
+
+	static final String DIRECTORY = "bundles";
+	static final String MANIFEST = DIRECTORY + "/bundles.js";
+
+	private final Map<String, Bundle> bundles;
+
+	private Bundles(Map<String, Bundle> bundles) {
+		this.bundles = bundles;
+	}
+
+	/**
+	 * @param name css, libs or main
+	 */
+	public Bundle get(String name) {
+		Bundle bundle = bundles.get(name);
+		if (bundle == null)
+			throw new IllegalArgumentException("No bundle named " + name);
+		return bundle;
+	}
+
+	/**
+	 * Reads the bundles made at build time, or makes them if they are missing
+	 */
+	public static Bundles load(BuildDescriptor descriptor) throws IOException {
+		Resource manifest = Resource.newClassPathResource(MANIFEST);
+		if (manifest == null || !manifest.exists()) {
+			logger.warn("No bundles in the classpath, building them (not minified)");
+			return build(descriptor, false);
+		}
+		
+		InputStream in = manifest.getInputStream();
+		Map<String, String> hashes;
+		try {
+			hashes = new ObjectMapper().readValue(in, new TypeReference<LinkedHashMap<String, String>>() {});
+		}
+		finally {
+			in.close();
+		}
+		
+		LinkedHashMap<String, Bundle> bundles = new LinkedHashMap<String, Bundle>();
+		for (Map.Entry<String, String> entry : hashes.entrySet()) {
+			String path = DIRECTORY + "/" + Bundle.getFileName(entry.getKey(), entry.getValue());
+			bundles.put(entry.getKey(), new Bundle(entry.getKey(), entry.getValue(), 
+					readResource(path), readResource(path + ".gz")));
+		}
+		return new Bundles(bundles);
+	}
+
+	/**
+	 * Makes the bundles in memory
+	 * @param minify true to minify the files that are not minified already
+	 */
+	public static Bundles build(BuildDescriptor descriptor, boolean minify) throws IOException {
+		LinkedHashMap<String, Bundle> bundles = new LinkedHashMap<String, Bundle>();
+		bundles.put("css", build("css", descriptor, descriptor.getCssPaths(), minify));
+		bundles.put("libs", build("libs", descriptor, descriptor.getLibsPaths(), minify));
+		bundles.put("main", build("main", descriptor, descriptor.getMainPaths(), minify));
+		return new Bundles(bundles);
+	}
+
+	/**
+	 * Writes the bundles and the manifest under dir/bundles
+	 */
+	public void write(File dir) throws IOException {
+		File bundlesDir = new File(dir, DIRECTORY);
+		if (!bundlesDir.isDirectory() && !bundlesDir.mkdirs())
+			throw new IOException("Could not create " + bundlesDir);
+		
+		LinkedHashMap<String, String> hashes = new LinkedHashMap<String, String>();
+		for (Bundle bundle : bundles.values()) {
+			writeFile(new File(bundlesDir, bundle.getFileName()), bundle.getPlain());
+			writeFile(new File(bundlesDir, bundle.getFileName() + ".gz"), bundle.getGzip());
+			hashes.put(bundle.getName(), bundle.getHash());
+		}
+		new ObjectMapper().writeValue(new File(dir, MANIFEST), hashes);
+	}
+
+	private static Bundle build(String name, BuildDescriptor descriptor, String[] paths, boolean minify) throws IOException {
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		for (String path : paths) {
+			byte[] data;
+			try {
+				data = descriptor.getData(path);
+			}
+			catch (Exception ex) {
+				throw new RuntimeException("Could not read data for " + path, ex);
+			}
+			if (minify && !path.endsWith(".min.js")) {
+				data = path.endsWith(".css")
+					? Minifier.minifyCss(path, data)
+					: Minifier.minifyJs(path, data);
+			}
+			plain.write(data);
+			plain.write("\n".getBytes());
+		}
+		byte[] content = plain.toByteArray();
+		return new Bundle(name, BuildServices.contentHash(content), content, gzip(content));
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		OutputStream gzout = new GZIPOutputStream(gzip) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		gzout.write(data);
+		gzout.close();
+		return gzip.toByteArray();
+	}
+
+	private static byte[] readResource(String path) throws IOException {
+		Resource resource = Resource.newClassPathResource(path);
+		if (resource == null)
+			throw new IOException("could not find file in classpath: " + path);
+		InputStream in = resource.getInputStream();
+		try {
+			return IO.readBytes(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void writeFile(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Makes the minified bundles at build time. The build descriptor and the
+	 * files it lists are read from the classpath.
+	 * @param args the classes directory, where the bundles are written
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: Bundles <classes dir>");
+			System.exit(1);
+		}
+		build(BuildDescriptor.fromFile("build.js"), true).write(new File(args[0]));
+	}
+
+}
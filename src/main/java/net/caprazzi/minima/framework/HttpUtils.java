@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.http.HttpMethods;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +50,36 @@ public class HttpUtils {
 		resp.addHeader("Pragma", "no-cache");
 	}
 	
+	/**
+	 * Check if the client accepts gzip encoded responses
+	 * @param req
+	 * @return
+	 */
+	public static boolean acceptsGzip(HttpServletRequest req) {
+		String ae = req.getHeader("accept-encoding");
+		return ae != null 
+				&& ae.indexOf("gzip")>=0 
+				&& !HttpMethods.HEAD.equalsIgnoreCase(req.getMethod());
+	}
+	
+	/**
+	 * Check if the If-None-Match header of the request matches the given entity tag
+	 * @param req
+	 * @param etag quoted entity tag
+	 * @return
+	 */
+	public static boolean etagMatches(HttpServletRequest req, String etag) {
+		String header = req.getHeader("If-None-Match");
+		if (header == null)
+			return false;
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*") || candidate.equals(etag))
+				return true;
+		}
+		return false;
+	}
+	
 	public final static String readBodyAsString(InputStream is) throws IOException {
 		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
@@ -0,0 +1,60 @@
+package net.caprazzi.minima.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+import com.yahoo.platform.yui.compressor.CssCompressor;
+import com.yahoo.platform.yui.compressor.JavaScriptCompressor;
+
+/**
+ * Minifies javascript and css with the YUI compressor. Only used at build
+ * time: the compressor is not shipped in the standalone jar.
+ */
+class Minifier {
+
+	static byte[] minifyJs(final String path, byte[] data) throws IOException {
+		ErrorReporter reporter = new ErrorReporter() {
+
+			@Override
+			public void warning(String message, String sourceName, int line,
+					String lineSource, int lineOffset) {
+				// the compressor warns about every use of eval and such
+			}
+
+			@Override
+			public void error(String message, String sourceName, int line,
+					String lineSource, int lineOffset) {
+				throw runtimeError(message, sourceName, line, lineSource, lineOffset);
+			}
+
+			@Override
+			public EvaluatorException runtimeError(String message, String sourceName, 
+					int line, String lineSource, int lineOffset) {
+				return new EvaluatorException(path + ":" + line + ": " + message);
+			}
+		};
+		
+		JavaScriptCompressor compressor = new JavaScriptCompressor(reader(data), reporter);
+		StringWriter out = new StringWriter();
+		// no line breaks, munge, not verbose, drop extra semicolons, optimize
+		compressor.compress(out, -1, true, false, false, false);
+		return out.toString().getBytes("UTF-8");
+	}
+
+	static byte[] minifyCss(String path, byte[] data) throws IOException {
+		CssCompressor compressor = new CssCompressor(reader(data));
+		StringWriter out = new StringWriter();
+		compressor.compress(out, -1);
+		return out.toString().getBytes("UTF-8");
+	}
+
+	private static InputStreamReader reader(byte[] data) throws IOException {
+		return new InputStreamReader(new ByteArrayInputStream(data), "UTF-8");
+	}
+
+}
@@ -0,0 +1,312 @@
+package net.caprazzi.minima.framework;
+
+import java.util.ArrayList;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A table of routes, built once and matched against the path of each request.
+ *
+ * A route is a method, a pattern and a target. Patterns are made of
+ * segments: a literal, {name} for any segment or {name:int} for a
+ * number. A path that ends with / only matches a pattern that ends with /.
+ * Examples:<pre>
+ * /data/stories
+ * /data/stories/{id}
+ * /data/stories/{id}/{revision:int}
+ * </pre>
+ * Routes are kept in a tree of segments; literal segments are tried before
+ * parameters. A GET route also matches HEAD, and the method * matches all
+ * methods.
+ *
+ * Matching does not allocate: the match is reused by each thread, and holds
+ * the positions of the parameters in the path until the next match.
+ *
+ * Routes are added before the first match, and then shared between threads.
+ */
+public class Routes<T> {
+
+	public static final String ANY = "*";
+
+	private final Node<T> root = new Node<T>();
+	private int maxParams = 0;
+
+	private final ThreadLocal<Match<T>> matches = new ThreadLocal<Match<T>>() {
+		@Override
+		protected Match<T> initialValue() {
+			return new Match<T>(maxParams);
+		}
+	};
+
+	/**
+	 * Adds a route
+	 * @param method http method, or * for all of them
+	 * @throws IllegalArgumentException if the pattern is not valid, or the
+	 * 	method and pattern are taken
+	 */
+	public Routes<T> add(String method, String pattern, T target) {
+		if (!pattern.startsWith("/"))
+			throw new IllegalArgumentException("Pattern must start with /: " + pattern);
+
+		Node<T> node = root;
+		ArrayList<String> names = new ArrayList<String>();
+		for (String segment : pattern.substring(1).split("/", -1)) {
+			if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1);
+				boolean number = name.endsWith(":int");
+				if (number)
+					name = name.substring(0, name.length() - ":int".length());
+				if (name.length() == 0 || name.indexOf(':') >= 0)
+					throw new IllegalArgumentException("Invalid parameter " + segment + " in " + pattern);
+				names.add(name);
+				node = node.param(number);
+			}
+			else {
+				node = node.literal(segment);
+			}
+		}
+		node.add(new Route<T>(method, pattern, names.toArray(new String[names.size()]), target));
+		maxParams = Math.max(maxParams, names.size());
+		return this;
+	}
+
+	/**
+	 * Matches the path of a request after the context path
+	 * @return the match, valid until the next match of this thread, or null
+	 */
+	public Match<T> match(HttpServletRequest req) {
+		return match(req, req.getContextPath());
+	}
+
+	/**
+	 * Matches the path of a request after a prefix
+	 * @return the match, valid until the next match of this thread, or null
+	 * 	if the path does not start with the prefix or no route matches
+	 */
+	public Match<T> match(HttpServletRequest req, String prefix) {
+		return match(req, prefix, 0);
+	}
+
+	/**
+	 * Matches the path of a request after a prefix and the given number of
+	 * characters, such as the path of a board already checked by the caller
+	 * @return the match, valid until the next match of this thread, or null
+	 * 	if the path does not start with the prefix or no route matches
+	 */
+	public Match<T> match(HttpServletRequest req, String prefix, int skip) {
+		String uri = req.getRequestURI();
+		if (!uri.startsWith(prefix))
+			return null;
+		return match(req.getMethod(), uri, prefix.length() + skip);
+	}
+
+	/**
+	 * @param path the path to match, from the position from
+	 * @return the match, valid until the next match of this thread, or null
+	 */
+	public Match<T> match(String method, String path, int from) {
+		if (from >= path.length() || path.charAt(from) != '/')
+			return null;
+
+		Match<T> match = matches.get();
+		if (match.starts.length < maxParams) {
+			// routes were added after this thread matched
+			match = new Match<T>(maxParams);
+			matches.set(match);
+		}
+		match.path = path;
+		match.route = null;
+		if (!find(root, method, path, from + 1, 0, match))
+			return null;
+		return match;
+	}
+
+	// matches the segment at start, and the ones after it
+	private static <T> boolean find(Node<T> node, String method, String path, int start, int param, Match<T> match) {
+		int end = path.indexOf('/', start);
+		if (end < 0)
+			end = path.length();
+		boolean last = (end == path.length());
+
+		for (int i = 0; i < node.names.length; i++) {
+			String name = node.names[i];
+			if (name.length() == end - start && path.regionMatches(start, name, 0, name.length())) {
+				if (found(node.children[i], method, path, end, last, param, match))
+					return true;
+			}
+		}
+
+		if (node.param != null && end > start
+				&& (!node.paramIsNumber || isNumber(path, start, end))) {
+			match.starts[param] = start;
+			match.ends[param] = end;
+			if (found(node.param, method, path, end, last, param + 1, match))
+				return true;
+		}
+		return false;
+	}
+
+	private static <T> boolean found(Node<T> node, String method, String path, int end, boolean last, int param, Match<T> match) {
+		if (!last)
+			return find(node, method, path, end + 1, param, match);
+		Route<T> route = node.get(method);
+		if (route == null)
+			return false;
+		match.route = route;
+		return true;
+	}
+
+	private static boolean isNumber(String path, int start, int end) {
+		// up to 9 digits always fit an int
+		if (end - start > 9)
+			return false;
+		for (int i = start; i < end; i++) {
+			char c = path.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	private static final class Node<T> {
+		@SuppressWarnings("unchecked")
+		private Node<T>[] children = new Node[0];
+		private String[] names = new String[0];
+		private Node<T> param = null;
+		private boolean paramIsNumber = false;
+		private final ArrayList<Route<T>> routes = new ArrayList<Route<T>>();
+
+		Node<T> literal(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name))
+					return children[i];
+			}
+			Node<T> child = new Node<T>();
+			String[] newNames = new String[names.length + 1];
+			System.arraycopy(names, 0, newNames, 0, names.length);
+			newNames[names.length] = name;
+			@SuppressWarnings("unchecked")
+			Node<T>[] newChildren = new Node[children.length + 1];
+			System.arraycopy(children, 0, newChildren, 0, children.length);
+			newChildren[children.length] = child;
+			names = newNames;
+			children = newChildren;
+			return child;
+		}
+
+		Node<T> param(boolean number) {
+			if (param == null) {
+				param = new Node<T>();
+				paramIsNumber = number;
+			}
+			else if (paramIsNumber != number) {
+				throw new IllegalArgumentException("A parameter is both a number and not at the same position");
+			}
+			return param;
+		}
+
+		void add(Route<T> route) {
+			for (Route<T> other : routes) {
+				if (other.method.equals(route.method))
+					throw new IllegalArgumentException("Route " + route.method + " " + route.pattern
+							+ " is taken by " + other.pattern);
+			}
+			routes.add(route);
+		}
+
+		Route<T> get(String method) {
+			Route<T> any = null;
+			Route<T> get = null;
+			for (int i = 0; i < routes.size(); i++) {
+				Route<T> route = routes.get(i);
+				if (route.method.equals(method))
+					return route;
+				if (route.method.equals(ANY))
+					any = route;
+				else if (route.method.equals("GET"))
+					get = route;
+			}
+			if (get != null && "HEAD".equals(method))
+				return get;
+			return any;
+		}
+	}
+
+	private static final class Route<T> {
+		final String method;
+		final String pattern;
+		final String[] params;
+		final T target;
+
+		Route(String method, String pattern, String[] params, T target) {
+			this.method = method;
+			this.pattern = pattern;
+			this.params = params;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * The route that matched a path, and the positions of its parameters
+	 */
+	public static final class Match<T> {
+		private String path;
+		private Route<T> route;
+		private final int[] starts;
+		private final int[] ends;
+
+		Match(int params) {
+			this.starts = new int[params];
+			this.ends = new int[params];
+		}
+
+		public T getTarget() {
+			return route.target;
+		}
+
+		/**
+		 * @return the pattern of the route
+		 */
+		public String getPattern() {
+			return route.pattern;
+		}
+
+		/**
+		 * @return the value of a parameter
+		 */
+		public String get(String name) {
+			int i = indexOf(name);
+			return path.substring(starts[i], ends[i]);
+		}
+
+		/**
+		 * @return the value of a {name:int} parameter
+		 */
+		public int getInt(String name) {
+			int i = indexOf(name);
+			int value = 0;
+			for (int pos = starts[i]; pos < ends[i]; pos++) {
+				value = value * 10 + (path.charAt(pos) - '0');
+			}
+			return value;
+		}
+
+		/**
+		 * @return true if a parameter has the given value, without reading it
+		 */
+		public boolean is(String name, String value) {
+			int i = indexOf(name);
+			int length = ends[i] - starts[i];
+			return value.length() == length && path.regionMatches(starts[i], value, 0, length);
+		}
+
+		private int indexOf(String name) {
+			for (int i = 0; i < route.params.length; i++) {
+				if (route.params[i].equals(name))
+					return i;
+			}
+			throw new IllegalArgumentException("No parameter " + name + " in " + route.pattern);
+		}
+	}
+
+}
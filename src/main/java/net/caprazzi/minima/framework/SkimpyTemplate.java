@@ -3,27 +3,158 @@ package net.caprazzi.minima.framework;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 
 import org.eclipse.jetty.util.IO;
 
 /**
  * Poor man templating system
+ *
+ * A page is parsed once into literal text and {{ KEY }} placeholders. The
+ * values known in advance can be bound once, which gives a new template
+ * with the literal parts merged; the others are given at each write.
+ * Placeholders without a value are written as they are.
+ *
+ * Templates are immutable and can be shared between threads.
  */
 public class SkimpyTemplate {
 
-	private String template;
+	private static final String OPEN = "{{ ";
+	private static final String CLOSE = " }}";
+
+	// literals[i] comes before keys[i], and the last literal ends the page
+	private final String[] literals;
+	private final String[] keys;
+
+	// pages longer than this are written part by part, not to keep large buffers
+	private static final int MAX_BUFFER = 64 * 1024;
+
+	// a buffer per thread, kept between writes
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			return new char[8192];
+		}
+	};
 
 	public SkimpyTemplate(InputStream inputStream) throws IOException {
-		template = IO.toString(inputStream);
+		this(IO.toString(inputStream));
+	}
+
+	public SkimpyTemplate(String template) {
+		ArrayList<String> literals = new ArrayList<String>();
+		ArrayList<String> keys = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder();
+		int pos = 0;
+		while (true) {
+			int open = template.indexOf(OPEN, pos);
+			int close = (open < 0) ? -1 : template.indexOf(CLOSE, open + OPEN.length());
+			if (close < 0) {
+				literal.append(template, pos, template.length());
+				break;
+			}
+			String key = template.substring(open + OPEN.length(), close);
+			if (!isKey(key)) {
+				// not a placeholder, look after its opening
+				literal.append(template, pos, open + OPEN.length());
+				pos = open + OPEN.length();
+				continue;
+			}
+			literal.append(template, pos, open);
+			literals.add(literal.toString());
+			keys.add(key);
+			literal.setLength(0);
+			pos = close + CLOSE.length();
+		}
+		literals.add(literal.toString());
+		this.literals = literals.toArray(new String[literals.size()]);
+		this.keys = keys.toArray(new String[keys.size()]);
+	}
+
+	private SkimpyTemplate(String[] literals, String[] keys) {
+		this.literals = literals;
+		this.keys = keys;
 	}
 
-	public SkimpyTemplate add(String key, String value) {
-		template = template.replaceAll("\\{\\{ " + key + " \\}\\}", value);
-		return this;
+	/**
+	 * @return a template with the given placeholders replaced by their values
+	 */
+	public SkimpyTemplate bind(Map<String, String> values) {
+		ArrayList<String> literals = new ArrayList<String>();
+		ArrayList<String> keys = new ArrayList<String>();
+		StringBuilder literal = new StringBuilder(this.literals[0]);
+		for (int i = 0; i < this.keys.length; i++) {
+			String value = values.get(this.keys[i]);
+			if (value == null) {
+				literals.add(literal.toString());
+				keys.add(this.keys[i]);
+				literal.setLength(0);
+			}
+			else {
+				literal.append(value);
+			}
+			literal.append(this.literals[i + 1]);
+		}
+		literals.add(literal.toString());
+		return new SkimpyTemplate(
+				literals.toArray(new String[literals.size()]),
+				keys.toArray(new String[keys.size()]));
 	}
 
+	/**
+	 * Writes the page without values for the placeholders
+	 */
 	public void write(Writer out) throws IOException {
-		out.write(template);
+		write(out, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Writes the page with the given values in one go, or part by part if
+	 * it is large
+	 */
+	public void write(Writer out, Map<String, String> values) throws IOException {
+		String[] parts = new String[literals.length + keys.length];
+		int length = 0;
+		for (int i = 0; i < keys.length; i++) {
+			parts[2 * i] = literals[i];
+			String value = values.get(keys[i]);
+			parts[2 * i + 1] = (value == null) ? OPEN + keys[i] + CLOSE : value;
+			length += literals[i].length() + parts[2 * i + 1].length();
+		}
+		parts[parts.length - 1] = literals[literals.length - 1];
+		length += parts[parts.length - 1].length();
+
+		if (length > MAX_BUFFER) {
+			for (String part : parts) {
+				out.write(part);
+			}
+			return;
+		}
+
+		char[] buffer = buffers.get();
+		if (buffer.length < length) {
+			buffer = new char[Math.min(Math.max(length, 2 * buffer.length), MAX_BUFFER)];
+			buffers.set(buffer);
+		}
+		int pos = 0;
+		for (String part : parts) {
+			part.getChars(0, part.length(), buffer, pos);
+			pos += part.length();
+		}
+		out.write(buffer, 0, length);
+	}
+
+	private static boolean isKey(String key) {
+		if (key.length() == 0)
+			return false;
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_'))
+				return false;
+		}
+		return true;
 	}
 
-}
\ No newline at end of file
+}
@@ -1,14 +1,14 @@
 package net.caprazzi.minima.model;
 
+import net.caprazzi.slabs.SlabsCodec;
+
 import org.codehaus.jackson.annotate.JsonIgnore;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 
 public abstract class Entity {
 		
 	public ObjectNode toJson(boolean includeIdAndRev) {
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode root = mapper.valueToTree(this);		
+		ObjectNode root = SlabsCodec.toTree(this);
 		if (includeIdAndRev) {
 			root.put("id", getId());
 			root.put("revision", getRevision());
@@ -5,11 +5,12 @@ import java.math.BigDecimal;
 
 import javax.servlet.ServletInputStream;
 
+import net.caprazzi.slabs.SlabsArchivable;
 import net.caprazzi.slabs.SlabsDoc;
 import net.caprazzi.slabs.SlabsType;
 
 @SlabsType("list")
-public class List extends SlabsDoc {
+public class List extends SlabsDoc implements SlabsArchivable {
 
 	private BigDecimal pos;
 	private String name;
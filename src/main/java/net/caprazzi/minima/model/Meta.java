@@ -2,12 +2,10 @@ package net.caprazzi.minima.model;
 
 import java.io.IOException;
 
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonGenerationException;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
+import net.caprazzi.slabs.SlabsCodec;
+import net.caprazzi.slabs.SlabsCodec.Envelope;
+
+import com.google.common.base.Function;
 
 public class Meta<T extends Entity> {
 
@@ -54,30 +52,27 @@ public class Meta<T extends Entity> {
 	}
 	
 	public static Meta<? extends Entity> fromJson(byte[] json) {
-		try {
-			ObjectMapper mapper = new ObjectMapper();
-			JsonFactory jf = mapper.getJsonFactory();
-			JsonParser parser = jf.createJsonParser(json);
-			JsonNode tree = mapper.readTree(parser);
-			JsonNode node = tree.get("name");
-			String name = node.getValueAsText();
-			Entity obj = (Entity) mapper.readValue(tree.get("obj").toString(), Types.getType(name));
-			return wrap(node.getValueAsText(), obj);
-		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return Meta.<Entity>fromJson(null, json);
 	}
 	
-	public static <T extends Entity> Meta<T> fromJson(Class<T> clazz, byte[] json) {
+	/**
+	 * Reads a Meta in a single streaming pass, binding obj straight to its class
+	 * @param clazz class of obj, or null to use the one named by name
+	 */
+	public static <T extends Entity> Meta<T> fromJson(final Class<T> clazz, byte[] json) {
 		try {
-			ObjectMapper mapper = new ObjectMapper();
-			JsonFactory jf = mapper.getJsonFactory();
-			JsonParser parser = jf.createJsonParser(json);
-			JsonNode tree = mapper.readTree(parser);
-			JsonNode node = tree.get("name");
-			T obj = mapper.readValue(tree.get("obj").toString(), clazz);
-			return wrap(node.getValueAsText(), obj);
+			Envelope<T> envelope = SlabsCodec.readEnvelope(json, new Function<String, Class<? extends T>>() {
+				@SuppressWarnings("unchecked")
+				@Override
+				public Class<? extends T> apply(String name) {
+					return (clazz != null) ? clazz : (Class<? extends T>) Types.getType(name);
+				}
+			});
+			if (envelope.getName() == null)
+				throw new IOException("Meta has no name");
+			if (envelope.getObj() == null)
+				throw new IOException("Meta has no obj");
+			return wrap(envelope.getName(), envelope.getObj());
 		}
 		catch (Exception e) {
 			throw new RuntimeException(e);
@@ -101,16 +96,7 @@ public class Meta<T extends Entity> {
 	}
 
 	public byte[] toJson() {
-		ObjectMapper objectMapper = new ObjectMapper();
-		try {
-			return objectMapper.writeValueAsBytes(this);
-		} catch (JsonGenerationException e) {
-			throw new RuntimeException(e);
-		} catch (JsonMappingException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
+		return SlabsCodec.write(this);
 	}
 
 	@SuppressWarnings("unchecked")
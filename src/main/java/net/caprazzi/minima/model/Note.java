@@ -4,11 +4,12 @@ import java.math.BigDecimal;
 
 import javax.servlet.ServletInputStream;
 
+import net.caprazzi.slabs.SlabsArchivable;
 import net.caprazzi.slabs.SlabsDoc;
 import net.caprazzi.slabs.SlabsType;
 
 @SlabsType("story")
-public class Note extends SlabsDoc {
+public class Note extends SlabsDoc implements SlabsArchivable {
 
 	private String desc;
 	private String list;
@@ -2,7 +2,7 @@ package net.caprazzi.minima.model;
 
 import java.math.BigDecimal;
 
-import org.codehaus.jackson.map.ObjectMapper;
+import net.caprazzi.slabs.SlabsCodec;
 
 /**
  * 
@@ -102,12 +102,7 @@ public class Story extends Entity {
 	}
 
 	public static Story fromJson(byte[] data) {
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			return mapper.readValue(data, Story.class);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return SlabsCodec.read(data, Story.class);
 	}
 
 	
@@ -2,7 +2,7 @@ package net.caprazzi.minima.model;
 
 import java.math.BigDecimal;
 
-import org.codehaus.jackson.map.ObjectMapper;
+import net.caprazzi.slabs.SlabsCodec;
 
 public class StoryList extends Entity {
 
@@ -46,21 +46,11 @@ public class StoryList extends Entity {
 	}
 
 	public static StoryList fromJson(byte[] data) {
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			return mapper.readValue(data, StoryList.class);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return SlabsCodec.read(data, StoryList.class);
 	}
 
 	public byte[] toJson() {
-		ObjectMapper mapper = new ObjectMapper();
-		 try {
-			return mapper.writeValueAsBytes(this);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return SlabsCodec.write(this);
 	}
 
 	public void setRevision(int revision) {
@@ -0,0 +1,236 @@
+package net.caprazzi.minima.service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.slabs.Slabs;
+import net.caprazzi.slabs.SlabsArchivable;
+import net.caprazzi.slabs.SlabsCodec;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsException;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+import net.caprazzi.slabs.SlabsRecord;
+
+import org.codehaus.jackson.JsonNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Moves archived documents out of the board, in a background thread.
+ *
+ * On start, documents archived before the store had an archive partition
+ * are written again, so that the store moves them. Then, if a maximum age
+ * is set, stories that have not been touched for that long in the done list
+ * are archived periodically and pushed to the clients.
+ */
+public class ArchivePolicy {
+
+	private static Logger logger = LoggerFactory.getLogger("ArchivePolicy");
+
+	private final Slabs db;
+	private final PushService pushService;
+	private final String doneList;
+	private final long maxAge;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param doneList name of the done list, case is ignored
+	 * @param maxAge time after which stories in the done list are archived, in milliseconds. 0 to never archive them
+	 */
+	public ArchivePolicy(Slabs db, PushService pushService, String doneList, long maxAge) {
+		this.db = db;
+		this.pushService = pushService;
+		this.doneList = doneList;
+		this.maxAge = maxAge;
+	}
+
+	public synchronized void start(long periodMillis) {
+		if (executor != null)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "minima-archiver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int moved = migrate();
+					if (moved > 0)
+						logger.info("Moved " + moved + " archived documents to the archive");
+				}
+				catch (Exception e) {
+					logger.error("Exception while moving archived documents", e);
+				}
+			}
+		});
+
+		if (maxAge <= 0)
+			return;
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int archived = archiveDone(System.currentTimeMillis() - maxAge);
+					if (archived > 0)
+						logger.info("Archived " + archived + " stories from list " + doneList);
+				}
+				catch (Exception e) {
+					// keep the schedule going
+					logger.error("Exception while archiving stories", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor == null)
+			return;
+		executor.shutdownNow();
+		executor = null;
+	}
+
+	/**
+	 * Writes again the archived documents still found among the active ones
+	 * @return the number of documents written
+	 */
+	public int migrate() {
+		int moved = 0;
+		for (SlabsRecord list : scan(List.class, "archived")) {
+			if (isArchived(list) && write(copy(list)))
+				moved++;
+		}
+		for (SlabsRecord note : scan(Note.class, "archived")) {
+			if (isArchived(note) && write(copy(note)))
+				moved++;
+		}
+		return moved;
+	}
+
+	/**
+	 * Archives the stories in the done list that were last written before the given time
+	 * @return the number of stories archived
+	 */
+	public int archiveDone(long before) {
+		HashSet<String> done = new HashSet<String>();
+		for (SlabsRecord list : scan(List.class, "name", "archived")) {
+			JsonNode name = list.getField("name");
+			if (!isArchived(list) && name != null && doneList.equalsIgnoreCase(name.getTextValue()))
+				done.add(list.getId());
+		}
+		if (done.isEmpty())
+			return 0;
+
+		int archived = 0;
+		for (SlabsRecord note : scan(Note.class, "list", "archived")) {
+			JsonNode list = note.getField("list");
+			if (isArchived(note) || list == null || !done.contains(list.getTextValue()))
+				continue;
+			if (note.getLastUpdate() >= before)
+				continue;
+
+			SlabsDoc doc = copy(note);
+			((SlabsArchivable) doc).setArchived(true);
+			if (write(doc)) {
+				pushService.send(null, doc);
+				archived++;
+			}
+		}
+		return archived;
+	}
+
+	private static boolean isArchived(SlabsRecord record) {
+		JsonNode archived = record.getField("archived");
+		return archived != null && archived.getBooleanValue();
+	}
+
+	// cached documents are shared, changes are made to a copy
+	private static SlabsDoc copy(SlabsRecord record) {
+		SlabsDoc doc = record.getDoc();
+		SlabsDoc copy = SlabsCodec.read(SlabsCodec.write(doc), doc.getClass());
+		copy.setId(doc.getId());
+		copy.setRevision(doc.getRevision());
+		return copy;
+	}
+
+	/**
+	 * @return true if the document was written, false if it was changed since it was read
+	 */
+	private boolean write(SlabsDoc doc) {
+		final boolean[] written = new boolean[1];
+		final SlabsException[] failure = new SlabsException[1];
+		db.put(doc, new SlabsPut() {
+
+			@Override
+			public void ok(SlabsDoc doc) {
+				written[0] = true;
+			}
+
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				// changed meanwhile, it will be checked again next time
+			}
+
+			@Override
+			public void error(String id, SlabsException e) {
+				failure[0] = e;
+			}
+
+			@Override
+			public void applicationError(SlabsException ex) {
+				failure[0] = ex;
+			}
+		});
+
+		if (failure[0] != null)
+			throw failure[0];
+		return written[0];
+	}
+
+	private Iterable<SlabsRecord> scan(Class<? extends SlabsDoc> type, String... fields) {
+		final ArrayList<SlabsRecord> found = new ArrayList<SlabsRecord>();
+		final SlabsException[] failure = new SlabsException[1];
+
+		db.scan(type, new SlabsScan(fields) {
+
+			@Override
+			public void records(Iterable<SlabsRecord> records) {
+				Iterables.addAll(found, records);
+			}
+
+			@Override
+			public void notFound() {}
+
+			@Override
+			public void error(SlabsException ex) {
+				failure[0] = ex;
+			}
+
+			@Override
+			public void applicationError(SlabsException ex) {
+				failure[0] = ex;
+			}
+		});
+
+		if (failure[0] != null)
+			throw failure[0];
+		return found;
+	}
+
+}
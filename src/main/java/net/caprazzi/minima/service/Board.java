@@ -0,0 +1,131 @@
+package net.caprazzi.minima.service;
+
+import java.io.IOException;
+
+import net.caprazzi.slabs.CachingSlabs;
+import net.caprazzi.slabs.ChangeTrackingSlabs;
+import net.caprazzi.slabs.GroupCommitSlabs;
+import net.caprazzi.slabs.Slabs;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsCompactable;
+import net.caprazzi.slabs.SlabsOnLog;
+
+/**
+ * A board and the services bound to it: its store, the sequence of its
+ * changes, the json of the board ready to be sent, and the channel that
+ * pushes its changes to the clients.
+ */
+public class Board {
+
+	private final String name;
+	private final Slabs store;
+	private final GroupCommitSlabs writer;
+	private final SlabsChanges changes;
+	private final CachingSlabs cached;
+	private final Slabs db;
+	private final BoardCache cache;
+	private final PushService pushService;
+
+	private volatile long lastAccess = System.currentTimeMillis();
+
+	/**
+	 * @param name name of the board, empty for the default board
+	 * @param store the store of the board. Closed with the board if it is a SlabsOnLog
+	 * @param writer the writer in front of the store, null to write to the store directly
+	 * @param changes where writes are recorded, null not to record them
+	 */
+	public Board(String name, Slabs store, GroupCommitSlabs writer, SlabsChanges changes, PushService pushService) {
+		this.name = name;
+		this.store = store;
+		this.writer = writer;
+		this.changes = changes;
+		this.cached = new CachingSlabs(writer != null ? writer : store);
+		this.db = (changes != null) ? new ChangeTrackingSlabs(cached, changes) : cached;
+		this.cache = new BoardCache(cached, changes);
+		this.pushService = pushService;
+		if (pushService != null && changes != null)
+			pushService.setChanges(changes);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Slabs getDb() {
+		return db;
+	}
+
+	/**
+	 * @return the changes of the board, null if they are not recorded
+	 */
+	public SlabsChanges getChanges() {
+		return changes;
+	}
+
+	public BoardCache getCache() {
+		return cache;
+	}
+
+	public PushService getPushService() {
+		return pushService;
+	}
+
+	/**
+	 * @return an estimate of the memory held by the board, in bytes: the
+	 * 	cached documents, the indexes of the store, the retained changes
+	 * 	and the encoded board
+	 */
+	public long getFootprint() {
+		long bytes = cached.getSize() + cache.getSize();
+		if (store instanceof SlabsOnLog)
+			bytes += ((SlabsOnLog) store).getSize();
+		if (changes != null)
+			bytes += changes.getSize();
+		return bytes;
+	}
+
+	/**
+	 * @return true if no client is listening to the changes of the board
+	 */
+	public boolean isIdle() {
+		return pushService.getConnectionCount() == 0;
+	}
+
+	void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/**
+	 * Removes old tombstones from the store, if it can be compacted
+	 * @see SlabsCompactable#compact(long)
+	 */
+	public int compact(long minAge) {
+		if (store instanceof SlabsCompactable)
+			return ((SlabsCompactable) store).compact(minAge);
+		return 0;
+	}
+
+	/**
+	 * Waits for pending writes, then closes the store and the changes, and
+	 * drops the messages kept for the clients of the board
+	 */
+	public void close() throws IOException {
+		try {
+			if (writer != null)
+				writer.stop();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing board " + name, e);
+		}
+		if (store instanceof SlabsOnLog)
+			((SlabsOnLog) store).close();
+		if (changes != null)
+			changes.close();
+		pushService.close();
+	}
+
+}
@@ -0,0 +1,240 @@
+package net.caprazzi.minima.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.slabs.CachingSlabs;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsCodec;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsException;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+import net.caprazzi.slabs.SlabsRecord;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Keeps the json representation of the board, encoded and ready to be sent.
+ * The board is encoded again only when the version of the store changes.
+ */
+public class BoardCache {
+
+	private final CachingSlabs db;
+	private final SlabsChanges changes;
+
+	// tells apart versions from different runs of the server
+	private final String epoch = Long.toHexString(System.currentTimeMillis());
+
+	private volatile EncodedBoard board = null;
+
+	public BoardCache(CachingSlabs db) {
+		this(db, null);
+	}
+
+	/**
+	 * @param changes changes of the store, to tell in the board the last
+	 * 	change it includes. Null to leave it out
+	 */
+	public BoardCache(CachingSlabs db, SlabsChanges changes) {
+		this.db = db;
+		this.changes = changes;
+	}
+
+	/**
+	 * Returns the encoded board for the current version of the store
+	 * @return
+	 * @throws SlabsException if the board could not be read
+	 */
+	public EncodedBoard getBoard() {
+		EncodedBoard current = board;
+		if (current != null && current.getVersion() == db.getVersion())
+			return current;
+
+		synchronized (this) {
+			long version = db.getVersion();
+			current = board;
+			if (current != null && current.getVersion() == version)
+				return current;
+
+			current = encode(version);
+			board = current;
+			return current;
+		}
+	}
+
+	/**
+	 * @return bytes held by the encoded board, 0 if it was not encoded yet
+	 */
+	public long getSize() {
+		EncodedBoard current = board;
+		return (current == null) ? 0 : current.getSize();
+	}
+
+	private EncodedBoard encode(long version) {
+		// changes are recorded after they are cached: all the changes up to
+		// this one are in the board, later ones may be too
+		long seq = (changes == null) ? -1 : changes.getSeq();
+		
+		// only the fields needed to filter are read, archived documents are never decoded
+		LinkedHashMap<String, SlabsRecord> lists = new LinkedHashMap<String, SlabsRecord>();
+		for (SlabsRecord list : scan(List.class, "archived")) {
+			if (!isArchived(list))
+				lists.put(list.getId(), list);
+		}
+
+		ArrayList<SlabsRecord> notes = new ArrayList<SlabsRecord>();
+		for (SlabsRecord note : scan(Note.class, "archived", "list")) {
+			JsonNode list = note.getField("list");
+			if (!isArchived(note) && list != null && lists.containsKey(list.getTextValue()))
+				notes.add(note);
+		}
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			JsonGenerator gen = SlabsCodec.createGenerator(out);
+			gen.writeStartObject();
+			if (seq >= 0)
+				gen.writeNumberField("seq", seq);
+			
+			gen.writeArrayFieldStart("lists");
+			for (SlabsRecord list : lists.values()) {
+				list.writeTo(gen);
+			}
+			gen.writeEndArray();
+			
+			gen.writeArrayFieldStart("stories");
+			for (SlabsRecord note : notes) {
+				note.writeTo(gen);
+			}
+			gen.writeEndArray();
+			
+			gen.writeEndObject();
+			gen.close();
+			
+			byte[] plain = out.toByteArray();
+			return new EncodedBoard(version, "\"" + epoch + "-" + version + "\"", plain, gzip(plain));
+		} catch (IOException e) {
+			throw new SlabsException("Exception while encoding board", e);
+		}
+	}
+
+	private static boolean isArchived(SlabsRecord record) {
+		JsonNode archived = record.getField("archived");
+		return archived != null && archived.getBooleanValue();
+	}
+
+	private Iterable<SlabsRecord> scan(Class<? extends SlabsDoc> type, String... fields) {
+		final ArrayList<SlabsRecord> found = new ArrayList<SlabsRecord>();
+		final SlabsException[] failure = new SlabsException[1];
+
+		db.scan(type, new SlabsScan(fields) {
+
+			@Override
+			public void records(Iterable<SlabsRecord> records) {
+				Iterables.addAll(found, records);
+			}
+
+			@Override
+			public void notFound() {
+				// empty store, empty board
+			}
+
+			@Override
+			public void error(SlabsException ex) {
+				failure[0] = ex;
+			}
+
+			@Override
+			public void applicationError(SlabsException ex) {
+				failure[0] = ex;
+			}
+		});
+
+		if (failure[0] != null)
+			throw failure[0];
+		return found;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		OutputStream gzout = new GZIPOutputStream(baos);
+		gzout.write(data);
+		gzout.close();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Immutable json representation of a board at a given version
+	 */
+	public static final class EncodedBoard {
+
+		private final long version;
+		private final String etag;
+		private final byte[] plain;
+		private final byte[] gzip;
+		// made on first use
+		private volatile String inline = null;
+
+		EncodedBoard(long version, String etag, byte[] plain, byte[] gzip) {
+			this.version = version;
+			this.etag = etag;
+			this.plain = plain;
+			this.gzip = gzip;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return strong entity tag for this version, quoted
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		public byte[] getPlain() {
+			return plain;
+		}
+
+		public byte[] getGzip() {
+			return gzip;
+		}
+
+		/**
+		 * @return bytes held by the encodings, the inline one once it is made
+		 */
+		long getSize() {
+			String current = inline;
+			// two bytes per char
+			return plain.length + gzip.length + ((current == null) ? 0 : 2L * current.length());
+		}
+
+		/**
+		 * @return the json, safe to put in a <script> element of a page
+		 */
+		public String getInline() {
+			String current = inline;
+			if (current == null) {
+				try {
+					// < is only found in strings, where \u003c reads the same
+					current = new String(plain, "UTF-8").replace("<", "\\u003c");
+				} catch (IOException e) {
+					throw new SlabsException("Exception while encoding board", e);
+				}
+				inline = current;
+			}
+			return current;
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package net.caprazzi.minima.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+import net.caprazzi.minima.servlet.CometServlet;
+import net.caprazzi.minima.servlet.WebsocketServlet;
+import net.caprazzi.slabs.GroupCommitSlabs;
+import net.caprazzi.slabs.GroupCommitSlabs.Durability;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsCompactable;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsOnLog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The boards hosted by this server, besides the default one.
+ *
+ * Each board has its own log in a directory named after the board, created
+ * by create(), and is opened on first access. Boards are opened outside the
+ * lock of the registry, so a board that takes long to open does not hold
+ * the others. Boards are kept open in least recently used order:
+ * when there are more than maxOpen of them, or their footprint is above
+ * maxBytes, the least recently used boards are closed. Boards used in the
+ * last minute, or with clients listening to their changes, are never closed.
+ */
+public class BoardRegistry implements SlabsCompactable {
+
+	private static Logger logger = LoggerFactory.getLogger("BoardRegistry");
+
+	// names are used as directory names
+	private static final Pattern NAME = Pattern.compile("[a-zA-Z0-9_-]{1,64}");
+
+	private static final long MIN_IDLE_MILLIS = 60 * 1000;
+
+	private final File dir;
+	private final String prefix;
+	private final Durability durability;
+	private final long syncMillis;
+	private final WebsocketServlet websocketServlet;
+	private final CometServlet cometServlet;
+	private final ScheduledExecutorService fanout;
+	private final long pushWindowMillis;
+	private final Class<? extends SlabsDoc>[] types;
+	private final int maxOpen;
+	private final long maxBytes;
+	// boards used more recently than this are not closed
+	long minIdleMillis = MIN_IDLE_MILLIS;
+
+	// access order, least recently used first
+	private final LinkedHashMap<String, Board> boards = new LinkedHashMap<String, Board>(16, 0.75f, true);
+	// boards being opened, by the first thread that asked for them
+	private final HashMap<String, FutureTask<Board>> opening = new HashMap<String, FutureTask<Board>>();
+	private boolean closed = false;
+
+	/**
+	 * @param dir directory of the boards, created if it does not exist
+	 * @param fanout pushes the changes of the boards to their clients
+	 * @param pushWindowMillis coalescing window of the pushed changes, 0 to push them at once
+	 * @param maxOpen number of boards kept open
+	 * @param maxBytes memory the open boards can take, in bytes
+	 */
+	public BoardRegistry(File dir, String prefix, Durability durability, long syncMillis,
+			WebsocketServlet websocketServlet, CometServlet cometServlet, ScheduledExecutorService fanout, long pushWindowMillis,
+			Class<? extends SlabsDoc>[] types, int maxOpen, long maxBytes) {
+		this.dir = dir;
+		this.prefix = prefix;
+		this.durability = durability;
+		this.syncMillis = syncMillis;
+		this.websocketServlet = websocketServlet;
+		this.cometServlet = cometServlet;
+		this.fanout = fanout;
+		this.pushWindowMillis = pushWindowMillis;
+		this.types = types;
+		this.maxOpen = maxOpen;
+		this.maxBytes = maxBytes;
+	}
+
+	public static boolean isValidName(String name) {
+		return name != null && NAME.matcher(name).matches();
+	}
+
+	/**
+	 * Returns an open board, opening it if needed
+	 * @return the board, or null if there is no board with this name
+	 * @throws IllegalArgumentException if the name is not a valid board name
+	 * @throws IOException if the board could not be opened
+	 */
+	public Board get(String name) throws IOException {
+		return get(name, false);
+	}
+
+	/**
+	 * Returns an open board, opening it if needed. A board that does not
+	 * exist is created empty.
+	 * @throws IllegalArgumentException if the name is not a valid board name
+	 * @throws IOException if the board could not be opened
+	 */
+	public Board create(String name) throws IOException {
+		return get(name, true);
+	}
+
+	private Board get(final String name, boolean create) throws IOException {
+		if (!isValidName(name))
+			throw new IllegalArgumentException("Invalid board name " + name);
+
+		FutureTask<Board> task;
+		boolean opener = false;
+		synchronized (this) {
+			if (closed)
+				throw new IOException("Registry is closed");
+
+			Board board = boards.get(name);
+			if (board != null) {
+				board.touch();
+				return board;
+			}
+
+			task = opening.get(name);
+			if (task == null) {
+				if (!create && !exists(name))
+					return null;
+				task = new FutureTask<Board>(new Callable<Board>() {
+					@Override
+					public Board call() throws IOException {
+						return open(name);
+					}
+				});
+				opening.put(name, task);
+				opener = true;
+			}
+		}
+
+		if (opener)
+			task.run();
+
+		Board board;
+		try {
+			board = task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while opening board " + name);
+		}
+		catch (ExecutionException e) {
+			if (opener) {
+				synchronized (this) {
+					opening.remove(name);
+				}
+			}
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Exception while opening board " + name, e.getCause());
+		}
+		if (!opener)
+			return board;
+
+		ArrayList<Board> evicted;
+		boolean late;
+		synchronized (this) {
+			opening.remove(name);
+			// closed while opening
+			late = closed;
+			if (late) {
+				evicted = new ArrayList<Board>();
+				evicted.add(board);
+			}
+			else {
+				boards.put(name, board);
+				logger.info("Opened board " + name);
+				evicted = evict();
+			}
+		}
+		close(evicted);
+		if (late)
+			throw new IOException("Registry is closed");
+		return board;
+	}
+
+	/**
+	 * @return the number of open boards
+	 */
+	public synchronized int size() {
+		return boards.size();
+	}
+
+	/**
+	 * Compacts all the open boards, then closes the ones that are not used
+	 * if there are too many.
+	 * @return the number of tombstones removed
+	 */
+	@Override
+	public int compact(long minAge) {
+		ArrayList<Board> open;
+		synchronized (this) {
+			open = new ArrayList<Board>(boards.values());
+		}
+
+		int removed = 0;
+		for (Board board : open) {
+			try {
+				removed += board.compact(minAge);
+			}
+			catch (Exception e) {
+				// keep going with the other boards
+				logger.error("Exception while compacting board " + board.getName(), e);
+			}
+		}
+
+		ArrayList<Board> evicted;
+		synchronized (this) {
+			evicted = evict();
+		}
+		close(evicted);
+		return removed;
+	}
+
+	/**
+	 * Closes all the open boards. Later calls to get() fail.
+	 */
+	public void close() {
+		ArrayList<Board> open;
+		synchronized (this) {
+			closed = true;
+			open = new ArrayList<Board>(boards.values());
+			boards.clear();
+		}
+		close(open);
+	}
+
+	/**
+	 * @return true if the board was created already
+	 */
+	protected boolean exists(String name) {
+		return new File(dir, name).isDirectory();
+	}
+
+	/**
+	 * Opens the store of a board, creating it if it does not exist
+	 */
+	protected Board open(String name) throws IOException {
+		File boardDir = new File(dir, name);
+		SlabsOnLog store = new SlabsOnLog(boardDir, prefix, types);
+		SlabsChanges changes = new SlabsChanges(new File(boardDir, prefix + ".changes"));
+		GroupCommitSlabs writer = new GroupCommitSlabs(store, store, durability, syncMillis);
+		writer.start();
+		return new Board(name, store, writer, changes, new PushService(websocketServlet, cometServlet, name, fanout, pushWindowMillis));
+	}
+
+	// removes boards over the limits, least recently used first. Must be called holding the lock
+	private ArrayList<Board> evict() {
+		ArrayList<Board> evicted = new ArrayList<Board>();
+
+		long bytes = 0;
+		for (Board board : boards.values()) {
+			bytes += board.getFootprint();
+		}
+
+		long idleSince = System.currentTimeMillis() - minIdleMillis;
+		Iterator<Board> it = boards.values().iterator();
+		while ((boards.size() > maxOpen || bytes > maxBytes) && it.hasNext()) {
+			Board board = it.next();
+			if (board.getLastAccess() > idleSince || !board.isIdle())
+				continue;
+			it.remove();
+			bytes -= board.getFootprint();
+			evicted.add(board);
+		}
+
+		if (boards.size() > maxOpen || bytes > maxBytes)
+			logger.warn(boards.size() + " boards in use, taking " + bytes + " bytes: over the limits");
+		return evicted;
+	}
+
+	private static void close(Iterable<Board> evicted) {
+		for (Board board : evicted) {
+			try {
+				board.close();
+				logger.info("Closed board " + board.getName());
+			}
+			catch (Exception e) {
+				logger.error("Exception while closing board " + board.getName(), e);
+			}
+		}
+	}
+
+}
@@ -1,40 +1,428 @@
 package net.caprazzi.minima.service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
 import net.caprazzi.minima.servlet.CometServlet;
 import net.caprazzi.minima.servlet.WebsocketServlet;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsCodec;
 import net.caprazzi.slabs.SlabsDoc;
 
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.JsonGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Pushes the changes of a board to the clients connected to its channel.
+ *
+ * A change is encoded once in the caller's thread, then handed to the
+ * clients by the fan-out executor, so that the write that made the change
+ * does not wait for them. The executor must run one task at a time, for the
+ * clients to get the changes in order.
+ *
+ * With a coalescing window, the changes are not pushed at once: the changes
+ * made in the window are pushed together in a single batch message when it
+ * ends, and only the last revision of a document changed more than once in
+ * the window is pushed. Each change of the batch carries its own sender.
+ *
+ * Messages are routed by list: a change of a story goes to the clients that
+ * subscribed to its list, and to the ones of its previous list when it
+ * moved; a change of a list goes to the clients of that list. Clients
+ * subscribed to all the lists get everything, and so does everybody for a
+ * change that can't be routed.
+ *
+ * A change does not go back to the client that made it, if it is connected
+ * with its client tag. Messages can also be sent to a single client.
+ *
+ * Once bound to the changes of its board, each change carries its sequence
+ * number (a batch carries the last one), so that clients know where to
+ * catch up from after they reconnect. While an earlier change is still
+ * being pushed by another writer, the number is the one before it instead.
+ */
 public class PushService {
 
+	private static Logger logger = LoggerFactory.getLogger("PushService");
+	
+	private static final byte[] RESYNC = "{\"resync\":true}".getBytes();
+
 	private final WebsocketServlet websocketServlet;
 	private final CometServlet cometServlet;
-	private ObjectMapper mapper = new ObjectMapper();
+	private final String channel;
+	private final ScheduledExecutorService fanout;
+	private final long windowMillis;
+	// numbers the pushed changes, null if they are not recorded
+	private volatile SlabsChanges changes;
+	
+	// changes waiting for the end of the window, by document. Guarded by itself
+	private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+	private boolean flushScheduled = false;
+	
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+	
+	/**
+	 * Pushes to the channel of the default board
+	 */
+	public PushService(WebsocketServlet websocketServlet, CometServlet cometServlet, ScheduledExecutorService fanout, long windowMillis) {
+		this(websocketServlet, cometServlet, "", fanout, windowMillis);
+	}
 	
-	public PushService(WebsocketServlet websocketServlet, CometServlet cometServlet) {
+	/**
+	 * @param channel name of the board
+	 * @param fanout runs the fan-out of the changes, one at a time
+	 * @param windowMillis coalescing window, 0 to push each change at once
+	 */
+	public PushService(WebsocketServlet websocketServlet, CometServlet cometServlet, String channel,
+			ScheduledExecutorService fanout, long windowMillis) {
 		this.websocketServlet = websocketServlet;
 		this.cometServlet = cometServlet;
+		this.channel = channel;
+		this.fanout = fanout;
+		this.windowMillis = windowMillis;
+	}
+	
+	/**
+	 * @param changes the changes of the board, recorded before they are pushed
+	 */
+	public void setChanges(SlabsChanges changes) {
+		this.changes = changes;
+	}
+	
+	/**
+	 * @return a single threaded executor for the fan-out of the changes
+	 */
+	public static ScheduledExecutorService createFanoutExecutor() {
+		return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "minima-push");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Drops what is kept for the clients of the channel, when the board is closed
+	 */
+	public void close() {
+		cometServlet.removeChannel(channel);
+	}
+
+	/**
+	 * @return the number of clients connected to the channel
+	 */
+	public int getConnectionCount() {
+		return websocketServlet.getConnectionCount(channel) + cometServlet.getConnectionCount(channel);
 	}
 	
 	public void send(String sender, SlabsDoc doc) {
-		byte[] json = getUpdateJson(sender, doc);
-		this.websocketServlet.send(json);
-		this.cometServlet.send(json);
+		send(sender, doc, null);
+	}
+	
+	/**
+	 * @param previous the document before the change, null if unknown or new
+	 */
+	public void send(String sender, SlabsDoc doc, SlabsDoc previous) {
+		Set<String> topics = getTopics(doc, previous);
+		if (windowMillis > 0)
+			coalesce(doc.getTypeName(), doc.getId(), getUpdateJson(sender, doc), topics, sender);
+		else
+			push(getUpdateJson(sender, doc), topics, sender);
+	}
+	
+	/**
+	 * Sends all the documents in a single message
+	 */
+	public void sendAll(String sender, Iterable<SlabsDoc> docs) {
+		sendAll(sender, docs, null);
+	}
+	
+	/**
+	 * Sends all the documents in a single message, to the clients of any of their lists
+	 * @param previous the documents before the change, null if unknown
+	 */
+	public void sendAll(String sender, Iterable<SlabsDoc> docs, Iterable<SlabsDoc> previous) {
+		if (windowMillis > 0) {
+			for (SlabsDoc doc : docs) {
+				coalesce(doc.getTypeName(), doc.getId(), getUpdateJson(sender, doc), getTopics(doc, null), sender);
+			}
+			if (previous != null) {
+				// only to route the changes to the previous lists too
+				for (SlabsDoc doc : previous) {
+					coalesce(doc.getTypeName(), doc.getId(), null, getTopics(doc, null), sender);
+				}
+			}
+			return;
+		}
+		
+		Set<String> topics = new HashSet<String>();
+		for (SlabsDoc doc : docs) {
+			topics = union(topics, getTopics(doc, null));
+		}
+		if (previous != null) {
+			for (SlabsDoc doc : previous) {
+				topics = union(topics, getTopics(doc, null));
+			}
+		}
+		push(getBatchJson(sender, docs), topics, sender);
+	}
+	
+	public void sendDelete(String sender, String typeName, String id, int revision) {
+		sendDelete(sender, typeName, id, revision, null);
+	}
+	
+	/**
+	 * @param previous the document before it was deleted, null if unknown
+	 */
+	public void sendDelete(String sender, String typeName, String id, int revision, SlabsDoc previous) {
+		Set<String> topics = (previous == null) ? null : getTopics(previous, null);
+		if (windowMillis > 0)
+			coalesce(typeName, id, getDeleteJson(sender, typeName, id, revision), topics, sender);
+		else
+			push(getDeleteJson(sender, typeName, id, revision), topics, sender);
+	}
+	
+	/**
+	 * Tells a single client to read what it missed from the board
+	 * @param clientTag tag of the client, nothing is sent if null
+	 */
+	public void sendResync(final String clientTag) {
+		if (clientTag == null)
+			return;
+		fanout.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// comet clients that are not polling get it on the next poll
+					websocketServlet.sendTo(channel, clientTag, RESYNC);
+					cometServlet.sendTo(channel, clientTag, RESYNC);
+				}
+				catch (Exception e) {
+					logger.error("Exception while pushing to client " + clientTag, e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @return the lists a change is about, null if it is for all the clients
+	 */
+	static Set<String> getTopics(SlabsDoc doc, SlabsDoc previous) {
+		Set<String> topics = new HashSet<String>();
+		if (!addTopic(topics, doc))
+			return null;
+		if (previous != null && !addTopic(topics, previous))
+			return null;
+		return topics;
+	}
+	
+	private static boolean addTopic(Set<String> topics, SlabsDoc doc) {
+		if (doc instanceof Note && ((Note) doc).getList() != null) {
+			topics.add(((Note) doc).getList());
+			return true;
+		}
+		if (doc instanceof List && doc.getId() != null) {
+			topics.add(doc.getId());
+			return true;
+		}
+		return false;
+	}
+	
+	// null stands for all the topics
+	private static Set<String> union(Set<String> a, Set<String> b) {
+		if (a == null || b == null)
+			return null;
+		a.addAll(b);
+		return a;
+	}
+	
+	private void push(final byte[] json, final Set<String> topics, final String sender) {
+		fanout.execute(new Runnable() {
+			@Override
+			public void run() {
+				deliver(json, topics, sender);
+			}
+		});
+	}
+	
+	// runs in the fan-out executor
+	private void deliver(byte[] json, Set<String> topics, String sender) {
+		try {
+			websocketServlet.send(channel, topics, sender, json);
+			cometServlet.send(channel, topics, sender, json);
+		}
+		catch (Exception e) {
+			// keep the executor going for the next changes
+			logger.error("Exception while pushing to channel '" + channel + "'", e);
+		}
+	}
+	
+	/**
+	 * @param json the change, null to only add topics to a pending change
+	 */
+	private void coalesce(String typeName, String id, byte[] json, Set<String> topics, String sender) {
+		String key = typeName + ":" + id;
+		synchronized (pending) {
+			// the last revision takes the place of the last change, and goes
+			// to the clients of all the lists the document was in
+			Pending previous = pending.remove(key);
+			if (previous != null) {
+				topics = (topics == null) ? null : union(new HashSet<String>(topics), previous.topics);
+				if (json == null)
+					json = previous.json;
+			}
+			if (json == null)
+				return;
+			pending.put(key, new Pending(json, topics, sender));
+			if (flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		fanout.schedule(flush, windowMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private void flush() {
+		ArrayList<byte[]> changes = new ArrayList<byte[]>();
+		Set<String> topics = new HashSet<String>();
+		String sender = null;
+		synchronized (pending) {
+			for (Pending change : pending.values()) {
+				changes.add(change.json);
+				topics = union(topics, change.topics);
+				sender = (changes.size() == 1) ? change.sender : sameSender(sender, change.sender);
+			}
+			pending.clear();
+			flushScheduled = false;
+		}
+		if (changes.isEmpty())
+			return;
+		// a batch with changes from many clients goes to all of them
+		deliver(changes.size() == 1 ? changes.get(0) : getBatchJson(changes), topics, sender);
+	}
+	
+	private static String sameSender(String a, String b) {
+		return (a != null && a.equals(b)) ? a : null;
+	}
+	
+	// joins changes already encoded, each with its sender
+	private static byte[] getBatchJson(ArrayList<byte[]> changes) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			out.write("{\"batch\":[".getBytes("UTF-8"));
+			for (int i = 0; i < changes.size(); i++) {
+				if (i > 0)
+					out.write(',');
+				out.write(changes.get(i));
+			}
+			out.write("]}".getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	private byte[] getDeleteJson(String sender, String typeName, String id, int revision) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			JsonGenerator gen = SlabsCodec.createGenerator(out);
+			gen.writeStartObject();
+			gen.writeStringField("sender", sender);
+			writeSeq(gen, getSeq(id, revision));
+			gen.writeStringField("name", typeName);
+			gen.writeBooleanField("deleted", true);
+			gen.writeObjectFieldStart("obj");
+			gen.writeStringField("id", id);
+			gen.writeNumberField("revision", revision);
+			gen.writeEndObject();
+			gen.writeEndObject();
+			gen.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	private byte[] getBatchJson(String sender, Iterable<SlabsDoc> docs) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			JsonGenerator gen = SlabsCodec.createGenerator(out);
+			gen.writeStartObject();
+			gen.writeStringField("sender", sender);
+			SlabsChanges current = changes;
+			writeSeq(gen, (current == null) ? -1 : current.getPushSeq(docs));
+			gen.writeArrayFieldStart("batch");
+			for (SlabsDoc doc : docs) {
+				gen.writeStartObject();
+				gen.writeStringField("name", doc.getTypeName());
+				gen.writeFieldName("obj");
+				SlabsCodec.write(gen, doc);
+				gen.writeEndObject();
+			}
+			gen.writeEndArray();
+			gen.writeEndObject();
+			gen.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
 	}
 	
 	private byte[] getUpdateJson(String sender, SlabsDoc doc) {
-		ObjectNode root = mapper.createObjectNode();		
-		ObjectNode entity = doc.toJsonNode();
-		root.put("sender", sender);
-		root.put("name", doc.getTypeName());		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		try {
-			root.put("obj", entity);
-			return mapper.writeValueAsBytes(root);
-		} catch (Exception e) {
+			JsonGenerator gen = SlabsCodec.createGenerator(out);
+			gen.writeStartObject();
+			gen.writeStringField("sender", sender);
+			writeSeq(gen, getSeq(doc.getId(), doc.getRevision()));
+			gen.writeStringField("name", doc.getTypeName());
+			gen.writeFieldName("obj");
+			SlabsCodec.write(gen, doc);
+			gen.writeEndObject();
+			gen.close();
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		return out.toByteArray();
+	}
+	
+	// -1 if the change is not numbered
+	private long getSeq(String id, int revision) {
+		SlabsChanges current = changes;
+		return (current == null) ? -1 : current.getPushSeq(id, revision);
+	}
+	
+	private static void writeSeq(JsonGenerator gen, long seq) throws IOException {
+		if (seq >= 0)
+			gen.writeNumberField("seq", seq);
+	}
+	
+	private static final class Pending {
+		final byte[] json;
+		// null for all the clients
+		final Set<String> topics;
+		final String sender;
+		
+		Pending(byte[] json, Set<String> topics, String sender) {
+			this.json = json;
+			this.topics = topics;
+			this.sender = sender;
+		}
 	}
 	
 }
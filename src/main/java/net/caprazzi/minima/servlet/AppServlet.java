@@ -1,9 +1,6 @@
 package net.caprazzi.minima.servlet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -12,49 +9,49 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.caprazzi.minima.framework.BuildServices;
+import net.caprazzi.minima.framework.Bundle;
 import net.caprazzi.minima.framework.HttpUtils;
-import net.caprazzi.minima.framework.RequestInfo;
-
-import org.eclipse.jetty.http.HttpMethods;
+import net.caprazzi.minima.framework.Routes;
+import net.caprazzi.minima.framework.Routes.Match;
 
+/**
+ * Serves the rolled-up css, library and application files made at build
+ * time, already gzipped, and the original files for development.
+ * 
+ * The index links the rolled-up files by content hash, as app/libs/{hash}:
+ * those urls never change content, so they are cached for a year and
+ * browsers don't even ask again. A url with an old hash, from a page loaded
+ * before a restart, gets the current content without caching. Both answer
+ * If-None-Match with 304.
+ */
 @SuppressWarnings("serial")
 public class AppServlet extends HttpServlet {
 
+	private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
 	private final BuildServices service;
 	
-	private ByteArrayOutputStream gzipCss;
-	private ByteArrayOutputStream gzipMain;
-	private ByteArrayOutputStream gzipLibs;
-
-	private ByteArrayOutputStream plainLibs;
-	private ByteArrayOutputStream plainMain;
-	private ByteArrayOutputStream plainCss;
+	private final Routes<Bundle> routes = new Routes<Bundle>();
 
 	public AppServlet(BuildServices service) throws IOException {
 		this.service = service;
-		primeLibsCaches();
-		primeCssCaches();
-		primeMainCaches();
+		for (String name : new String[] { "css", "libs", "main" }) {
+			Bundle bundle = service.getBundle(name);
+			routes
+				.add("GET", "/app/" + name, bundle)
+				.add("GET", "/app/" + name + "/{hash}", bundle);
+		}
 	}
 
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
-				
-		if (info.isPath(req.getContextPath() + "/app/libs")) {
-			handleLibsRequest(req, resp);
-			return;
-		}
-		
-		if (info.isPath(req.getContextPath() + "/app/main")) {
-			handleMainRequest(req, resp);
-			return;
-		}
-		
-		if (info.isPath(req.getContextPath() + "/app/css")) {
-			handleCssRequest(req, resp);
+		Match<Bundle> match = routes.match(req);
+		if (match != null) {
+			Bundle bundle = match.getTarget();
+			boolean current = match.getPattern().endsWith("{hash}") && match.is("hash", bundle.getHash());
+			sendBundle(req, resp, bundle, current);
 			return;
 		}
 		
@@ -81,82 +78,49 @@ public class AppServlet extends HttpServlet {
 		out.close();
 	}
 	
-	private void handleLibsRequest(HttpServletRequest req,
-			HttpServletResponse resp) throws IOException {
-		resp.setContentType("application/json");
-		if (acceptGzip(req))
-			sendCompressed(gzipLibs, resp);
-		else
-			sendCache(plainLibs, resp);
-	}
-
-	private void handleCssRequest(HttpServletRequest req,
-			HttpServletResponse resp) throws IOException {
-		resp.setContentType("text/css");
-		if (acceptGzip(req))
-			sendCompressed(gzipCss, resp);
-		else
-			sendCache(plainCss, resp);
-	}
-	
-	private void handleMainRequest(HttpServletRequest req,
-			HttpServletResponse resp) throws IOException {
-		resp.setContentType("application/json");
-		if (acceptGzip(req))
-			sendCompressed(gzipMain, resp);
-		else
-			sendCache(gzipLibs, resp);
-	}
-	
-	private void primeLibsCaches() throws IOException {
-		plainLibs = new ByteArrayOutputStream();
-		service.writeProductionLibsData(plainLibs);
-		plainLibs.close();
+	/**
+	 * Sends a rolled-up file, or 304 if the client has it already
+	 * @param current true if the url has the hash of the file
+	 */
+	private void sendBundle(HttpServletRequest req, HttpServletResponse resp, 
+			Bundle bundle, boolean current) throws IOException {
 		
-		gzipLibs = new ByteArrayOutputStream();
-		OutputStream gzout = new GZIPOutputStream(gzipLibs);
-		plainLibs.writeTo(gzout);
-		gzout.close();
-	}
-	
-	private void primeMainCaches() throws IOException {
-		plainMain = new ByteArrayOutputStream();
-		service.writeProductionMainData(plainMain);
-		plainMain.close();
+		resp.setContentType(bundle.getContentType());
+		String hash = bundle.getHash();
+		boolean gzipped = HttpUtils.acceptsGzip(req);
+		// the two encodings are different entities
+		String etag = "\"" + hash + (gzipped ? "-gz" : "") + "\"";
 		
-		gzipMain = new ByteArrayOutputStream();
-		OutputStream gzout = new GZIPOutputStream(gzipMain);
-		plainMain.writeTo(gzout);
-		gzout.close();
-	}
-
-	private void primeCssCaches() throws IOException {
-		plainCss = new ByteArrayOutputStream();
-		service.writeProductionCssData(plainCss);
-		plainCss.close();
+		if (current) {
+			resp.setHeader("Cache-Control", IMMUTABLE);
+		}
+		else {
+			resp.setHeader("Cache-Control", "no-cache");
+		}
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Vary", "Accept-Encoding");
+		
+		if (HttpUtils.etagMatches(req, etag)) {
+			resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 		
-		gzipCss = new ByteArrayOutputStream();
-		OutputStream gzout = new GZIPOutputStream(gzipCss);
-		plainCss.writeTo(gzout);
-		gzout.close();
+		if (gzipped)
+			sendCompressed(bundle.getGzip(), resp);
+		else
+			sendCache(bundle.getPlain(), resp);
 	}
 	
-	private void sendCache(ByteArrayOutputStream cache, HttpServletResponse resp) throws IOException {
+	private void sendCache(byte[] cache, HttpServletResponse resp) throws IOException {
+		resp.setContentLength(cache.length);
 		ServletOutputStream out = resp.getOutputStream();
-		cache.writeTo(out);
+		out.write(cache);
 		out.close();
 	}
 	
-	private void sendCompressed(ByteArrayOutputStream cache, HttpServletResponse resp) throws IOException {
+	private void sendCompressed(byte[] cache, HttpServletResponse resp) throws IOException {
 		resp.setHeader("Content-Encoding","gzip");
 		sendCache(cache, resp);
 	}
 	
-	private boolean acceptGzip(HttpServletRequest req) {
-		String ae = req.getHeader("accept-encoding");
-        return ae != null 
-        		&& ae.indexOf("gzip")>=0 
-        		&& !HttpMethods.HEAD.equalsIgnoreCase(req.getMethod());
-	}
-	
 }
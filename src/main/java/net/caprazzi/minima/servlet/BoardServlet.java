@@ -0,0 +1,131 @@
+package net.caprazzi.minima.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.caprazzi.minima.service.Board;
+import net.caprazzi.minima.service.BoardRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves the boards of a BoardRegistry at /b/{board}/index, /b/{board}/data/...,
+ * /b/{board}/websocket, /b/{board}/comet and /b/{board}/events.
+ *
+ * The board is opened if needed and set as a request attribute, then the
+ * request is handed to the servlets that serve the default board. Boards
+ * are created by the first write to their data: any other request for a
+ * board that does not exist gets a 404.
+ */
+@SuppressWarnings("serial")
+public class BoardServlet extends HttpServlet {
+
+	private static Logger logger = LoggerFactory.getLogger("BoardServlet");
+
+	public static final String BOARD_ATTRIBUTE = "minima.board";
+
+	private final BoardRegistry registry;
+	private final IndexServlet indexServlet;
+	private final DataServlet dataServlet;
+	private final WebsocketServlet websocketServlet;
+	private final CometServlet cometServlet;
+	private final EventsServlet eventsServlet;
+
+	public BoardServlet(BoardRegistry registry, IndexServlet indexServlet, DataServlet dataServlet,
+			WebsocketServlet websocketServlet, CometServlet cometServlet, EventsServlet eventsServlet) {
+		this.registry = registry;
+		this.indexServlet = indexServlet;
+		this.dataServlet = dataServlet;
+		this.websocketServlet = websocketServlet;
+		this.cometServlet = cometServlet;
+		this.eventsServlet = eventsServlet;
+	}
+
+	/**
+	 * @return the board the request is for, null for the default board
+	 */
+	public static Board getBoard(HttpServletRequest req) {
+		return (Board) req.getAttribute(BOARD_ATTRIBUTE);
+	}
+
+	/**
+	 * @return the push channel of the board the request is for
+	 */
+	public static String getChannel(HttpServletRequest req) {
+		Board board = getBoard(req);
+		return (board == null) ? "" : board.getName();
+	}
+
+	/**
+	 * @return the path of the board the request is for, relative to the context
+	 */
+	public static String getBoardPath(HttpServletRequest req) {
+		Board board = getBoard(req);
+		return (board == null) ? "" : "/b/" + board.getName();
+	}
+
+	/**
+	 * @return the length of the path of the board, without making the path
+	 */
+	public static int getBoardPathLength(HttpServletRequest req) {
+		Board board = getBoard(req);
+		return (board == null) ? 0 : "/b/".length() + board.getName().length();
+	}
+
+	@Override
+	protected void service(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		// "", "b", board, rest of the path
+		String path = req.getRequestURI().substring(req.getContextPath().length());
+		String[] parts = path.split("/", 4);
+		if (parts.length < 3 || !BoardRegistry.isValidName(parts[2])) {
+			resp.sendError(404);
+			return;
+		}
+		String name = parts[2];
+		String rest = (parts.length > 3) ? parts[3] : "";
+
+		if (rest.length() == 0) {
+			resp.sendRedirect(req.getContextPath() + "/b/" + name + "/index");
+			return;
+		}
+
+		HttpServlet target = rest.equals("index") ? indexServlet
+				: (rest.equals("data") || rest.startsWith("data/")) ? dataServlet
+				: rest.equals("websocket") ? websocketServlet
+				: rest.equals("comet") ? cometServlet
+				: rest.equals("events") ? eventsServlet
+				: null;
+		if (target == null) {
+			resp.sendError(404);
+			return;
+		}
+
+		boolean write = (target == dataServlet) && req.getMethod().equals("PUT");
+		Board board;
+		try {
+			board = write ? registry.create(name) : registry.get(name);
+		}
+		catch (IOException e) {
+			logger.error("Error while opening board " + name, e);
+			resp.sendError(500);
+			return;
+		}
+		if (board == null) {
+			resp.sendError(404);
+			return;
+		}
+
+		req.setAttribute(BOARD_ATTRIBUTE, board);
+		target.service((ServletRequest) req, (ServletResponse) resp);
+	}
+
+}
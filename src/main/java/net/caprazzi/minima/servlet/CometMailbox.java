@@ -0,0 +1,232 @@
+package net.caprazzi.minima.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last messages pushed to a channel, for long polling clients.
+ *
+ * Messages are kept in a ring buffer and numbered in order. Each client
+ * keeps a cursor, the number of the last message it got, and reads all the
+ * messages after it at once. A client that waits for new messages
+ * registers a waiter, called once when the next message arrives.
+ *
+ * Clients get the cursor as epoch-number, where the epoch is the time the
+ * mailbox was created: a cursor from another mailbox, such as the one
+ * before a restart, is not taken for a cursor of this one.
+ *
+ * Each client reads through a Subscription: the messages of its topics,
+ * without the ones it sent and with the ones addressed to it. The cursor
+ * still moves past the other messages, and the client is not woken by them.
+ */
+class CometMailbox {
+
+	// the epoch of the last mailbox created
+	private static final AtomicLong epochs = new AtomicLong();
+
+	private final String epoch = Long.toString(nextEpoch());
+	private final Message[] ring;
+	// number of the last message, 0 before the first
+	private long last = 0;
+	// the waiters and what they read
+	private final LinkedHashMap<Runnable, Subscription> waiters = new LinkedHashMap<Runnable, Subscription>();
+
+	/**
+	 * @param capacity number of messages kept
+	 */
+	CometMailbox(int capacity) {
+		this.ring = new Message[capacity];
+	}
+
+	/**
+	 * @return the number of the last message
+	 */
+	synchronized long getCursor() {
+		return last;
+	}
+
+	/**
+	 * @return the cursor of a message number, as given to the clients
+	 */
+	String format(long cursor) {
+		return epoch + "-" + cursor;
+	}
+
+	/**
+	 * @return the message number of a cursor, or -1 if the cursor comes from
+	 * 	another mailbox, which makes the client resync
+	 * @throws NumberFormatException if the cursor is not valid
+	 */
+	long parse(String cursor) {
+		int sep = cursor.indexOf('-');
+		if (sep < 0)
+			throw new NumberFormatException("Invalid cursor " + cursor);
+		long number = Long.parseLong(cursor.substring(sep + 1));
+		if (sep != epoch.length() || !cursor.startsWith(epoch))
+			return -1;
+		return number;
+	}
+
+	/**
+	 * @return the number of clients waiting for a message
+	 */
+	synchronized int getWaiting() {
+		return waiters.size();
+	}
+
+	void publish(byte[] message) {
+		publish(null, null, null, message);
+	}
+
+	void publish(Set<String> topics, byte[] message) {
+		publish(topics, null, null, message);
+	}
+
+	/**
+	 * Adds a message, then calls the waiters that read it in the caller's thread
+	 * @param topics the topics of the message, null if it is for everybody
+	 * @param sender tag of the client that made the change, that does not get it
+	 * @param target tag of the only client that gets the message, null for all of them
+	 */
+	void publish(Set<String> topics, String sender, String target, byte[] message) {
+		ArrayList<Runnable> woken = new ArrayList<Runnable>();
+		synchronized (this) {
+			last++;
+			ring[index(last)] = new Message(message, topics, sender, target);
+			Iterator<Map.Entry<Runnable, Subscription>> it = waiters.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Runnable, Subscription> waiter = it.next();
+				if (waiter.getValue().accepts(topics, sender, target)) {
+					woken.add(waiter.getKey());
+					it.remove();
+				}
+			}
+		}
+		for (Runnable waiter : woken) {
+			waiter.run();
+		}
+	}
+
+	/**
+	 * Reads the messages after a cursor
+	 */
+	Batch read(long cursor) {
+		return read(cursor, Subscription.ALL);
+	}
+
+	/**
+	 * Reads the messages of some topics after a cursor
+	 * @param topics the topics, null for all the messages
+	 */
+	Batch read(long cursor, Set<String> topics) {
+		return read(cursor, new Subscription(topics, null));
+	}
+
+	/**
+	 * Reads the messages for a client after a cursor
+	 */
+	synchronized Batch read(long cursor, Subscription subscription) {
+		if (!isKept(cursor))
+			return new Batch(last, Collections.<byte[]>emptyList(), true);
+
+		ArrayList<byte[]> messages = new ArrayList<byte[]>();
+		for (long i = cursor + 1; i <= last; i++) {
+			Message message = ring[index(i)];
+			if (message.isFor(subscription))
+				messages.add(message.data);
+		}
+		return new Batch(last, messages, false);
+	}
+
+	boolean await(long cursor, Runnable waiter) {
+		return await(cursor, Subscription.ALL, waiter);
+	}
+
+	boolean await(long cursor, Set<String> topics, Runnable waiter) {
+		return await(cursor, new Subscription(topics, null), waiter);
+	}
+
+	/**
+	 * Registers a waiter, if there are no messages for the client after the cursor
+	 * @return false if there are messages to read already, or the client
+	 * 	must resync, and the waiter was not registered
+	 */
+	synchronized boolean await(long cursor, Subscription subscription, Runnable waiter) {
+		if (!isKept(cursor))
+			return false;
+		for (long i = cursor + 1; i <= last; i++) {
+			if (ring[index(i)].isFor(subscription))
+				return false;
+		}
+		waiters.put(waiter, subscription);
+		return true;
+	}
+
+	/**
+	 * Removes a waiter
+	 * @return false if the waiter was already called or removed
+	 */
+	synchronized boolean cancel(Runnable waiter) {
+		if (!waiters.containsKey(waiter))
+			return false;
+		waiters.remove(waiter);
+		return true;
+	}
+
+	// true if all the messages after the cursor are still in the ring
+	private boolean isKept(long cursor) {
+		long oldest = Math.max(1, last - ring.length + 1);
+		return cursor <= last && cursor >= oldest - 1;
+	}
+
+	private int index(long i) {
+		return (int) (i % ring.length);
+	}
+
+	// the current time, or later if a mailbox was created in the same millisecond
+	private static long nextEpoch() {
+		while (true) {
+			long last = epochs.get();
+			long next = Math.max(System.currentTimeMillis(), last + 1);
+			if (epochs.compareAndSet(last, next))
+				return next;
+		}
+	}
+
+	private static final class Message {
+		final byte[] data;
+		final Set<String> topics;
+		final String sender;
+		final String target;
+
+		Message(byte[] data, Set<String> topics, String sender, String target) {
+			this.data = data;
+			this.topics = topics;
+			this.sender = sender;
+			this.target = target;
+		}
+
+		boolean isFor(Subscription subscription) {
+			return subscription.accepts(topics, sender, target);
+		}
+	}
+
+	static final class Batch {
+		final long cursor;
+		final List<byte[]> messages;
+		// the client missed messages no longer kept
+		final boolean resync;
+
+		Batch(long cursor, List<byte[]> messages, boolean resync) {
+			this.cursor = cursor;
+			this.messages = messages;
+			this.resync = resync;
+		}
+	}
+}
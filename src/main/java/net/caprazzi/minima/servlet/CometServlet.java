@@ -1,78 +1,99 @@
 package net.caprazzi.minima.servlet;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
+import java.io.OutputStream;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
-import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.caprazzi.minima.servlet.CometMailbox.Batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long polling clients, grouped by channel: one channel per board,
+ * the empty channel for the default board.
+ *
+ * Each channel keeps its last messages in a CometMailbox. A client polls
+ * with the cursor of the last message it got, and gets all the messages
+ * after it in one response: at once if there are any, else as soon as the
+ * next one is pushed. A client without a cursor waits for the next message.
+ * A client that polls with lists=id,id,... only gets the messages of those
+ * lists. A client that polls with its tag=... does not get back the changes
+ * it made, and gets the messages sent to it alone.
+ *
+ * 	{ "cursor": string, "messages": [ message, message, ... ] }
+ *
+ * A client whose cursor is no longer in the mailbox, or comes from another
+ * mailbox, gets { "cursor": string, "resync": true } and must read what
+ * it missed from the board. The mailbox of a board is dropped when the
+ * board is closed, and the next one starts a new epoch.
+ */
 @SuppressWarnings("serial")
 @WebServlet(asyncSupported = true)
 public class CometServlet extends HttpServlet {
 
-	private Map<String, AsyncContext> asyncContexts = new ConcurrentHashMap<String, AsyncContext>();
+	private static Logger logger = LoggerFactory.getLogger("CometServlet");
 
-	private BlockingQueue<byte[]> messages = new LinkedBlockingQueue<byte[]>();
+	public static final int CAPACITY = 1024;
 
-	public void send(byte[] data) {
-		for (AsyncContext asyncContext : asyncContexts.values()) {
-			try {
-				messages.put(data);
-			} catch (Exception e) {
-				e.printStackTrace();
-				asyncContexts.values().remove(asyncContext);
-			}
-		}
+	private static final long TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+	private final ConcurrentHashMap<String, CometMailbox> channels = new ConcurrentHashMap<String, CometMailbox>();
+
+	public void send(String channel, byte[] data) {
+		send(channel, null, null, data);
 	}
 
-	@Override
-	public void init(ServletConfig config) throws ServletException {
-		super.init(config);
-		notifier.start();
+	public void send(String channel, Set<String> topics, byte[] data) {
+		send(channel, topics, null, data);
 	}
 
-	private Thread notifier = new Thread(new Runnable() {
-
-		@Override
-		public void run() {
-			boolean done = false;
-			while (!done) {
-				try {
-					String message = new String(messages.take());
-					for (AsyncContext asyncContext : asyncContexts.values()) {
-						try {
-							PrintWriter writer = asyncContext.getResponse().getWriter();
-							writer.print(message);
-							try {
-								asyncContext.complete();
-								writer.flush();
-								asyncContexts.values().remove(asyncContext);
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-					}
-				} catch (InterruptedException e) {
-					done = true;
-				}
-			}
-		}
+	/**
+	 * @param topics the lists the message is about, null for all the clients
+	 * @param sender tag of the client that made the change, which does not get it
+	 */
+	public void send(String channel, Set<String> topics, String sender, byte[] data) {
+		// nobody ever polled the channel
+		CometMailbox mailbox = channels.get(channel);
+		if (mailbox != null)
+			mailbox.publish(topics, sender, null, data);
+	}
 
-	});
+	/**
+	 * Sends a message to a single client, when it polls next
+	 */
+	public void sendTo(String channel, String tag, byte[] data) {
+		CometMailbox mailbox = channels.get(channel);
+		if (mailbox != null)
+			mailbox.publish(null, null, tag, data);
+	}
+
+	/**
+	 * Drops the messages kept for a channel. Clients that poll it again
+	 * have a cursor of the dropped mailbox, and resync.
+	 */
+	public void removeChannel(String channel) {
+		channels.remove(channel);
+	}
+
+	/**
+	 * @return the number of clients waiting on the channel
+	 */
+	public int getConnectionCount(String channel) {
+		CometMailbox mailbox = channels.get(channel);
+		return (mailbox == null) ? 0 : mailbox.getWaiting();
+	}
 
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
@@ -86,37 +107,104 @@ public class CometServlet extends HttpServlet {
 		// Access-Control-Allow-Origin header
 		resp.setHeader("Access-Control-Allow-Origin", "*");
 
-		// Id
+		final CometMailbox mailbox = getMailbox(BoardServlet.getChannel(req));
+		final Subscription subscription = new Subscription(
+				Subscribers.parse(req.getParameter("lists")), req.getParameter("tag"));
+
+		final long cursor;
+		String cursorParam = req.getParameter("cursor");
+		try {
+			cursor = (cursorParam == null || cursorParam.length() == 0)
+					? mailbox.getCursor()
+					: mailbox.parse(cursorParam);
+		}
+		catch (NumberFormatException e) {
+			resp.sendError(400, "Invalid cursor " + cursorParam);
+			return;
+		}
 
-		final String id = UUID.randomUUID().toString();
 		final AsyncContext ac = req.startAsync(req, resp);
-		ac.setTimeout(30 * 60 * 1000);
+		ac.setTimeout(TIMEOUT_MILLIS);
+
+		final Runnable waiter = new Runnable() {
+			@Override
+			public void run() {
+				// called by the thread that pushed the message
+				ac.start(new Runnable() {
+					@Override
+					public void run() {
+						reply(ac, mailbox, mailbox.read(cursor, subscription));
+					}
+				});
+			}
+		};
+
 		ac.addListener(new AsyncListener() {
 
 			@Override
 			public void onTimeout(AsyncEvent event) throws IOException {
-				log("on timeout");
-				asyncContexts.remove(id);
+				// nothing new: the client polls again with the same cursor
+				if (mailbox.cancel(waiter))
+					reply(ac, mailbox, mailbox.read(cursor, subscription));
 			}
 
 			@Override
-			public void onStartAsync(AsyncEvent event) throws IOException {
-				log("on start");
-			}
+			public void onStartAsync(AsyncEvent event) throws IOException {}
 
 			@Override
 			public void onError(AsyncEvent event) throws IOException {
-				log("on error");
-				asyncContexts.remove(id);
+				mailbox.cancel(waiter);
 			}
 
 			@Override
 			public void onComplete(AsyncEvent event) throws IOException {
-				log("on complete");
-				asyncContexts.remove(id);
+				mailbox.cancel(waiter);
 			}
 		});
 
-		asyncContexts.put(id, ac);
+		// the client is behind: no need to wait
+		if (!mailbox.await(cursor, subscription, waiter))
+			reply(ac, mailbox, mailbox.read(cursor, subscription));
+	}
+
+	CometMailbox getMailbox(String channel) {
+		CometMailbox mailbox = channels.get(channel);
+		if (mailbox == null) {
+			CometMailbox created = new CometMailbox(CAPACITY);
+			mailbox = channels.putIfAbsent(channel, created);
+			if (mailbox == null)
+				mailbox = created;
+		}
+		return mailbox;
+	}
+
+	private static void reply(AsyncContext ac, CometMailbox mailbox, Batch batch) {
+		try {
+			write(ac.getResponse(), mailbox, batch);
+		} catch (Exception e) {
+			logger.warn("Could not reply to comet client: " + e.getMessage());
+		}
+		finally {
+			ac.complete();
+		}
+	}
+
+	static void write(ServletResponse resp, CometMailbox mailbox, Batch batch) throws IOException {
+		OutputStream out = resp.getOutputStream();
+		out.write(("{\"cursor\":\"" + mailbox.format(batch.cursor) + "\"").getBytes("UTF-8"));
+		if (batch.resync) {
+			out.write(",\"resync\":true}".getBytes("UTF-8"));
+		}
+		else {
+			// the messages are json already
+			out.write(",\"messages\":[".getBytes("UTF-8"));
+			for (int i = 0; i < batch.messages.size(); i++) {
+				if (i > 0)
+					out.write(',');
+				out.write(batch.messages.get(i));
+			}
+			out.write("]}".getBytes("UTF-8"));
+		}
+		out.flush();
 	}
 }
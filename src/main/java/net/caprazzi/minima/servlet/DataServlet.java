@@ -4,7 +4,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -12,18 +12,32 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.caprazzi.minima.framework.RequestInfo;
+import net.caprazzi.minima.framework.HttpUtils;
+import net.caprazzi.minima.framework.Routes;
+import net.caprazzi.minima.framework.Routes.Match;
 import net.caprazzi.minima.model.List;
 import net.caprazzi.minima.model.Note;
+import net.caprazzi.minima.service.Board;
+import net.caprazzi.minima.service.BoardCache;
+import net.caprazzi.minima.service.BoardCache.EncodedBoard;
 import net.caprazzi.minima.service.PushService;
 import net.caprazzi.slabs.Slabs;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsChanges.Change;
+import net.caprazzi.slabs.SlabsCodec;
 import net.caprazzi.slabs.SlabsDoc;
 import net.caprazzi.slabs.SlabsException;
-import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
 import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsRecord;
 
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.ObjectNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,96 +47,322 @@ public class DataServlet extends HttpServlet {
 
 	private static Logger logger = LoggerFactory.getLogger("MinimaServlet");
 	
+	private static final int ARCHIVE_PAGE = 50;
+	private static final int ARCHIVE_PAGE_MAX = 200;
+	
+	private enum Target { BOARD, STORY, LIST, ARCHIVE, CHANGES, BATCH }
+	
+	// paths under the root of the board
+	private static final Routes<Target> routes = new Routes<Target>()
+		.add("GET", "/data/stories", Target.BOARD)
+		.add("GET", "/data/stories/{id}", Target.STORY)
+		.add("GET", "/data/lists/{id}", Target.LIST)
+		.add("GET", "/data/archive", Target.ARCHIVE)
+		.add("GET", "/data/changes", Target.CHANGES)
+		.add("PUT", "/data/batch", Target.BATCH)
+		.add("PUT", "/data/stories/{id}/{revision:int}", Target.STORY)
+		.add("PUT", "/data/lists/{id}/{revision:int}", Target.LIST)
+		.add("DELETE", "/data/stories/{id}/{revision:int}", Target.STORY)
+		.add("DELETE", "/data/lists/{id}/{revision:int}", Target.LIST);
+	
 	private final String webroot;
-	private final Slabs db;
-
-	private final PushService pushService;
+	private final Board defaultBoard;
 
-	public DataServlet(String webroot, Slabs db, PushService pushService) {
+	/**
+	 * @param defaultBoard the board served at webroot/data. Requests for other
+	 * 	boards come through BoardServlet, that tells which board they are for
+	 */
+	public DataServlet(String webroot, Board defaultBoard) {
 		this.webroot = webroot;
-		this.db = db;
-		this.pushService = pushService;
+		this.defaultBoard = defaultBoard;
+	}
+	
+	private Board getBoard(HttpServletRequest req) {
+		Board board = BoardServlet.getBoard(req);
+		return (board == null) ? defaultBoard : board;
 	}
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
-		if (info.isPath(webroot + "/data/stories")) {
-			sendBoard(resp);
+		Board board = getBoard(req);
+		Match<Target> match = routes.match(req, webroot, BoardServlet.getBoardPathLength(req));
+		if (match == null) {
+			sendError(resp, 404, "not found");
+			return;
+		}
+		
+		switch (match.getTarget()) {
+		case BOARD:
+			sendBoard(board.getCache(), req, resp);
+			return;
+		case STORY:
+			sendDocument(board.getDb(), match.get("id"), Note.class, resp);
+			return;
+		case LIST:
+			sendDocument(board.getDb(), match.get("id"), List.class, resp);
+			return;
+		case ARCHIVE:
+			sendArchive(board.getDb(), req, resp);
+			return;
+		case CHANGES:
+			sendChanges(board, req, resp);
 			return;
+		default:
+			sendError(resp, 404, "not found");
 		}
-		sendError(resp, 404, "not found");
 	}
 	
-	private void sendBoard(final HttpServletResponse resp) {
-		db.list(new SlabsList() {
-
+	private void sendArchive(Slabs db, HttpServletRequest req, final HttpServletResponse resp) {
+		int limit = ARCHIVE_PAGE;
+		String limitParam = req.getParameter("limit");
+		if (limitParam != null) {
+			try {
+				limit = Math.min(Integer.parseInt(limitParam), ARCHIVE_PAGE_MAX);
+			} catch (NumberFormatException e) {
+				limit = 0;
+			}
+			if (limit < 1) {
+				sendError(resp, 400, "invalid limit");
+				return;
+			}
+		}
+		
+		db.listArchived(req.getParameter("after"), limit, new SlabsPage() {
+			
 			@Override
-			public void entries(Iterable<SlabsDoc> docs) {
-				
-				final HashMap<String, List> lists = new HashMap<String,List>();
-				final ArrayList<Note> notes = new ArrayList<Note>();
-				
-				for (SlabsDoc doc : docs) {
-					if (doc.getTypeName().equals("list")) {
-						List list = (List)doc;
-						if (!list.isArchived())
-							lists.put(list.getId(), list);
-					}
-					else if (doc.getTypeName().equals("story")) {
-						Note note = (Note)doc;
-						if (!note.isArchived())
-						notes.add(note);
+			public void page(Iterable<SlabsRecord> records, String next) {
+				resp.setStatus(200);
+				resp.setContentType("application/json");
+				resp.setHeader("Cache-Control", "no-cache");
+				try {
+					OutputStream out = resp.getOutputStream();
+					JsonGenerator gen = SlabsCodec.createGenerator(out);
+					gen.writeStartObject();
+					gen.writeArrayFieldStart("items");
+					for (SlabsRecord record : records) {
+						gen.writeStartObject();
+						gen.writeStringField("name", record.getTypeName());
+						gen.writeFieldName("obj");
+						record.writeTo(gen);
+						gen.writeEndObject();
 					}
+					gen.writeEndArray();
+					gen.writeStringField("next", next);
+					gen.writeEndObject();
+					gen.close();
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
 				}
-				
-				ObjectMapper mapper = new ObjectMapper();
-				ObjectNode root = mapper.createObjectNode();
-				
-				ArrayNode listsNode = mapper.createArrayNode();
-				root.put("lists", listsNode);
-				for (List list : lists.values()) {
-					listsNode.add(list.toJsonNode());
-				}
-				
-				ArrayNode notesNode = mapper.createArrayNode();
-				root.put("stories", notesNode);
-				for (Note note : notes) {
-					if (lists.containsKey(note.getList()))
-					notesNode.add(note.toJsonNode());
-				}								
-			
-				try {					
-					resp.setContentType("application/json");
-					ServletOutputStream out = resp.getOutputStream();
-					mapper.writeValue(out, root);
-					out.close();
-				} catch (Exception e) {
-					throw new RuntimeException(e);
+			}
+			
+			@Override
+			public void error(SlabsException e) {
+				if (e.getCause() instanceof IllegalArgumentException) {
+					sendError(resp, 400, "invalid cursor");
+					return;
 				}
+				logger.error("Error while reading archive", e);
+				sendError(resp, 500, "Internal Server Error");
 			}
-
+			
 			@Override
-			public void error(SlabsException ex) {
-				sendError(resp, 500, "Internal Serverl Error");
-				ex.getCause().printStackTrace();
+			public void applicationError(SlabsException ex) {
+				sendError(resp, 500, "Internal Server Error");
 			}
-
+		});
+	}
+	
+	/**
+	 * Sends the current revision of the documents changed after the sequence
+	 * number in the since parameter, or tells the client to load the whole board
+	 */
+	private void sendChanges(Board board, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		long since;
+		try {
+			since = Long.parseLong(req.getParameter("since"));
+		} catch (NumberFormatException e) {
+			sendError(resp, 400, "invalid since");
+			return;
+		}
+		
+		SlabsChanges changes = board.getChanges();
+		ArrayList<Change> found = (changes == null) ? null : changes.since(since);
+		
+		resp.setStatus(200);
+		resp.setContentType("application/json");
+		resp.setHeader("Cache-Control", "no-cache");
+		
+		if (found == null) {
+			JsonGenerator gen = SlabsCodec.createGenerator(resp.getOutputStream());
+			gen.writeStartObject();
+			gen.writeNumberField("seq", (changes == null) ? 0 : changes.getSeq());
+			gen.writeBooleanField("resync", true);
+			gen.writeEndObject();
+			gen.close();
+			return;
+		}
+		
+		// only the last change of each document, in the order of the changes
+		LinkedHashMap<String, Change> last = new LinkedHashMap<String, Change>();
+		for (Change change : found) {
+			last.remove(change.getKey());
+			last.put(change.getKey(), change);
+		}
+		
+		// read them all before writing, to send an error if any can't be read
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>(last.size());
+		for (Change change : last.values()) {
+			try {
+				docs.add(change.isDeleted() ? null : readDocument(board.getDb(), change.getKey()));
+			} catch (SlabsException e) {
+				logger.error("Error while reading changed item " + change.getKey(), e);
+				sendError(resp, 500, "Internal Server Error");
+				return;
+			}
+		}
+		
+		JsonGenerator gen = SlabsCodec.createGenerator(resp.getOutputStream());
+		gen.writeStartObject();
+		gen.writeNumberField("seq", found.isEmpty() ? since : found.get(found.size() - 1).getSeq());
+		gen.writeArrayFieldStart("items");
+		int i = 0;
+		for (Change change : last.values()) {
+			SlabsDoc doc = docs.get(i++);
+			gen.writeStartObject();
+			gen.writeStringField("name", change.getTypeName());
+			if (doc == null) {
+				// deleted since, as the client would have been told by a push
+				gen.writeBooleanField("deleted", true);
+				gen.writeObjectFieldStart("obj");
+				gen.writeStringField("id", change.getKey());
+				gen.writeNumberField("revision", change.getRevision());
+				gen.writeEndObject();
+			}
+			else {
+				gen.writeFieldName("obj");
+				SlabsCodec.write(gen, doc);
+			}
+			gen.writeEndObject();
+		}
+		gen.writeEndArray();
+		gen.writeEndObject();
+		gen.close();
+	}
+	
+	/**
+	 * @return the document, null if it was deleted
+	 * @throws SlabsException if the document could not be read
+	 */
+	private static SlabsDoc readDocument(Slabs db, String id) {
+		final SlabsDoc[] found = new SlabsDoc[1];
+		final SlabsException[] failure = new SlabsException[1];
+		db.get(id, new SlabsGet() {
+			
 			@Override
-			public void notFound() {
-				sendError(resp, 500, "Internal Serverl Error");
+			public void found(SlabsDoc doc) {
+				found[0] = doc;
+			}
+			
+			@Override
+			public void notFound(String id) {}
+			
+			@Override
+			public void error(String id, SlabsException e) {
+				failure[0] = e;
 			}
 			
 			@Override
 			public void applicationError(SlabsException ex) {
-				sendError(resp, 500, "Internal Serverl Error");
-				ex.getCause().printStackTrace();
+				failure[0] = ex;
 			}
+		});
+		if (failure[0] != null)
+			throw failure[0];
+		return found[0];
+	}
+	
+	/**
+	 * Reads a document before it is changed, to push the change to the
+	 * clients of the list it was in
+	 * @return the document, null if it does not exist or could not be read
+	 */
+	private static SlabsDoc readPrevious(Slabs db, String id) {
+		try {
+			return readDocument(db, id);
+		}
+		catch (SlabsException e) {
+			logger.warn("Could not read document " + id + " before changing it: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private void sendDocument(Slabs db, String id, final Class<? extends SlabsDoc> type, final HttpServletResponse resp) {
+		db.get(id, new SlabsGet() {
 			
+			@Override
+			public void found(SlabsDoc doc) {
+				if (type.isInstance(doc))
+					sendDoc(resp, 200, doc);
+				else
+					sendError(resp, 404, "not found");
+			}
+			
+			@Override
+			public void notFound(String id) {
+				sendError(resp, 404, "not found");
+			}
+			
+			@Override
+			public void error(String id, SlabsException e) {
+				logger.error("Error while reading item " + id, e);
+				sendError(resp, 500, "Internal Server Error");
+			}
+			
+			@Override
+			public void applicationError(SlabsException ex) {
+				sendError(resp, 500, "Internal Server Error");
+			}
 		});
 	}
+	
+	private void sendBoard(BoardCache boards, HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		EncodedBoard board;
+		try {
+			board = boards.getBoard();
+		}
+		catch (SlabsException ex) {
+			logger.error("Error while loading board", ex);
+			sendError(resp, 500, "Internal Server Error");
+			return;
+		}
+		
+		boolean gzipped = HttpUtils.acceptsGzip(req);
+		// the two encodings are different entities
+		String etag = gzipped 
+				? board.getETag().substring(0, board.getETag().length() - 1) + "-gz\""
+				: board.getETag();
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setHeader("Vary", "Accept-Encoding");
+		
+		if (HttpUtils.etagMatches(req, etag)) {
+			resp.setStatus(304);
+			return;
+		}
+		
+		resp.setContentType("application/json");
+		byte[] data = board.getPlain();
+		if (gzipped) {
+			resp.setHeader("Content-Encoding", "gzip");
+			data = board.getGzip();
+		}
+		resp.setContentLength(data.length);
+		ServletOutputStream out = resp.getOutputStream();
+		out.write(data);
+		out.close();
+	}
 
 	@Override
 	protected void doPut(HttpServletRequest req, final HttpServletResponse resp)
@@ -133,37 +373,56 @@ public class DataServlet extends HttpServlet {
 			return;
 		}
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
+		Board board = getBoard(req);
 		String senderTag = req.getHeader("X-CLIENT-TAG");
+		Match<Target> match = routes.match(req, webroot, BoardServlet.getBoardPathLength(req));
+		if (match == null) {
+			sendError(resp, 404, "not found");
+			return;
+		}
 		
-		if (info.isPath(webroot + "/data/stories/_/_")) {
-			String id = info.get(-2);
-			int revision = Integer.parseInt(info.get(-1));		
+		switch (match.getTarget()) {
+		case BATCH:
+			ArrayList<SlabsDoc> docs;
+			try {
+				docs = readBatch(req);
+			}
+			catch (IllegalArgumentException e) {
+				sendError(resp, 400, e.getMessage());
+				return;
+			}
+			saveAll(board, senderTag, docs, resp);
+			return;
+		case STORY: {
+			String id = match.get("id");
+			int revision = match.getInt("revision");
 			SlabsDoc note = Note.fromJson(req.getInputStream());
-			save(senderTag, id, revision, note, resp);
+			save(board, senderTag, id, revision, note, resp);
 			return;
 		}
-		
-		if (info.isPath(webroot + "/data/lists/_/_")) {
-			String id = info.get(-2);
-			int revision = Integer.parseInt(info.get(-1));
+		case LIST: {
+			String id = match.get("id");
+			int revision = match.getInt("revision");
 			List list = List.fromJson(req.getInputStream());
-			save(senderTag, id, revision, list, resp);
+			save(board, senderTag, id, revision, list, resp);
 			return;
 		}
-		
-		sendError(resp, 404, "not found");
+		default:
+			sendError(resp, 404, "not found");
+		}
 	}
 	
-	private void save(final String sender, String id, int revision, SlabsDoc doc, final HttpServletResponse resp) {
+	private void save(Board board, final String sender, String id, int revision, SlabsDoc doc, final HttpServletResponse resp) {
+		final PushService pushService = board.getPushService();
+		final SlabsDoc previous = readPrevious(board.getDb(), id);
 		doc.setId(id);
 		doc.setRevision(revision);
-		db.put(doc, new SlabsPut() {
+		board.getDb().put(doc, new SlabsPut() {
 
 			@Override
 			public void ok(SlabsDoc doc) {
 				sendDoc(resp, 201, doc);
-				pushService.send(sender, doc);
+				pushService.send(sender, doc, previous);
 			}
 
 			@Override
@@ -172,6 +431,8 @@ public class DataServlet extends HttpServlet {
 						"was expecting revision " + foundRev);
 				sendError(resp, 409, "Could not update item ["+id+"@"+yourRev+"]: " +
 						"was expecting revision " + foundRev);
+				// the client has a stale copy of the board
+				pushService.sendResync(sender);
 			}
 
 			@Override
@@ -188,8 +449,203 @@ public class DataServlet extends HttpServlet {
 		});
 	}
 
+	/**
+	 * Reads a batch of documents: { "items": [ { "name": "story" | "list", "obj": { ... } }, ... ] }
+	 * @throws IllegalArgumentException if the batch is not valid
+	 */
+	private static ArrayList<SlabsDoc> readBatch(HttpServletRequest req) throws IOException {
+		ObjectMapper mapper = SlabsCodec.getMapper();
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>();
+		try {
+			JsonNode items = mapper.readValue(req.getInputStream(), JsonNode.class).get("items");
+			if (items == null || !items.isArray())
+				throw new IllegalArgumentException("batch without items");
+			
+			for (JsonNode item : items) {
+				String name = item.path("name").getTextValue();
+				JsonNode obj = item.get("obj");
+				Class<? extends SlabsDoc> type = "story".equals(name) ? Note.class
+						: "list".equals(name) ? List.class
+						: null;
+				if (type == null || obj == null)
+					throw new IllegalArgumentException("invalid batch item");
+				
+				SlabsDoc doc = mapper.readValue(obj, type);
+				if (doc.getId() == null)
+					throw new IllegalArgumentException("batch item without id");
+				docs.add(doc);
+			}
+		}
+		catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("invalid json");
+		}
+		if (docs.isEmpty())
+			throw new IllegalArgumentException("empty batch");
+		return docs;
+	}
+	
+	private void saveAll(Board board, final String sender, ArrayList<SlabsDoc> docs, final HttpServletResponse resp) {
+		final PushService pushService = board.getPushService();
+		final ArrayList<SlabsDoc> previous = new ArrayList<SlabsDoc>();
+		for (SlabsDoc doc : docs) {
+			SlabsDoc found = readPrevious(board.getDb(), doc.getId());
+			if (found != null)
+				previous.add(found);
+		}
+		board.getDb().putAll(docs, new SlabsPutAll() {
+			
+			@Override
+			public void ok(Iterable<SlabsDoc> docs) {
+				resp.setStatus(200);
+				resp.setContentType("application/json");
+				try {
+					OutputStream out = resp.getOutputStream();
+					JsonGenerator gen = SlabsCodec.createGenerator(out);
+					gen.writeStartObject();
+					gen.writeArrayFieldStart("items");
+					for (SlabsDoc doc : docs) {
+						gen.writeStartObject();
+						gen.writeStringField("name", doc.getTypeName());
+						gen.writeFieldName("obj");
+						SlabsCodec.write(gen, doc);
+						gen.writeEndObject();
+					}
+					gen.writeEndArray();
+					gen.writeEndObject();
+					gen.close();
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+				pushService.sendAll(sender, docs, previous);
+			}
+			
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				logger.warn("Collision while updating batch at item ["+id+"@"+yourRev+"]: " +
+						"was expecting revision " + foundRev);
+				sendError(resp, 409, "Could not update item ["+id+"@"+yourRev+"]: " +
+						"was expecting revision " + foundRev);
+				// the client has a stale copy of the board
+				pushService.sendResync(sender);
+			}
+			
+			@Override
+			public void error(SlabsException e) {
+				logger.error("Error while updating batch", e);
+				sendError(resp, 500, "Internal Server Error");
+			}
+			
+			@Override
+			public void applicationError(SlabsException ex) {
+				sendError(resp, 500, "Internal Server Error");
+			}
+		});
+	}
+
+	@Override
+	protected void doDelete(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		
+		if (req.getAttribute("minima.readonly").equals(true)) {
+			sendError(resp, 403, "not authorised");
+			return;
+		}
+		
+		Board board = getBoard(req);
+		String senderTag = req.getHeader("X-CLIENT-TAG");
+		Match<Target> match = routes.match(req, webroot, BoardServlet.getBoardPathLength(req));
+		if (match == null) {
+			sendError(resp, 404, "not found");
+			return;
+		}
+		
+		switch (match.getTarget()) {
+		case STORY:
+			delete(board, senderTag, "story", Note.class, match.get("id"), match.getInt("revision"), resp);
+			return;
+		case LIST:
+			delete(board, senderTag, "list", List.class, match.get("id"), match.getInt("revision"), resp);
+			return;
+		default:
+			sendError(resp, 404, "not found");
+		}
+	}
+	
+	private void delete(Board board, final String sender, final String typeName, Class<? extends SlabsDoc> type, 
+			String id, int revision, final HttpServletResponse resp) {
+		final PushService pushService = board.getPushService();
+		final SlabsDoc previous;
+		try {
+			previous = readDocument(board.getDb(), id);
+		}
+		catch (SlabsException e) {
+			logger.error("Error while reading item " + id, e);
+			sendError(resp, 500, "Internal Server Error");
+			return;
+		}
+		
+		// a story is not deleted as a list, nor the other way around
+		if (previous == null || !type.isInstance(previous)) {
+			sendError(resp, 404, "not found");
+			return;
+		}
+		
+		board.getDb().delete(id, revision, new SlabsDelete() {
+			
+			@Override
+			public void ok(String id, int revision) {
+				sendDeleted(resp, id, revision);
+				pushService.sendDelete(sender, typeName, id, revision, previous);
+			}
+			
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				logger.warn("Collision while deleting item ["+id+"@"+yourRev+"]: " +
+						"was expecting revision " + foundRev);
+				sendError(resp, 409, "Could not delete item ["+id+"@"+yourRev+"]: " +
+						"was expecting revision " + foundRev);
+				// the client has a stale copy of the board
+				pushService.sendResync(sender);
+			}
+			
+			@Override
+			public void notFound(String id) {
+				sendError(resp, 404, "not found");
+			}
+			
+			@Override
+			public void error(String id, SlabsException e) {
+				logger.error("Error while deleting item " + id, e);
+				sendError(resp, 500, "Internal Server Error");
+			}
+			
+			@Override
+			public void applicationError(SlabsException ex) {
+				sendError(resp, 500, "Internal Server Error");
+			}
+		});
+	}
+	
+	private void sendDeleted(HttpServletResponse resp, String id, int revision) {
+		resp.setStatus(200);
+		resp.setContentType("application/json");
+		ObjectMapper mapper = SlabsCodec.getMapper();
+		ObjectNode root = mapper.createObjectNode();
+		root.put("id", id);
+		root.put("revision", revision);
+		root.put("deleted", true);
+		try {
+			OutputStream out = resp.getOutputStream();
+			mapper.writeValue(out, root);
+			out.close();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
 	private void sendDoc(HttpServletResponse resp, int status, SlabsDoc doc) {
-		resp.setStatus(201);
+		resp.setStatus(status);
+		resp.setContentType("application/json");
 		OutputStream out;
 		try {
 			out = resp.getOutputStream();
@@ -0,0 +1,198 @@
+package net.caprazzi.minima.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.caprazzi.minima.servlet.CometMailbox.Batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the messages of a channel as server-sent events, on a response
+ * that stays open.
+ *
+ * The messages come from the same CometMailbox as the long polling clients,
+ * and each event has the cursor of its message as id, with the epoch of
+ * the mailbox. A client that reconnects with a Last-Event-ID header gets
+ * the messages after it from the mailbox first; if they are no longer kept,
+ * or the id comes from another mailbox, such as the one before a restart,
+ * it gets { "resync": true } and must read what it missed from the board.
+ * The lists and tag parameters work as for comet.
+ *
+ * The stream is closed after a few minutes, so that proxies don't drop it
+ * silently; browsers reconnect on their own.
+ */
+@SuppressWarnings("serial")
+public class EventsServlet extends HttpServlet {
+
+	private static Logger logger = LoggerFactory.getLogger("EventsServlet");
+
+	private static final long TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+	// how long browsers wait before reconnecting
+	private static final long RETRY_MILLIS = 1500;
+
+	private static final byte[] RESYNC = "{\"resync\":true}".getBytes();
+
+	private final CometServlet cometServlet;
+
+	public EventsServlet(CometServlet cometServlet) {
+		this.cometServlet = cometServlet;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+
+		resp.setCharacterEncoding("utf-8");
+		resp.setContentType("text/event-stream");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		CometMailbox mailbox = cometServlet.getMailbox(BoardServlet.getChannel(req));
+		Subscription subscription = new Subscription(
+				Subscribers.parse(req.getParameter("lists")), req.getParameter("tag"));
+
+		long cursor;
+		String lastEventId = req.getHeader("Last-Event-ID");
+		if (lastEventId == null || lastEventId.length() == 0) {
+			cursor = mailbox.getCursor();
+		}
+		else {
+			try {
+				cursor = mailbox.parse(lastEventId.trim());
+			}
+			catch (NumberFormatException e) {
+				// never kept: the client resyncs
+				cursor = -1;
+			}
+		}
+
+		AsyncContext ac = req.startAsync(req, resp);
+		ac.setTimeout(TIMEOUT_MILLIS);
+
+		final Stream stream = new Stream(ac, resp.getOutputStream(), mailbox, subscription, cursor);
+		ac.addListener(new AsyncListener() {
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				stream.close();
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				stream.close();
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				stream.close();
+			}
+		});
+
+		resp.getOutputStream().write(("retry: " + RETRY_MILLIS + "\n\n").getBytes("UTF-8"));
+		stream.pump();
+	}
+
+	/**
+	 * Writes an event
+	 * @param id id of the event, null for none
+	 */
+	static void writeEvent(OutputStream out, String id, byte[] data) throws IOException {
+		if (id != null)
+			out.write(("id: " + id + "\n").getBytes("UTF-8"));
+		out.write("data: ".getBytes("UTF-8"));
+		// messages are json on a single line
+		out.write(data);
+		out.write("\n\n".getBytes("UTF-8"));
+	}
+
+	// a client, waiting on the mailbox between writes
+	private static class Stream implements Runnable {
+
+		private final AsyncContext ac;
+		private final OutputStream out;
+		private final CometMailbox mailbox;
+		private final Subscription subscription;
+
+		// guarded by this
+		private long cursor;
+		private boolean closed = false;
+
+		private final Runnable pump = new Runnable() {
+			@Override
+			public void run() {
+				pump();
+			}
+		};
+
+		Stream(AsyncContext ac, OutputStream out, CometMailbox mailbox, Subscription subscription, long cursor) {
+			this.ac = ac;
+			this.out = out;
+			this.mailbox = mailbox;
+			this.subscription = subscription;
+			this.cursor = cursor;
+		}
+
+		// called by the thread that pushed a message
+		@Override
+		public void run() {
+			ac.start(pump);
+		}
+
+		/**
+		 * Writes the messages after the cursor, then waits for the next ones
+		 */
+		synchronized void pump() {
+			if (closed)
+				return;
+			try {
+				while (true) {
+					Batch batch = mailbox.read(cursor, subscription);
+					if (batch.resync) {
+						writeEvent(out, mailbox.format(batch.cursor), RESYNC);
+					}
+					else {
+						// the id goes on the last event: a client that reconnects
+						// in the middle of a batch gets the batch again
+						for (int i = 0; i < batch.messages.size(); i++) {
+							String id = (i == batch.messages.size() - 1) ? mailbox.format(batch.cursor) : null;
+							writeEvent(out, id, batch.messages.get(i));
+						}
+					}
+					out.flush();
+					cursor = batch.cursor;
+					if (mailbox.await(cursor, subscription, this))
+						return;
+				}
+			} catch (IOException e) {
+				logger.warn("Could not write to event stream: " + e.getMessage());
+				close();
+			}
+		}
+
+		synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			mailbox.cancel(this);
+			try {
+				ac.complete();
+			} catch (IllegalStateException e) {
+				// already completed
+			}
+		}
+	}
+
+}
@@ -2,6 +2,8 @@ package net.caprazzi.minima.servlet;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -9,16 +11,35 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.caprazzi.minima.framework.BuildServices;
-import net.caprazzi.minima.framework.RequestInfo;
+import net.caprazzi.minima.framework.Routes;
+import net.caprazzi.minima.framework.Routes.Match;
 import net.caprazzi.minima.framework.SkimpyTemplate;
 import net.caprazzi.minima.framework.Utils;
+import net.caprazzi.minima.service.Board;
+import net.caprazzi.slabs.SlabsException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 @SuppressWarnings("serial")
 public class IndexServlet extends HttpServlet {
 
+	private enum Page { ROOT, INDEX }
+	
+	// paths under the root of the board
+	private static final Routes<Page> routes = new Routes<Page>()
+		.add("GET", "/", Page.ROOT)
+		.add("GET", "/index", Page.INDEX);
+
+	private static Logger logger = LoggerFactory.getLogger("IndexServlet");
+
 	private String boardTitle;
+	private Board defaultBoard;
+	private boolean inlineBoard = false;
 	private final String websocketLocation;
 	private final BuildServices build;
+	// the index for readonly (1) and devel (2)
+	private final AtomicReferenceArray<SkimpyTemplate> variants = new AtomicReferenceArray<SkimpyTemplate>(4);
 
 	public IndexServlet(String websocketLocation, BuildServices buildService) {
 		this.websocketLocation = websocketLocation;
@@ -29,55 +50,132 @@ public class IndexServlet extends HttpServlet {
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
 		String contextPath = req.getContextPath();
+		Board board = BoardServlet.getBoard(req);
+		
+		Match<Page> match = routes.match(req, contextPath, BoardServlet.getBoardPathLength(req));
+		Page page = (match == null) ? null : match.getTarget();
 		
-		if (info.isPath(contextPath + "/")) {
+		if (page == Page.ROOT && board == null) {
 			resp.sendRedirect(contextPath + "/index");
 			return;
 		}
 		
-		if (!info.isPath(contextPath +  "/index")) {
+		if (page != Page.INDEX) {
 			resp.sendError(404);
 			return;
 		}
 		
 		Boolean readonly = req.getParameter("readonly") != null 
 				|| (Boolean)req.getAttribute("minima.readonly");
+		boolean devel = req.getParameter("devel") != null;
+		// locations of the board, hosted boards are under /b/{board}
+		String boardPath = contextPath + BoardServlet.getBoardPath(req);
+		
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put("BOARD_TITLE", (board == null) ? boardTitle : board.getName());
+		values.put("WEBSOCKET_LOCATION", getWebsocketLocation(req, boardPath));
+		values.put("DATA_LOCATION", boardPath + "/data");
+		values.put("COMET_LOCATION", boardPath + "/comet");
+		values.put("EVENTS_LOCATION", boardPath + "/events");
+		values.put("CLIENT_TAG", Utils.makeId());
+		if (inlineBoard) {
+			values.put("BOARD_DATA", getBoardData((board == null) ? defaultBoard : board));
+			// the page is only as fresh as the board in it
+			resp.setHeader("Cache-Control", "no-cache");
+		}
+		if (devel) {
+			// read again at each request, like the files
+			values.put("TEMPLATES", build.getTemplatesHtml());
+		}
 		
 		resp.setContentType("text/html");
-		SkimpyTemplate index = build.getPage("index");
-		index
-			.add("BOARD_TITLE", boardTitle)
-			.add("READ_ONLY", readonly.toString())
-			.add("WEBSOCKET_LOCATION", websocketLocation.equals("auto") 
-					? "ws://" + req.getServerName() + ":" + req.getServerPort() + contextPath + "/websocket" : websocketLocation)
-			.add("DATA_LOCATION", contextPath + "/data")
-			.add("COMET_LOCATION", contextPath + "/comet")
-			.add("LOGIN_URL", contextPath + "/login")
-			.add("CLIENT_TAG", Utils.makeId())
-			.add("TEMPLATES", build.getTemplatesHtml());
+		PrintWriter writer = resp.getWriter();
+		getIndex(contextPath, readonly, devel).write(writer, values);
+		writer.close();		
+	}
+
+	/**
+	 * The index with the parts that are the same for all the requests of a
+	 * variant already in place
+	 */
+	private SkimpyTemplate getIndex(String contextPath, boolean readonly, boolean devel) throws IOException {
+		int variant = (readonly ? 1 : 0) + (devel ? 2 : 0);
+		SkimpyTemplate index = variants.get(variant);
+		if (index != null)
+			return index;
 		
-		if (req.getParameter("devel") != null) {
-			index
-				.add("CSS_IMPORTS", build.getDevelCssTags(contextPath))
-				.add("LIB_IMPORTS", build.getDevelLibsTags(contextPath))
-				.add("MAIN_IMPORTS", build.getDevelMainTags(contextPath));			
-		}			
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put("READ_ONLY", Boolean.toString(readonly));
+		values.put("LOGIN_URL", contextPath + "/login");
+		if (!inlineBoard) {
+			// the client loads the board from the data location
+			values.put("BOARD_DATA", "");
+		}
+		if (devel) {
+			values.put("CSS_IMPORTS", build.getDevelCssTags(contextPath));
+			values.put("LIB_IMPORTS", build.getDevelLibsTags(contextPath));
+			values.put("MAIN_IMPORTS", build.getDevelMainTags(contextPath));
+		}
 		else {
-			index
-				.add("CSS_IMPORTS", build.getProductionCssTag(contextPath))
-				.add("LIB_IMPORTS", build.getProductionLibsTag(contextPath))
-				.add("MAIN_IMPORTS", build.getProductionMainTag(contextPath));
+			values.put("CSS_IMPORTS", build.getProductionCssTag(contextPath));
+			values.put("LIB_IMPORTS", build.getProductionLibsTag(contextPath));
+			values.put("MAIN_IMPORTS", build.getProductionMainTag(contextPath));
+			values.put("TEMPLATES", build.getTemplatesHtml());
 		}
+		// two requests can make the same variant, they are equal
+		index = build.getPage("index").bind(values);
+		variants.set(variant, index);
+		return index;
+	}
 
-		PrintWriter writer = resp.getWriter();
-		index.write(writer);
-		writer.close();		
+	/**
+	 * @return the board json, as sent from the data location, or nothing if
+	 * 	it could not be read and the client has to load it
+	 */
+	private String getBoardData(Board board) {
+		if (board == null)
+			return "";
+		try {
+			return board.getCache().getBoard().getInline();
+		}
+		catch (SlabsException ex) {
+			logger.error("Error while loading board", ex);
+			return "";
+		}
+	}
+
+	/**
+	 * An explicit location is for the default board: for hosted boards the
+	 * path of the board is put before its last /websocket.
+	 */
+	private String getWebsocketLocation(HttpServletRequest req, String boardPath) {
+		if (websocketLocation.equals("auto"))
+			return "ws://" + req.getServerName() + ":" + req.getServerPort() + boardPath + "/websocket";
+		
+		String hostedPath = BoardServlet.getBoardPath(req);
+		if (hostedPath.length() == 0 || !websocketLocation.endsWith("/websocket"))
+			return websocketLocation;
+		return websocketLocation.substring(0, websocketLocation.length() - "/websocket".length()) + hostedPath + "/websocket";
 	}
 
 	public void setTitle(String boardTitle) {
 		this.boardTitle = boardTitle;		
 	}
 
+	/**
+	 * @param board the board served at /index
+	 */
+	public void setDefaultBoard(Board board) {
+		this.defaultBoard = board;
+	}
+
+	/**
+	 * @param inlineBoard true to put the board in the page, so that the
+	 * 	client does not have to load it after the page
+	 */
+	public void setInlineBoard(boolean inlineBoard) {
+		this.inlineBoard = inlineBoard;
+	}
+
 }
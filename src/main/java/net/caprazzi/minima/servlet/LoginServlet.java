@@ -3,20 +3,30 @@ package net.caprazzi.minima.servlet;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.Collections;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.caprazzi.minima.framework.RequestInfo;
-
-import org.eclipse.jetty.util.IO;
+import net.caprazzi.minima.framework.Routes;
+import net.caprazzi.minima.framework.Routes.Match;
+import net.caprazzi.minima.framework.SkimpyTemplate;
 
 @SuppressWarnings("serial")
 public class LoginServlet extends HttpServlet {
 
+	private enum Page { LOGIN, LOGOUT }
+	
+	private static final Routes<Page> routes = new Routes<Page>()
+		.add("POST", "/login", Page.LOGIN)
+		.add("GET", "/logout", Page.LOGOUT);
+
 	private final String password;
+	
+	// the page without and with the error, parsed on first use
+	private volatile SkimpyTemplate[] pages;
 
 	public LoginServlet(String password) {
 		this.password = password;
@@ -26,8 +36,8 @@ public class LoginServlet extends HttpServlet {
 	protected void doPost(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
-		if (!info.isPath(req.getContextPath() + "/login")) {
+		Match<Page> match = routes.match(req);
+		if (match == null || match.getTarget() != Page.LOGIN) {
 			resp.sendError(404);
 			return;
 		}
@@ -40,21 +50,15 @@ public class LoginServlet extends HttpServlet {
 			return;
 		}
 		
-		resp.setContentType("text/html");
-		InputStream in = this.getClass().getClassLoader().getResourceAsStream("login.html");
-		PrintWriter writer = resp.getWriter();
-		writer.write(IO.toString(in).replaceAll("\\{\\{ ERROR \\}\\}", "invalid-pass"));
-
-		writer.close();
-		in.close();
+		sendPage(resp, getPage(true));
 	}
 	
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
-		if (info.isPath(req.getContextPath() + "/logout")) {
+		Match<Page> match = routes.match(req);
+		if (match != null && match.getTarget() == Page.LOGOUT) {
 			if (req.getSession(false) != null) {
 				req.getSession().invalidate();
 				
@@ -68,12 +72,37 @@ public class LoginServlet extends HttpServlet {
 			return;
 		}
 		
+		sendPage(resp, getPage(false));
+	}
+	
+	private void sendPage(HttpServletResponse resp, SkimpyTemplate page) throws IOException {
 		resp.setContentType("text/html");
-		InputStream in = this.getClass().getClassLoader().getResourceAsStream("login.html");
 		PrintWriter writer = resp.getWriter();
-		writer.write(IO.toString(in).replaceAll("\\{\\{ ERROR \\}\\}", ""));
+		page.write(writer);
 		writer.close();
-		in.close();
+	}
+	
+	/**
+	 * @param error true for the page after a wrong password
+	 */
+	private SkimpyTemplate getPage(boolean error) throws IOException {
+		SkimpyTemplate[] pages = this.pages;
+		if (pages == null) {
+			InputStream in = this.getClass().getClassLoader().getResourceAsStream("login.html");
+			SkimpyTemplate login;
+			try {
+				login = new SkimpyTemplate(in);
+			}
+			finally {
+				in.close();
+			}
+			pages = new SkimpyTemplate[] {
+				login.bind(Collections.singletonMap("ERROR", "")),
+				login.bind(Collections.singletonMap("ERROR", "invalid-pass"))
+			};
+			this.pages = pages;
+		}
+		return pages[error ? 1 : 0];
 	}
 	
 }
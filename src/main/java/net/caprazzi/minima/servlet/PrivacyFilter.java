@@ -11,10 +11,19 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import net.caprazzi.minima.framework.RequestInfo;
+import net.caprazzi.minima.framework.Routes;
+import net.caprazzi.minima.framework.Routes.Match;
 
 public class PrivacyFilter implements Filter {
 
+	private enum Page { INDEX, LOGIN, LOGOUT }
+	
+	private static final Routes<Page> routes = new Routes<Page>()
+		.add(Routes.ANY, "/index", Page.INDEX)
+		.add(Routes.ANY, "/b/{board}/index", Page.INDEX)
+		.add(Routes.ANY, "/login", Page.LOGIN)
+		.add(Routes.ANY, "/logout", Page.LOGOUT);
+	
 	private final boolean requireSessionToView;
 	private final boolean requireSessionToEdit;
 	
@@ -35,7 +44,9 @@ public class PrivacyFilter implements Filter {
 		HttpServletRequest req = (HttpServletRequest) request;
 		HttpServletResponse resp = (HttpServletResponse) response;
 		
-		RequestInfo info = RequestInfo.fromRequest(req);
+		Match<Page> match = routes.match(req);
+		Page page = (match == null) ? null : match.getTarget();
+		boolean get = req.getMethod().equals("GET");
 		
 		boolean hasSession = (req.getSession(false) != null);
 		
@@ -44,38 +55,40 @@ public class PrivacyFilter implements Filter {
 		
 		request.setAttribute("minima.readonly", !allowEdit);
 		
-		// redirect /index to /login if login required
-		if (info.isGet("{ctx}/index") && !allowView) {
+		// redirect /index and the index of hosted boards to /login if login required
+		if (get && page == Page.INDEX && !allowView) {
 			resp.sendRedirect(req.getContextPath() + "/login");
 			return;
 		}
 
 		// redirect /login to /index if login not required
-		if (info.isGet("{ctx}/login") && allowEdit && allowView) {
+		if (get && page == Page.LOGIN && allowEdit && allowView) {
 			resp.sendRedirect(req.getContextPath() + "/index");
 			return;
 		}
 		
 		// let pass requests to /login if login is required
-		if (info.isPath("{ctx}/login") && (!allowView || !allowEdit)) {
+		if (page == Page.LOGIN && (!allowView || !allowEdit)) {
 			chain.doFilter(request, response);
 			return;
 		}
 		
 		// only show logout if there is a session
-		if (info.isGet("{ctx}/logout") && !hasSession) {
+		if (get && page == Page.LOGOUT && !hasSession) {
 			resp.sendRedirect(req.getContextPath() + "/index");
 			return;
 		}
 		
+		boolean read = isRead(req.getMethod());
+		
 		// stop all other reads if view is not allowed
-		if (info.isRead() && !allowView) {
+		if (read && !allowView) {
 			resp.sendError(403);
 			return;
 		}
 		
 		// stop all other writes if view is not required
-		if (info.isWrite() && !allowEdit) {
+		if (!read && !allowEdit) {
 			resp.sendError(403);
 			return;
 		}
@@ -83,6 +96,12 @@ public class PrivacyFilter implements Filter {
 		chain.doFilter(request, response);
 	}
 
+	private static boolean isRead(String method) {
+		return method.equals("GET") 
+				|| method.equals("HEAD")
+				|| method.equals("OPTIONS");
+	}
+
 	@Override
 	public void destroy() {
 	}
@@ -0,0 +1,136 @@
+package net.caprazzi.minima.servlet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * The clients of a channel, indexed by the topics they subscribed to, so
+ * that a message for a few topics only looks at the clients of those topics.
+ * A client subscribes to all the topics, or to a set of them.
+ *
+ * Topics are the ids of the lists of a board. Clients are also registered
+ * under their client tag, if they have one, so that a message can be sent
+ * to a single client.
+ */
+class Subscribers<T> {
+
+	private final Set<T> members = new CopyOnWriteArraySet<T>();
+	// clients of all the topics
+	private final Set<T> everything = new CopyOnWriteArraySet<T>();
+	private final ConcurrentHashMap<String, Set<T>> byTopic = new ConcurrentHashMap<String, Set<T>>();
+	// topics of each client, null for all of them. Guarded by this
+	private final HashMap<T, Set<String>> subscriptions = new HashMap<T, Set<String>>();
+	private final ConcurrentHashMap<String, T> byTag = new ConcurrentHashMap<String, T>();
+
+	/**
+	 * Reads the lists a client asked for: comma separated list ids, or "all"
+	 * @return the topics, null for all of them
+	 */
+	static Set<String> parse(String lists) {
+		if (lists == null || lists.trim().length() == 0 || lists.trim().equals("all"))
+			return null;
+		Set<String> topics = new HashSet<String>();
+		for (String list : lists.split(",")) {
+			if (list.trim().length() > 0)
+				topics.add(list.trim());
+		}
+		return topics;
+	}
+
+	/**
+	 * Adds a client, or changes its topics
+	 * @param topics null for all the topics
+	 */
+	synchronized void subscribe(T client, Set<String> topics) {
+		unsubscribe(client);
+		members.add(client);
+		if (topics == null) {
+			everything.add(client);
+			return;
+		}
+		Set<String> copy = new HashSet<String>(topics);
+		subscriptions.put(client, copy);
+		for (String topic : copy) {
+			Set<T> clients = byTopic.get(topic);
+			if (clients == null) {
+				clients = new CopyOnWriteArraySet<T>();
+				byTopic.put(topic, clients);
+			}
+			clients.add(client);
+		}
+	}
+
+	synchronized void unsubscribe(T client) {
+		members.remove(client);
+		everything.remove(client);
+		Set<String> topics = subscriptions.remove(client);
+		if (topics == null)
+			return;
+		for (String topic : topics) {
+			Set<T> clients = byTopic.get(topic);
+			if (clients == null)
+				continue;
+			clients.remove(client);
+			if (clients.isEmpty())
+				byTopic.remove(topic);
+		}
+	}
+
+	/**
+	 * Registers a client under its tag. A client with the same tag, left
+	 * over from a previous connection, is replaced
+	 */
+	void register(String tag, T client) {
+		if (tag != null)
+			byTag.put(tag, client);
+	}
+
+	void unregister(String tag, T client) {
+		if (tag != null)
+			byTag.remove(tag, client);
+	}
+
+	/**
+	 * @return the client with a tag, null if it is not connected
+	 */
+	T getByTag(String tag) {
+		return (tag == null) ? null : byTag.get(tag);
+	}
+
+	/**
+	 * @param topics the topics of a message, null if it is for all the clients
+	 * @return the clients the message is for, each once
+	 */
+	Collection<T> get(Set<String> topics) {
+		if (topics == null)
+			return members;
+
+		Set<T> found = new LinkedHashSet<T>(everything);
+		for (String topic : topics) {
+			Set<T> clients = byTopic.get(topic);
+			if (clients != null)
+				found.addAll(clients);
+		}
+		return found;
+	}
+
+	/**
+	 * @return true if a client with these topics gets a message with those
+	 */
+	static boolean matches(Set<String> subscription, Set<String> topics) {
+		if (subscription == null || topics == null)
+			return true;
+		return !Collections.disjoint(subscription, topics);
+	}
+
+	int size() {
+		return members.size();
+	}
+
+}
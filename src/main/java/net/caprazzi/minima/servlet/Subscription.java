@@ -0,0 +1,36 @@
+package net.caprazzi.minima.servlet;
+
+import java.util.Set;
+
+/**
+ * What a client reads from a channel: the messages of its topics, except
+ * the ones it sent itself, and the messages addressed to it.
+ */
+class Subscription {
+
+	static final Subscription ALL = new Subscription(null, null);
+
+	// null for all the topics
+	final Set<String> topics;
+	// client tag, null for an anonymous client
+	final String tag;
+
+	Subscription(Set<String> topics, String tag) {
+		this.topics = topics;
+		this.tag = (tag == null || tag.length() == 0) ? null : tag;
+	}
+
+	/**
+	 * @param topics topics of the message, null if it is for all the clients
+	 * @param sender tag of the client that made the change, null if unknown
+	 * @param target tag of the only client the message is for, null for all of them
+	 */
+	boolean accepts(Set<String> topics, String sender, String target) {
+		if (target != null)
+			return target.equals(tag);
+		if (sender != null && sender.equals(tag))
+			return false;
+		return Subscribers.matches(this.topics, topics);
+	}
+
+}
@@ -1,52 +1,302 @@
 package net.caprazzi.minima.servlet;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
+import net.caprazzi.slabs.SlabsCodec;
+
+import org.codehaus.jackson.JsonNode;
 import org.eclipse.jetty.websocket.WebSocket;
 import org.eclipse.jetty.websocket.WebSocketServlet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+/**
+ * Websocket connections, grouped by channel: one channel per board,
+ * the empty channel for the default board.
+ *
+ * Each connection has its own queue of outgoing messages, sent by one of a
+ * fixed number of sender threads, so that a slow client only delays itself
+ * as long as there are fewer slow clients than threads. When a
+ * client falls more than maxQueued messages behind, its queue is dropped and
+ * it gets a resync message instead, to read what it missed from the board.
+ *
+ * A connection gets the messages of the lists it subscribed to, given with
+ * the lists parameter when connecting, or later by sending
+ * { "subscribe": [ list id, ... ] } or { "subscribe": "all" }. Without
+ * subscription it gets all the messages.
+ *
+ * A connection opened with the tag parameter is registered under that client
+ * tag: it does not get back the changes it made, and can be sent messages
+ * of its own.
+ */
 @SuppressWarnings("serial")
 public class WebsocketServlet extends WebSocketServlet {
 
-	private volatile Set<MinimaWebSocket> _consumers = new CopyOnWriteArraySet<MinimaWebSocket>();
-	
+	private static Logger logger = LoggerFactory.getLogger("WebsocketServlet");
+
+	public static final int MAX_QUEUED = 256;
+	public static final int SENDERS = 16;
+
+	static final String RESYNC = "{\"resync\":true}";
+
+	private final ConcurrentHashMap<String, Subscribers<MinimaWebSocket>> channels = new ConcurrentHashMap<String, Subscribers<MinimaWebSocket>>();
+
+	private final Executor senders;
+	private final int maxQueued;
+
+	public WebsocketServlet() {
+		this(SENDERS);
+	}
+
+	/**
+	 * @param senders number of threads sending to the connections
+	 */
+	public WebsocketServlet(int senders) {
+		this(createSenders(senders), MAX_QUEUED);
+	}
+
+	/**
+	 * @param senders runs the sends to the connections, one task per connection at a time
+	 * @param maxQueued messages a connection can be behind before it is asked to resync
+	 */
+	WebsocketServlet(Executor senders, int maxQueued) {
+		this.senders = senders;
+		this.maxQueued = maxQueued;
+	}
+
+	// the queue holds at most one task per connection, idle threads stop
+	private static ExecutorService createSenders(int threads) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "minima-websocket-sender");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	@Override
 	public WebSocket doWebSocketConnect(HttpServletRequest request,
 			String protocol) {
-		return new MinimaWebSocket();
+		String tag = request.getParameter("tag");
+		return new MinimaWebSocket(BoardServlet.getChannel(request),
+				(tag == null || tag.length() == 0) ? null : tag,
+				Subscribers.parse(request.getParameter("lists")));
 	}
-	
-	public void send(byte[] data) {
-		for (MinimaWebSocket member: _consumers) {
-			try {
-				member.sendMessage(data);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+
+	/**
+	 * Queues a message for all the connections of a channel. Does not wait
+	 * for the message to be sent.
+	 */
+	public void send(String channel, byte[] data) {
+		send(channel, null, null, data);
+	}
+
+	public void send(String channel, Set<String> topics, byte[] data) {
+		send(channel, topics, null, data);
+	}
+
+	/**
+	 * Queues a message for the connections of a channel subscribed to some topics
+	 * @param topics the lists the message is about, null for all the connections
+	 * @param sender tag of the client that made the change, which does not get it
+	 */
+	public void send(String channel, Set<String> topics, String sender, byte[] data) {
+		Subscribers<MinimaWebSocket> subscribers = channels.get(channel);
+		if (subscribers == null)
+			return;
+		Collection<MinimaWebSocket> consumers = subscribers.get(topics);
+		if (consumers.isEmpty())
+			return;
+
+		// a single frame, shared by all the connections
+		String frame = toFrame(data);
+		for (MinimaWebSocket member: consumers) {
+			if (sender != null && sender.equals(member.tag))
+				continue;
+			member.enqueue(frame);
+		}
+	}
+
+	/**
+	 * Queues a message for a single client
+	 * @return false if the client is not connected
+	 */
+	public boolean sendTo(String channel, String tag, byte[] data) {
+		Subscribers<MinimaWebSocket> subscribers = channels.get(channel);
+		MinimaWebSocket member = (subscribers == null) ? null : subscribers.getByTag(tag);
+		if (member == null)
+			return false;
+		member.enqueue(toFrame(data));
+		return true;
+	}
+
+	private static String toFrame(byte[] data) {
+		try {
+			return new String(data, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int getConnectionCount(String channel) {
+		Subscribers<MinimaWebSocket> subscribers = channels.get(channel);
+		return (subscribers == null) ? 0 : subscribers.size();
+	}
+
+	@Override
+	public void destroy() {
+		if (senders instanceof ExecutorService)
+			((ExecutorService) senders).shutdownNow();
+		super.destroy();
+	}
+
+	private Subscribers<MinimaWebSocket> getSubscribers(String channel) {
+		Subscribers<MinimaWebSocket> subscribers = channels.get(channel);
+		if (subscribers == null) {
+			Subscribers<MinimaWebSocket> created = new Subscribers<MinimaWebSocket>();
+			subscribers = channels.putIfAbsent(channel, created);
+			if (subscribers == null)
+				subscribers = created;
 		}
+		return subscribers;
 	}
-	
-	class MinimaWebSocket implements WebSocket {
 
+	class MinimaWebSocket implements WebSocket.OnTextMessage {
+
+		private final String channel;
+		// client tag, null if unknown
+		private final String tag;
+		private final Set<String> topics;
 		private Connection connection;
 
+		// guarded by this
+		private final ArrayDeque<String> outbound = new ArrayDeque<String>();
+		private boolean resync = false;
+		private boolean draining = false;
+
+		private final Runnable drain = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+		/**
+		 * @param topics the lists the connection subscribes to, null for all of them
+		 */
+		MinimaWebSocket(String channel, String tag, Set<String> topics) {
+			this.channel = channel;
+			this.tag = tag;
+			this.topics = topics;
+		}
+
 		@Override
 		public void onOpen(Connection connection) {
 			this.connection = connection;
-			_consumers.add(this);
+			Subscribers<MinimaWebSocket> subscribers = getSubscribers(channel);
+			subscribers.subscribe(this, topics);
+			subscribers.register(tag, this);
+		}
+
+		@Override
+		public void onMessage(String data) {
+			JsonNode subscribe;
+			try {
+				subscribe = SlabsCodec.getMapper().readValue(data, JsonNode.class).get("subscribe");
+			} catch (IOException e) {
+				logger.warn("Invalid message from websocket client: " + e.getMessage());
+				return;
+			}
+			if (subscribe == null)
+				return;
+
+			Set<String> lists = null;
+			if (subscribe.isArray()) {
+				lists = new HashSet<String>();
+				for (JsonNode list : subscribe) {
+					lists.add(list.getTextValue());
+				}
+			}
+			getSubscribers(channel).subscribe(this, lists);
 		}
 
-		public void sendMessage(byte[] data) throws IOException {
-			connection.sendMessage(new String(data, "UTF-8"));
+		void enqueue(String frame) {
+			synchronized (this) {
+				// once behind, the resync message stands for all the messages until it is sent
+				if (resync)
+					return;
+				if (outbound.size() >= maxQueued) {
+					logger.warn("Websocket client on channel '" + channel + "' is " + outbound.size() + " messages behind, asking it to resync");
+					outbound.clear();
+					resync = true;
+				}
+				else {
+					outbound.addLast(frame);
+				}
+				if (draining)
+					return;
+				draining = true;
+			}
+			senders.execute(drain);
+		}
+
+		private void drain() {
+			while (true) {
+				String frame;
+				synchronized (this) {
+					if (resync) {
+						resync = false;
+						frame = RESYNC;
+					}
+					else {
+						frame = outbound.pollFirst();
+					}
+					if (frame == null) {
+						draining = false;
+						return;
+					}
+				}
+				try {
+					connection.sendMessage(frame);
+				} catch (IOException e) {
+					// the connection is gone, onClose removes it
+					logger.warn("Could not send to websocket client on channel '" + channel + "': " + e.getMessage());
+					synchronized (this) {
+						outbound.clear();
+						draining = false;
+					}
+					return;
+				}
+			}
 		}
 
 		@Override
 		public void onClose(int closeCode, String message) {
-			_consumers.remove(this);
+			Subscribers<MinimaWebSocket> subscribers = getSubscribers(channel);
+			subscribers.unsubscribe(this);
+			subscribers.unregister(tag, this);
+			synchronized (this) {
+				outbound.clear();
+			}
 		}
 	}
 }
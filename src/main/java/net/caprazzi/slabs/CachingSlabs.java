@@ -0,0 +1,440 @@
+package net.caprazzi.slabs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+
+/**
+ * Write-through cache in front of another Slabs implementation.
+ *
+ * The whole store is loaded and decoded on the first call to list(), then
+ * all following lists are served from memory. Typed lists and scans load
+ * only the records of their type, and records are decoded only when a
+ * document is asked for, so types that are never listed and documents that
+ * are filtered out by a scan are never decoded. Writes go to the underlying
+ * store first and the cache is updated only once the write succeeded; after
+ * a failed write the document is read again from the store.
+ *
+ * Archived documents are not cached: they are read from the store.
+ *
+ * Cached documents are shared by all callers and must not be modified.
+ */
+public class CachingSlabs implements Slabs {
+
+	private final Slabs db;
+
+	private final Object lock = new Object();
+	private final LinkedHashMap<String, SlabsRecord> records = new LinkedHashMap<String, SlabsRecord>();
+	// revision at which documents were recently deleted or archived. Only
+	// callbacks of writes still in flight need these, so the oldest are dropped
+	private static final int MAX_REMOVED = 1024;
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<String, Integer> removed = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_REMOVED;
+		}
+	};
+	// records of these types are all in records
+	private final HashSet<Class<?>> loadedTypes = new HashSet<Class<?>>();
+	private boolean loadedAll = false;
+	private long version = 0;
+
+	public CachingSlabs(Slabs db) {
+		this.db = db;
+	}
+
+	@Override
+	public void list(final SlabsList list) {
+		ArrayList<SlabsRecord> snapshot;
+		synchronized (lock) {
+			SlabsException failure = loadedAll ? null : load(null);
+			if (failure != null) {
+				list.callError(failure);
+				return;
+			}
+			snapshot = new ArrayList<SlabsRecord>(records.values());
+		}
+		sendDocs(snapshot, list);
+	}
+
+	@Override
+	public void list(Class<? extends SlabsDoc> type, SlabsList list) {
+		ArrayList<SlabsRecord> snapshot;
+		synchronized (lock) {
+			SlabsException failure = isLoaded(type) ? null : load(type);
+			if (failure != null) {
+				list.callError(failure);
+				return;
+			}
+			snapshot = snapshot(type);
+		}
+		sendDocs(snapshot, list);
+	}
+
+	@Override
+	public void scan(Class<? extends SlabsDoc> type, SlabsScan scan) {
+		ArrayList<SlabsRecord> snapshot;
+		synchronized (lock) {
+			SlabsException failure = isLoaded(type) ? null : load(type);
+			if (failure != null) {
+				scan.callError(failure);
+				return;
+			}
+			snapshot = snapshot(type);
+		}
+
+		try {
+			for (SlabsRecord record : snapshot) {
+				record.project(scan.getFields());
+			}
+		} catch (Exception ex) {
+			scan.callError(ex);
+			return;
+		}
+
+		if (snapshot.isEmpty())
+			scan.callNotFound();
+		else
+			scan.callRecords(snapshot);
+	}
+
+	/**
+	 * Reads one document from the cache. Documents that are not cached
+	 * are read from the underlying store.
+	 */
+	@Override
+	public void get(String id, SlabsGet callback) {
+		SlabsRecord record;
+		synchronized (lock) {
+			record = records.get(id);
+		}
+
+		if (record == null) {
+			db.get(id, callback);
+			return;
+		}
+
+		SlabsDoc doc;
+		try {
+			doc = record.getDoc();
+		} catch (Exception ex) {
+			callback.callError(id, ex);
+			return;
+		}
+		callback.callFound(doc);
+	}
+
+	@Override
+	public void put(SlabsDoc doc, final SlabsPut callback) {
+		db.put(doc, new SlabsPut() {
+
+			@Override public void ok(SlabsDoc doc) {
+				cache(doc);
+				callback.callOk(doc);
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				refresh(id);
+				callback.callError(id, e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	@Override
+	public void putAll(final Collection<? extends SlabsDoc> docs, final SlabsPutAll callback) {
+		db.putAll(docs, new SlabsPutAll() {
+
+			@Override public void ok(Iterable<SlabsDoc> docs) {
+				for (SlabsDoc doc : docs) {
+					cache(doc);
+				}
+				callback.callOk(docs);
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void error(SlabsException e) {
+				for (SlabsDoc doc : docs) {
+					refresh(doc.getId());
+				}
+				callback.callError(e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	@Override
+	public void delete(String id, int revision, final SlabsDelete callback) {
+		db.delete(id, revision, new SlabsDelete() {
+
+			@Override public void ok(String id, int revision) {
+				uncache(id, revision);
+				callback.callOk(id, revision);
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void notFound(String id) {
+				callback.callNotFound(id);
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				refresh(id);
+				callback.callError(id, e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	/**
+	 * Archived documents are not cached
+	 */
+	@Override
+	public void listArchived(String after, int limit, SlabsPage page) {
+		db.listArchived(after, limit, page);
+	}
+
+	/**
+	 * The version goes up by one on every successful write. All writes
+	 * up to the returned version are visible to lists started after this call.
+	 * @return current version of the store
+	 */
+	public long getVersion() {
+		synchronized (lock) {
+			return version;
+		}
+	}
+
+	/**
+	 * @return an estimate of the memory held by the cached records, in bytes
+	 */
+	public long getSize() {
+		synchronized (lock) {
+			long size = 0;
+			for (SlabsRecord record : records.values()) {
+				size += record.getSize();
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Drops all cached documents. They will be loaded again on the next list().
+	 * The version goes up, since the store may have changed.
+	 */
+	public void invalidate() {
+		synchronized (lock) {
+			version++;
+			records.clear();
+			removed.clear();
+			loadedTypes.clear();
+			loadedAll = false;
+		}
+	}
+
+	private boolean isLoaded(Class<?> type) {
+		return loadedAll || loadedTypes.contains(type);
+	}
+
+	// must be called holding the lock
+	private ArrayList<SlabsRecord> snapshot(Class<? extends SlabsDoc> type) {
+		ArrayList<SlabsRecord> snapshot = new ArrayList<SlabsRecord>();
+		for (SlabsRecord record : records.values()) {
+			if (record.getType() == type)
+				snapshot.add(record);
+		}
+		return snapshot;
+	}
+
+	// decodes outside the lock
+	private static void sendDocs(ArrayList<SlabsRecord> snapshot, SlabsList list) {
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>(snapshot.size());
+		try {
+			for (SlabsRecord record : snapshot) {
+				docs.add(record.getDoc());
+			}
+		} catch (Exception ex) {
+			list.callError(ex);
+			return;
+		}
+
+		if (docs.isEmpty())
+			list.callNotFound();
+		else
+			list.callEntries(docs);
+	}
+
+	private void cache(SlabsDoc doc) {
+		synchronized (lock) {
+			version++;
+			if ((doc instanceof SlabsArchivable) && ((SlabsArchivable) doc).isArchived()) {
+				remove(doc.getId(), doc.getRevision());
+				return;
+			}
+
+			if (!isLoaded(doc.getClass())) {
+				// the document could have changed type
+				SlabsRecord cached = records.get(doc.getId());
+				if (cached != null && cached.getRevision() < doc.getRevision())
+					records.remove(doc.getId());
+				return;
+			}
+
+			// callbacks for concurrent writes to the same document may come
+			// in any order: never replace a newer revision with an older one
+			Integer tombstone = removed.get(doc.getId());
+			if (tombstone != null && tombstone >= doc.getRevision())
+				return;
+			removed.remove(doc.getId());
+
+			merge(new SlabsRecord(doc));
+		}
+	}
+
+	/**
+	 * Reads a document again from the underlying store after a failed write.
+	 * The store may have applied the write anyway, for example when only the
+	 * sync that followed it failed.
+	 */
+	private void refresh(String id) {
+		db.get(id, new SlabsGet() {
+
+			@Override public void found(SlabsDoc doc) {
+				cache(doc);
+			}
+
+			@Override public void notFound(String id) {
+				synchronized (lock) {
+					version++;
+					records.remove(id);
+				}
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				invalidate();
+			}
+		});
+	}
+
+	private void uncache(String id, int revision) {
+		synchronized (lock) {
+			version++;
+			remove(id, revision);
+		}
+	}
+
+	// must be called holding the lock
+	private void remove(String id, int revision) {
+		SlabsRecord cached = records.get(id);
+		if (cached != null && cached.getRevision() >= revision)
+			return;
+		records.remove(id);
+		removed.put(id, revision);
+	}
+
+	/**
+	 * Loads records from the underlying store. Must be called holding the lock.
+	 * @param type type of the records to load, null to load all of them
+	 * @return null if the records are now loaded, or the reason they are not
+	 */
+	private SlabsException load(final Class<? extends SlabsDoc> type) {
+		final SlabsException[] failure = new SlabsException[1];
+		final boolean[] loaded = new boolean[1];
+
+		if (type == null) {
+			db.list(new SlabsList() {
+
+				@Override public void entries(Iterable<SlabsDoc> found) {
+					for (SlabsDoc doc : found) {
+						merge(new SlabsRecord(doc));
+					}
+					loaded[0] = true;
+				}
+
+				@Override public void notFound() {
+					loaded[0] = true;
+				}
+
+				@Override public void error(SlabsException ex) {
+					failure[0] = ex;
+				}
+
+				@Override public void applicationError(SlabsException ex) {
+					failure[0] = ex;
+				}
+			});
+		}
+		else {
+			db.scan(type, new SlabsScan() {
+
+				@Override public void records(Iterable<SlabsRecord> found) {
+					for (SlabsRecord record : found) {
+						merge(record);
+					}
+					loaded[0] = true;
+				}
+
+				@Override public void notFound() {
+					loaded[0] = true;
+				}
+
+				@Override public void error(SlabsException ex) {
+					failure[0] = ex;
+				}
+
+				@Override public void applicationError(SlabsException ex) {
+					failure[0] = ex;
+				}
+			});
+		}
+
+		if (!loaded[0])
+			return failure[0] != null ? failure[0] : new SlabsException("Could not load records");
+		if (type == null)
+			loadedAll = true;
+		else
+			loadedTypes.add(type);
+		return null;
+	}
+
+	// a write may have been cached while loading: keep the newest revision
+	private void merge(SlabsRecord record) {
+		Integer tombstone = removed.get(record.getId());
+		if (tombstone != null && tombstone >= record.getRevision())
+			return;
+
+		SlabsRecord cached = records.get(record.getId());
+		if (cached == null || cached.getRevision() < record.getRevision())
+			records.put(record.getId(), record);
+	}
+
+}
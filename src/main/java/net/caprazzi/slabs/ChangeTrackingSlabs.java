@@ -0,0 +1,186 @@
+package net.caprazzi.slabs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+
+/**
+ * Records every successful write to another Slabs implementation in a
+ * SlabsChanges sequence, before the callback of the write is called.
+ *
+ * Put it in front of the cache, so that a change is visible to readers
+ * before its sequence number is.
+ *
+ * A failed write may have been applied by the store anyway, so it moves the
+ * sequence ahead: clients that catch up read the whole store again.
+ *
+ * A change is held while its callback runs, as that is where it is pushed:
+ * the changes recorded meanwhile by other writers are pushed with a number
+ * before it.
+ */
+public class ChangeTrackingSlabs implements Slabs {
+
+	private final Slabs db;
+	private final SlabsChanges changes;
+
+	public ChangeTrackingSlabs(Slabs db, SlabsChanges changes) {
+		this.db = db;
+		this.changes = changes;
+	}
+
+	public SlabsChanges getChanges() {
+		return changes;
+	}
+
+	@Override
+	public void list(SlabsList list) {
+		db.list(list);
+	}
+
+	@Override
+	public void list(Class<? extends SlabsDoc> type, SlabsList list) {
+		db.list(type, list);
+	}
+
+	@Override
+	public void scan(Class<? extends SlabsDoc> type, SlabsScan scan) {
+		db.scan(type, scan);
+	}
+
+	@Override
+	public void listArchived(String after, int limit, SlabsPage page) {
+		db.listArchived(after, limit, page);
+	}
+
+	@Override
+	public void get(String id, SlabsGet callback) {
+		db.get(id, callback);
+	}
+
+	@Override
+	public void put(SlabsDoc doc, final SlabsPut callback) {
+		db.put(doc, new SlabsPut() {
+
+			@Override public void ok(SlabsDoc doc) {
+				long seq = changes.hold(doc.getTypeName(), doc.getId(), doc.getRevision(), false);
+				try {
+					callback.callOk(doc);
+				}
+				finally {
+					changes.release(seq);
+				}
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				changes.skip();
+				callback.callError(id, e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	@Override
+	public void putAll(Collection<? extends SlabsDoc> docs, final SlabsPutAll callback) {
+		db.putAll(docs, new SlabsPutAll() {
+
+			@Override public void ok(Iterable<SlabsDoc> docs) {
+				ArrayList<Long> held = new ArrayList<Long>();
+				try {
+					for (SlabsDoc doc : docs) {
+						held.add(changes.hold(doc.getTypeName(), doc.getId(), doc.getRevision(), false));
+					}
+					callback.callOk(docs);
+				}
+				finally {
+					for (long seq : held) {
+						changes.release(seq);
+					}
+				}
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void error(SlabsException e) {
+				changes.skip();
+				callback.callError(e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	/**
+	 * The type of the document is read before deleting it, as clients need it
+	 * to know what was deleted
+	 */
+	@Override
+	public void delete(String id, int revision, final SlabsDelete callback) {
+		final String typeName = getTypeName(id);
+		db.delete(id, revision, new SlabsDelete() {
+
+			@Override public void ok(String id, int revision) {
+				long seq = changes.hold(typeName, id, revision, true);
+				try {
+					callback.callOk(id, revision);
+				}
+				finally {
+					changes.release(seq);
+				}
+			}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				callback.callCollision(id, yourRev, foundRev);
+			}
+
+			@Override public void notFound(String id) {
+				callback.callNotFound(id);
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				changes.skip();
+				callback.callError(id, e);
+			}
+
+			@Override public void applicationError(SlabsException ex) {
+				callback.callApplicationError(ex);
+			}
+		});
+	}
+
+	// empty if the document can't be read
+	private String getTypeName(String id) {
+		final String[] typeName = { "" };
+		db.get(id, new SlabsGet() {
+
+			@Override public void found(SlabsDoc doc) {
+				typeName[0] = doc.getTypeName();
+			}
+
+			@Override public void notFound(String id) {}
+
+			@Override public void error(String id, SlabsException e) {}
+
+			@Override public void applicationError(SlabsException ex) {}
+		});
+		return typeName[0];
+	}
+
+}
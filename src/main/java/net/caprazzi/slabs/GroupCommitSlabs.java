@@ -0,0 +1,417 @@
+package net.caprazzi.slabs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+
+/**
+ * Serializes the writes to another Slabs implementation through a single
+ * writer thread, that commits them in groups.
+ *
+ * Writes from concurrent callers are queued; the writer takes all the queued
+ * writes, applies them to the underlying store one after the other and then
+ * syncs the store once for the whole group. Each caller waits until its write
+ * is acknowledged, and the callback runs in the caller's thread, as for any other
+ * Slabs implementation. When the durability is:
+ * <ul>
+ * <li>WRITE, the store is synced after each write</li>
+ * <li>GROUP, the store is synced once for each group</li>
+ * <li>PERIODIC, writes are acknowledged as soon as they are applied and the
+ * store is synced at a fixed period: the writes of the last period can be lost</li>
+ * </ul>
+ * Writes that are not durable because the sync failed get an error, even if
+ * the underlying store applied them.
+ *
+ * Reads go straight to the underlying store.
+ */
+public class GroupCommitSlabs implements Slabs {
+
+	public static enum Durability { WRITE, GROUP, PERIODIC }
+
+	private static final int MAX_GROUP = 256;
+	// how often the writer checks for the periodic sync and for stop()
+	private static final long POLL_MILLIS = 100;
+
+	private final Slabs db;
+	private final SlabsSync sync;
+	private final Durability durability;
+	private final long periodMillis;
+
+	private final LinkedBlockingQueue<Write> queue = new LinkedBlockingQueue<Write>();
+	private final Object lock = new Object();
+	private volatile boolean closed = false;
+	private Thread writer;
+
+	private boolean dirty = false;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * @param periodMillis time between syncs, for PERIODIC durability
+	 */
+	public GroupCommitSlabs(Slabs db, SlabsSync sync, Durability durability, long periodMillis) {
+		this.db = db;
+		this.sync = sync;
+		this.durability = durability;
+		this.periodMillis = periodMillis;
+	}
+
+	public GroupCommitSlabs(Slabs db, SlabsSync sync, Durability durability) {
+		this(db, sync, durability, 1000);
+	}
+
+	/**
+	 * Starts the writer thread. Writes submitted before wait for it.
+	 */
+	public void start() {
+		synchronized (lock) {
+			if (writer != null || closed)
+				return;
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					write();
+				}
+			}, "slabs-writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Commits the writes already queued, then stops the writer thread.
+	 * Writes submitted after this get an error.
+	 */
+	public void stop() throws InterruptedException {
+		Thread current;
+		synchronized (lock) {
+			closed = true;
+			current = writer;
+		}
+		if (current != null)
+			current.join();
+	}
+
+	@Override
+	public void list(SlabsList list) {
+		db.list(list);
+	}
+
+	@Override
+	public void list(Class<? extends SlabsDoc> type, SlabsList list) {
+		db.list(type, list);
+	}
+
+	@Override
+	public void scan(Class<? extends SlabsDoc> type, SlabsScan scan) {
+		db.scan(type, scan);
+	}
+
+	@Override
+	public void listArchived(String after, int limit, SlabsPage page) {
+		db.listArchived(after, limit, page);
+	}
+
+	@Override
+	public void get(String id, SlabsGet callback) {
+		db.get(id, callback);
+	}
+
+	@Override
+	public void put(final SlabsDoc doc, final SlabsPut callback) {
+		submit(new Write() {
+
+			@Override boolean apply() {
+				db.put(doc, new SlabsPut() {
+					@Override public void ok(final SlabsDoc doc) {
+						ack(true, new Runnable() {
+							@Override public void run() {
+								callback.callOk(doc);
+							}
+						});
+					}
+
+					@Override public void collision(final String id, final int yourRev, final int foundRev) {
+						ack(false, new Runnable() {
+							@Override public void run() {
+								callback.callCollision(id, yourRev, foundRev);
+							}
+						});
+					}
+
+					@Override public void error(String id, SlabsException e) {
+						fail(e);
+					}
+
+					@Override public void applicationError(SlabsException ex) {
+						fail(ex);
+					}
+				});
+				return written;
+			}
+
+			@Override void fail(final SlabsException ex) {
+				ack(false, new Runnable() {
+					@Override public void run() {
+						callback.callError(doc.getId(), ex);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void putAll(final Collection<? extends SlabsDoc> docs, final SlabsPutAll callback) {
+		submit(new Write() {
+
+			@Override boolean apply() {
+				db.putAll(docs, new SlabsPutAll() {
+					@Override public void ok(final Iterable<SlabsDoc> docs) {
+						ack(true, new Runnable() {
+							@Override public void run() {
+								callback.callOk(docs);
+							}
+						});
+					}
+
+					@Override public void collision(final String id, final int yourRev, final int foundRev) {
+						ack(false, new Runnable() {
+							@Override public void run() {
+								callback.callCollision(id, yourRev, foundRev);
+							}
+						});
+					}
+
+					@Override public void error(SlabsException e) {
+						fail(e);
+					}
+
+					@Override public void applicationError(SlabsException ex) {
+						fail(ex);
+					}
+				});
+				return written;
+			}
+
+			@Override void fail(final SlabsException ex) {
+				ack(false, new Runnable() {
+					@Override public void run() {
+						callback.callError(ex);
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	public void delete(final String id, final int revision, final SlabsDelete callback) {
+		submit(new Write() {
+
+			@Override boolean apply() {
+				db.delete(id, revision, new SlabsDelete() {
+					@Override public void ok(final String id, final int revision) {
+						ack(true, new Runnable() {
+							@Override public void run() {
+								callback.callOk(id, revision);
+							}
+						});
+					}
+
+					@Override public void collision(final String id, final int yourRev, final int foundRev) {
+						ack(false, new Runnable() {
+							@Override public void run() {
+								callback.callCollision(id, yourRev, foundRev);
+							}
+						});
+					}
+
+					@Override public void notFound(final String id) {
+						ack(false, new Runnable() {
+							@Override public void run() {
+								callback.callNotFound(id);
+							}
+						});
+					}
+
+					@Override public void error(String id, SlabsException e) {
+						fail(e);
+					}
+
+					@Override public void applicationError(SlabsException ex) {
+						fail(ex);
+					}
+				});
+				return written;
+			}
+
+			@Override void fail(final SlabsException ex) {
+				ack(false, new Runnable() {
+					@Override public void run() {
+						callback.callError(id, ex);
+					}
+				});
+			}
+		});
+	}
+
+	// queues the write and waits for it to be committed, then runs its callback
+	private void submit(Write write) {
+		boolean queued = false;
+		synchronized (lock) {
+			if (!closed)
+				queued = queue.add(write);
+		}
+		if (!queued) {
+			write.fail(new SlabsException("Store is closed"));
+			write.outcome.run();
+			return;
+		}
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				write.committed.await();
+				break;
+			}
+			catch (InterruptedException e) {
+				// the write is in the queue already, its outcome must be reported
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		write.outcome.run();
+	}
+
+	private void write() {
+		ArrayList<Write> group = new ArrayList<Write>();
+
+		while (!closed || !queue.isEmpty()) {
+			Write first;
+			try {
+				first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e) {
+				continue;
+			}
+
+			if (first != null) {
+				group.add(first);
+				queue.drainTo(group, MAX_GROUP - 1);
+				commit(group);
+				group.clear();
+			}
+
+			if (durability == Durability.PERIODIC && dirty &&
+					(closed || System.currentTimeMillis() - lastSync >= periodMillis)) {
+				try {
+					sync();
+				}
+				catch (Exception e) {
+					// the writes were acknowledged already, keep them for the next sync
+					System.err.println("Exception while syncing");
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void commit(ArrayList<Write> group) {
+		ArrayList<Write> pending = new ArrayList<Write>();
+		for (Write write : group) {
+			boolean written;
+			try {
+				written = write.apply();
+			}
+			catch (Exception e) {
+				write.fail(SlabsOnKeez.Callback.wrap(e));
+				written = false;
+			}
+			if (write.outcome == null) {
+				write.fail(new SlabsException("No outcome for write"));
+				written = false;
+			}
+
+			if (!written || durability == Durability.PERIODIC) {
+				dirty |= written;
+				write.committed.countDown();
+			}
+			else if (durability == Durability.WRITE) {
+				commit(write);
+			}
+			else {
+				pending.add(write);
+			}
+		}
+
+		if (pending.isEmpty())
+			return;
+
+		try {
+			sync();
+		}
+		catch (Exception e) {
+			for (Write write : pending) {
+				write.fail(new SlabsException("Write is not durable", e));
+			}
+		}
+		for (Write write : pending) {
+			write.committed.countDown();
+		}
+	}
+
+	private void commit(Write write) {
+		try {
+			sync();
+		}
+		catch (Exception e) {
+			write.fail(new SlabsException("Write is not durable", e));
+		}
+		write.committed.countDown();
+	}
+
+	private void sync() throws IOException {
+		sync.sync();
+		dirty = false;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * A write waiting in the queue. apply() runs in the writer thread and
+	 * records the outcome, that is reported to the caller once committed.
+	 */
+	private static abstract class Write {
+
+		final CountDownLatch committed = new CountDownLatch(1);
+		volatile Runnable outcome;
+		boolean written = false;
+
+		/**
+		 * Applies the write to the underlying store
+		 * @return true if the store was modified
+		 */
+		abstract boolean apply();
+
+		/**
+		 * Reports an error instead of the recorded outcome
+		 */
+		abstract void fail(SlabsException ex);
+
+		final void ack(boolean written, Runnable outcome) {
+			this.written = written;
+			this.outcome = outcome;
+		}
+	}
+
+}
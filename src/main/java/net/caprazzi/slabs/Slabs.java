@@ -1,12 +1,46 @@
 package net.caprazzi.slabs;
 
+import java.util.Collection;
+
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
 import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
 import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
 
 public interface Slabs {
 
 	public abstract void list(final SlabsList list);
 
+	/**
+	 * Lists only the documents of the given type
+	 */
+	public abstract void list(Class<? extends SlabsDoc> type, final SlabsList list);
+
+	/**
+	 * Lists the records of the given type, with the fields requested by
+	 * the scan already read. Documents are decoded only when asked for.
+	 */
+	public abstract void scan(Class<? extends SlabsDoc> type, final SlabsScan scan);
+
+	/**
+	 * Lists a page of archived documents, most recently archived first
+	 * @param after cursor of the previous page, null for the first page
+	 * @param limit maximum number of records in the page
+	 */
+	public abstract void listArchived(String after, int limit, final SlabsPage page);
+
+	public abstract void get(String id, final SlabsGet callback);
+
 	public abstract void put(SlabsDoc doc, final SlabsPut callback);
 
+	/**
+	 * Writes all the documents, or none of them if any revision is not the current one
+	 */
+	public abstract void putAll(Collection<? extends SlabsDoc> docs, final SlabsPutAll callback);
+
+	public abstract void delete(String id, int revision, final SlabsDelete callback);
+
 }
\ No newline at end of file
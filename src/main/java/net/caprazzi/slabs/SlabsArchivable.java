@@ -0,0 +1,13 @@
+package net.caprazzi.slabs;
+
+/**
+ * Documents that can be archived. Stores with an archive partition move
+ * archived documents there, out of the way of lists and scans.
+ */
+public interface SlabsArchivable {
+
+	public boolean isArchived();
+
+	public void setArchived(boolean archived);
+
+}
@@ -0,0 +1,119 @@
+package net.caprazzi.slabs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Keys of the archive partition, most recently archived first.
+ *
+ * Pages are addressed by the position of their last key, so pages don't
+ * shift when documents are archived or restored while browsing.
+ */
+final class SlabsArchiveIndex {
+
+	private final TreeSet<Position> positions = new TreeSet<Position>();
+	private final HashMap<String, Position> byKey = new HashMap<String, Position>();
+
+	synchronized void put(String key, long time) {
+		remove(key);
+		Position position = new Position(time, key);
+		positions.add(position);
+		byKey.put(key, position);
+	}
+
+	synchronized void remove(String key) {
+		Position position = byKey.remove(key);
+		if (position != null)
+			positions.remove(position);
+	}
+
+	/**
+	 * @return the number of archived keys
+	 */
+	synchronized int size() {
+		return byKey.size();
+	}
+
+	synchronized boolean contains(String key) {
+		return byKey.containsKey(key);
+	}
+
+	/**
+	 * @return the time the key was archived, -1 if it is not in the archive
+	 */
+	synchronized long getTime(String key) {
+		Position position = byKey.get(key);
+		return (position == null) ? -1 : position.time;
+	}
+
+	/**
+	 * @param after cursor of the last position of the previous page, null for the first page
+	 * @param limit maximum number of keys to return
+	 * @return the positions following the cursor
+	 */
+	synchronized ArrayList<Position> page(String after, int limit) {
+		Iterable<Position> tail = (after == null)
+			? positions
+			: positions.tailSet(Position.parse(after), false);
+
+		ArrayList<Position> page = new ArrayList<Position>(limit);
+		for (Position position : tail) {
+			if (page.size() == limit)
+				break;
+			page.add(position);
+		}
+		return page;
+	}
+
+	static final class Position implements Comparable<Position> {
+
+		final long time;
+		final String key;
+
+		Position(long time, String key) {
+			this.time = time;
+			this.key = key;
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the cursor is not valid
+		 */
+		static Position parse(String cursor) {
+			int sep = cursor.indexOf('-');
+			if (sep < 1)
+				throw new IllegalArgumentException("Invalid cursor " + cursor);
+			try {
+				return new Position(Long.parseLong(cursor.substring(0, sep)), cursor.substring(sep + 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid cursor " + cursor);
+			}
+		}
+
+		String toCursor() {
+			return time + "-" + key;
+		}
+
+		// newest first, then by key
+		@Override
+		public int compareTo(Position o) {
+			if (time != o.time)
+				return time > o.time ? -1 : 1;
+			return key.compareTo(o.key);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Position))
+				return false;
+			Position other = (Position) obj;
+			return time == other.time && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() * 31 + (int) (time ^ (time >>> 32));
+		}
+	}
+
+}
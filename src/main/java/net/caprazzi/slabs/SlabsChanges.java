@@ -0,0 +1,396 @@
+package net.caprazzi.slabs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Sequence of the changes made to a store, kept in a journal file.
+ *
+ * Each change gets the next number of a sequence that never goes back, also
+ * across restarts. The last changes are kept in memory, so that clients can
+ * ask for what changed after the last change they saw; for older changes
+ * they have to read the whole store again.
+ *
+ * The journal is written after the store acknowledged the change, and is not
+ * synced: after a crash the last changes could be missing from it. So the
+ * journal ends with a marker when it is closed, and when it is opened
+ * without one the sequence jumps ahead and no earlier change is kept.
+ *
+ * A change can be held while it is handed to the clients: until it is
+ * released, the changes numbered after it are pushed with a number before
+ * it (see getPushSeq), so that a client never moves past a change it was
+ * not pushed yet.
+ *
+ * Journal format: the sequence number before the first change in the
+ * journal, then records: a type byte, then for changes: sequence, revision,
+ * deleted flag, type name and key.
+ */
+public class SlabsChanges {
+
+	public static final int RETAIN = 10000;
+
+	// after a crash, the sequence jumps past any number a client could have seen
+	private static final long RESTART_STEP = 1000000;
+
+	// estimated bytes taken by a change in memory, with its key
+	private static final int CHANGE_BYTES = 160;
+
+	private static final byte CHANGE = 0;
+	private static final byte CLOSED = 1;
+
+	private final File file;
+	private final int retain;
+
+	private final ArrayDeque<Change> changes = new ArrayDeque<Change>();
+	private long seq = 0;
+	// changes after this one are all retained
+	private long floor = 0;
+	// changes not handed to the clients yet
+	private final TreeSet<Long> held = new TreeSet<Long>();
+
+	// null once the journal can't be written
+	private DataOutputStream out;
+	private int written = 0;
+
+	public SlabsChanges(File file) throws IOException {
+		this(file, RETAIN);
+	}
+
+	/**
+	 * @param retain number of changes kept
+	 */
+	public SlabsChanges(File file, int retain) throws IOException {
+		this.file = file;
+		this.retain = retain;
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create directory " + dir);
+
+		if (file.exists())
+			read();
+		rewrite();
+	}
+
+	/**
+	 * Adds a change to the sequence
+	 * @return the sequence number of the change
+	 */
+	public synchronized long record(String typeName, String key, int revision, boolean deleted) {
+		Change change = new Change(++seq, typeName, key, revision, deleted);
+		add(change);
+		journal(change);
+		return change.seq;
+	}
+
+	/**
+	 * Adds a change to the sequence, held until it is released
+	 * @return the sequence number of the change
+	 */
+	public synchronized long hold(String typeName, String key, int revision, boolean deleted) {
+		long changeSeq = record(typeName, key, revision, deleted);
+		held.add(changeSeq);
+		return changeSeq;
+	}
+
+	/**
+	 * Moves the sequence past a change that could not be recorded, as when a
+	 * write failed but the store may have applied it. No earlier change is
+	 * kept, so that clients read the whole store.
+	 */
+	public synchronized void skip() {
+		seq++;
+		floor = seq;
+		changes.clear();
+		if (out == null)
+			return;
+		try {
+			rewrite();
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Releases a held change, once it was handed to the clients
+	 */
+	public synchronized void release(long changeSeq) {
+		held.remove(changeSeq);
+	}
+
+	private void journal(Change change) {
+		if (out == null)
+			return;
+		try {
+			write(out, change);
+			out.flush();
+			if (++written > retain * 2)
+				rewrite();
+		}
+		catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	// without the closing marker, the next start drops all the changes
+	private void failed(IOException e) {
+		System.err.println("Could not write change journal " + file + ", changes are only kept in memory");
+		e.printStackTrace();
+		closeQuietly();
+	}
+
+	/**
+	 * @return an estimate of the memory held by the retained changes, in bytes
+	 */
+	public synchronized long getSize() {
+		return (long) changes.size() * CHANGE_BYTES;
+	}
+
+	/**
+	 * @return the sequence number of the last change
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @return the sequence number of the change that wrote a revision of a
+	 * 	key, or -1 if it is not retained
+	 */
+	public synchronized long getSeq(String key, int revision) {
+		// the change looked for is usually one of the last ones
+		Iterator<Change> it = changes.descendingIterator();
+		while (it.hasNext()) {
+			Change change = it.next();
+			if (change.revision == revision && change.key.equals(key))
+				return change.seq;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the sequence number to push with a revision of a key: the number
+	 * 	of its change, or the one before the first change still held before
+	 * 	it; -1 if the change is not retained
+	 */
+	public synchronized long getPushSeq(String key, int revision) {
+		long changeSeq = getSeq(key, revision);
+		if (changeSeq < 0)
+			return -1;
+		return getPushSeq(changeSeq, Collections.singleton(changeSeq));
+	}
+
+	/**
+	 * @return the sequence number to push with the revisions of some keys
+	 * 	written together, -1 if none of their changes is retained
+	 */
+	public synchronized long getPushSeq(Iterable<? extends SlabsDoc> docs) {
+		HashSet<Long> own = new HashSet<Long>();
+		long last = -1;
+		for (SlabsDoc doc : docs) {
+			long changeSeq = getSeq(doc.getId(), doc.getRevision());
+			own.add(changeSeq);
+			last = Math.max(last, changeSeq);
+		}
+		if (last < 0)
+			return -1;
+		return getPushSeq(last, own);
+	}
+
+	// held changes before last, other than the ones pushed, are not handed out yet
+	private long getPushSeq(long last, Collection<Long> own) {
+		for (Long first : held.headSet(last)) {
+			if (!own.contains(first))
+				return first - 1;
+		}
+		return last;
+	}
+
+	/**
+	 * Returns the changes after a sequence number, oldest first.
+	 * A key can appear more than once.
+	 * @return null if some of the changes are no longer retained, or if the
+	 * 	sequence number is from the future and the client must read the whole store
+	 */
+	public synchronized ArrayList<Change> since(long after) {
+		if (after < floor || after > seq)
+			return null;
+
+		ArrayList<Change> found = new ArrayList<Change>();
+		Iterator<Change> it = changes.descendingIterator();
+		while (it.hasNext()) {
+			Change change = it.next();
+			if (change.seq <= after)
+				break;
+			found.add(change);
+		}
+		Collections.reverse(found);
+		return found;
+	}
+
+	/**
+	 * Writes the closing marker
+	 */
+	public synchronized void close() throws IOException {
+		if (out == null)
+			return;
+		try {
+			out.writeByte(CLOSED);
+			out.flush();
+		}
+		finally {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void add(Change change) {
+		changes.addLast(change);
+		while (changes.size() > retain) {
+			floor = changes.removeFirst().seq;
+		}
+	}
+
+	private void read() throws IOException {
+		boolean closed = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			floor = in.readLong();
+			seq = floor;
+			while (true) {
+				byte type = in.readByte();
+				if (type == CLOSED) {
+					closed = true;
+					continue;
+				}
+				if (type != CHANGE)
+					break;
+				long changeSeq = in.readLong();
+				int revision = in.readInt();
+				boolean deleted = in.readBoolean();
+				String typeName = in.readUTF();
+				String key = in.readUTF();
+				closed = false;
+				seq = changeSeq;
+				add(new Change(changeSeq, typeName, key, revision, deleted));
+			}
+		}
+		catch (EOFException e) {
+			// end of the journal: closed only if the marker came after the last change
+		}
+		catch (IOException e) {
+			// unreadable tail, as after a crash
+			closed = false;
+		}
+		finally {
+			in.close();
+		}
+
+		if (!closed) {
+			System.err.println("Change journal " + file + " was not closed, clients will read the whole store");
+			seq += RESTART_STEP;
+			floor = seq;
+			changes.clear();
+		}
+	}
+
+	// writes the retained changes to a new journal
+	private void rewrite() throws IOException {
+		closeQuietly();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			tmpOut.writeLong(changes.isEmpty() ? seq : changes.getFirst().seq - 1);
+			for (Change change : changes) {
+				write(tmpOut, change);
+			}
+		}
+		finally {
+			tmpOut.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// renameTo does not replace existing files everywhere
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		written = changes.size();
+	}
+
+	private void closeQuietly() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			// nothing left to do with it
+		}
+		out = null;
+	}
+
+	private static void write(DataOutputStream out, Change change) throws IOException {
+		out.writeByte(CHANGE);
+		out.writeLong(change.seq);
+		out.writeInt(change.revision);
+		out.writeBoolean(change.deleted);
+		out.writeUTF(change.typeName);
+		out.writeUTF(change.key);
+	}
+
+	public static final class Change {
+
+		private final long seq;
+		private final String typeName;
+		private final String key;
+		private final int revision;
+		private final boolean deleted;
+
+		Change(long seq, String typeName, String key, int revision, boolean deleted) {
+			this.seq = seq;
+			this.typeName = typeName;
+			this.key = key;
+			this.revision = revision;
+			this.deleted = deleted;
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public String getTypeName() {
+			return typeName;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public int getRevision() {
+			return revision;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+
+}
@@ -0,0 +1,467 @@
+package net.caprazzi.slabs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import com.google.common.base.Function;
+
+/**
+ * Json encoding and decoding for SlabsDoc, shared by the whole application.
+ *
+ * Mappers are created once and readers are bound once per document class; all
+ * of them are thread safe. The shared mapper must not be reconfigured.
+ *
+ * Documents are stored in an envelope:
+ * {
+ * 		name: "<type name, as configured with the SlabsType annotation>"
+ * 		obj: { < the document, without id and revision > }
+ * 		_last_update: <time of the write, in milliseconds>
+ * 		_rev: <revision of the document, only in the archive partition>
+ * }
+ * Envelopes are read in a single streaming pass, binding obj straight to the
+ * document class, without building an intermediate tree.
+ */
+public final class SlabsCodec {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final JsonFactory factory = mapper.getJsonFactory();
+	private static final ObjectWriter writer = mapper.writer();
+
+	// writes documents without id and revision, the database keeps them outside obj
+	private static final ObjectMapper internalMapper = new ObjectMapper();
+	static {
+		internalMapper.getSerializationConfig().addMixInAnnotations(SlabsDoc.class, InternalMixin.class);
+	}
+	private static final ObjectWriter internalWriter = internalMapper.writer();
+
+	private static final ConcurrentHashMap<Class<?>, ObjectReader> readers
+		= new ConcurrentHashMap<Class<?>, ObjectReader>();
+
+	private SlabsCodec() {}
+
+	/**
+	 * @return the shared mapper. Must not be reconfigured
+	 */
+	public static ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * @return a reader bound to the given class, created on first use
+	 */
+	public static ObjectReader reader(Class<?> type) {
+		ObjectReader reader = readers.get(type);
+		if (reader == null) {
+			reader = mapper.reader(type);
+			readers.putIfAbsent(type, reader);
+		}
+		return reader;
+	}
+
+	public static <T> T read(byte[] data, Class<T> type) {
+		try {
+			JsonParser jp = factory.createJsonParser(data);
+			try {
+				return reader(type).<T>readValue(jp);
+			}
+			finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new SlabsException("Exception while reading " + type.getSimpleName(), e);
+		}
+	}
+
+	public static <T> T read(InputStream in, Class<T> type) {
+		try {
+			JsonParser jp = factory.createJsonParser(in);
+			try {
+				return reader(type).<T>readValue(jp);
+			}
+			finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new SlabsException("Exception while reading " + type.getSimpleName(), e);
+		}
+	}
+
+	public static byte[] write(Object value) {
+		try {
+			return writer.writeValueAsBytes(value);
+		} catch (IOException e) {
+			throw new SlabsException("Exception while serializing to json", e);
+		}
+	}
+
+	public static void write(OutputStream out, Object value) {
+		try {
+			writer.writeValue(out, value);
+		} catch (IOException e) {
+			throw new SlabsException("Exception while writing json to outputStream", e);
+		}
+	}
+
+	/**
+	 * Writes a document in its public format, including id and revision
+	 */
+	public static void write(JsonGenerator gen, SlabsDoc doc) throws IOException {
+		mapper.writeValue(gen, doc);
+	}
+
+	public static ObjectNode toTree(Object value) {
+		return mapper.valueToTree(value);
+	}
+
+	/**
+	 * @return the document as a tree, without id and revision
+	 */
+	static ObjectNode toInternalTree(SlabsDoc doc) {
+		return internalMapper.valueToTree(doc);
+	}
+
+	public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+		return factory.createJsonGenerator(out, JsonEncoding.UTF8);
+	}
+
+	/**
+	 * Encodes a document in its database envelope
+	 * @param doc
+	 * @param lastUpdate time of the write
+	 * @return
+	 */
+	public static byte[] encode(SlabsDoc doc, long lastUpdate) {
+		return encode(doc, lastUpdate, -1);
+	}
+
+	/**
+	 * Encodes a document in its database envelope, keeping its revision in
+	 * the _rev field. Used where the revision of the store can't be used.
+	 * @param revision revision of the document, not written if negative
+	 */
+	static byte[] encode(SlabsDoc doc, long lastUpdate, int revision) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		try {
+			JsonGenerator gen = createGenerator(out);
+			gen.writeStartObject();
+			gen.writeStringField("name", doc.getTypeName());
+			gen.writeFieldName("obj");
+			internalWriter.writeValue(gen, doc);
+			gen.writeNumberField("_last_update", lastUpdate);
+			if (revision >= 0)
+				gen.writeNumberField("_rev", revision);
+			gen.writeEndObject();
+			gen.close();
+		} catch (IOException e) {
+			throw new SlabsException("Exception while encoding " + doc.getId(), e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a database envelope in a single pass.
+	 * @param id id of the document
+	 * @param revision revision of the document
+	 * @param data the envelope
+	 * @param types maps type names to document classes
+	 * @return the document, or null if the envelope carries no document (a tombstone)
+	 * @throws SlabsException if the data can't be read or the type is unknown
+	 */
+	public static SlabsDoc decode(String id, int revision, byte[] data, Function<String, Class<? extends SlabsDoc>> types) {
+		try {
+			SlabsDoc doc = readEnvelope(data, types).getObj();
+			if (doc != null) {
+				doc.setId(id);
+				doc.setRevision(revision);
+			}
+			return doc;
+		} catch (IOException e) {
+			throw new SlabsException("Exception while decoding " + id, e);
+		}
+	}
+
+	/**
+	 * Reads the name and obj fields of an envelope in a single pass, binding
+	 * obj straight to the class of its type name. The tokens of obj are
+	 * buffered only when obj comes before name.
+	 * @param types maps type names to classes, null for an unknown type
+	 * @throws IOException if the data can't be read, or the type is unknown
+	 */
+	public static <T> Envelope<T> readEnvelope(byte[] data, Function<String, Class<? extends T>> types) throws IOException {
+		JsonParser jp = factory.createJsonParser(data);
+		try {
+			return readEnvelope(jp, types);
+		}
+		finally {
+			jp.close();
+		}
+	}
+
+	private static <T> Envelope<T> readEnvelope(JsonParser jp, Function<String, Class<? extends T>> types) throws IOException {
+		if (jp.nextToken() != JsonToken.START_OBJECT)
+			throw new IOException("Envelope is not a json object");
+
+		String name = null;
+		T obj = null;
+		TokenBuffer pending = null;
+
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			String field = jp.getCurrentName();
+			jp.nextToken();
+			if ("name".equals(field)) {
+				name = jp.getText();
+			}
+			else if ("obj".equals(field)) {
+				if (name != null) {
+					obj = bind(jp, name, types);
+				}
+				else {
+					// name comes after obj: keep the tokens until we know the type
+					pending = new TokenBuffer(mapper);
+					pending.copyCurrentStructure(jp);
+				}
+			}
+			else {
+				jp.skipChildren();
+			}
+		}
+
+		if (pending != null) {
+			if (name == null)
+				throw new IOException("Envelope has no type name");
+			JsonParser buffered = pending.asParser();
+			buffered.nextToken();
+			obj = bind(buffered, name, types);
+		}
+		return new Envelope<T>(name, obj);
+	}
+
+	private static <T> T bind(JsonParser jp, String name, Function<String, Class<? extends T>> types) throws IOException {
+		Class<? extends T> type = types.apply(name);
+		if (type == null)
+			throw new IOException("Unknown document type " + name);
+		return reader(type).<T>readValue(jp);
+	}
+
+	/**
+	 * @return the type name in the envelope, or null if there is none
+	 */
+	public static String readTypeName(byte[] data) {
+		try {
+			JsonParser jp = factory.createJsonParser(data);
+			try {
+				if (jp.nextToken() != JsonToken.START_OBJECT)
+					return null;
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String field = jp.getCurrentName();
+					jp.nextToken();
+					if ("name".equals(field))
+						return jp.getText();
+					jp.skipChildren();
+				}
+				return null;
+			}
+			finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new SlabsException("Exception while reading type name", e);
+		}
+	}
+
+	/**
+	 * @return the _last_update field of the envelope, or -1 if there is none
+	 */
+	public static long readLastUpdate(byte[] data) {
+		return readLong(data, "_last_update");
+	}
+
+	/**
+	 * @return a numeric field of the envelope, or -1 if there is none
+	 */
+	static long readLong(byte[] data, String name) {
+		try {
+			JsonParser jp = factory.createJsonParser(data);
+			try {
+				if (jp.nextToken() != JsonToken.START_OBJECT)
+					return -1;
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String field = jp.getCurrentName();
+					jp.nextToken();
+					if (name.equals(field))
+						return jp.getLongValue();
+					jp.skipChildren();
+				}
+				return -1;
+			}
+			finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new SlabsException("Exception while reading " + name, e);
+		}
+	}
+
+	/**
+	 * Reads some top level fields of the document in an envelope, without
+	 * binding it. Values of other fields are skipped, not decoded.
+	 * @param data the envelope
+	 * @param names names of the fields to read
+	 * @return the values found, by name. Fields missing from the document are missing from the map
+	 */
+	static Map<String, JsonNode> project(byte[] data, Set<String> names) {
+		HashMap<String, JsonNode> found = new HashMap<String, JsonNode>();
+		try {
+			JsonParser jp = factory.createJsonParser(data);
+			try {
+				if (jp.nextToken() != JsonToken.START_OBJECT)
+					throw new IOException("Envelope is not a json object");
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String field = jp.getCurrentName();
+					JsonToken token = jp.nextToken();
+					if (!"obj".equals(field) || token != JsonToken.START_OBJECT) {
+						jp.skipChildren();
+						continue;
+					}
+					while (jp.nextToken() == JsonToken.FIELD_NAME) {
+						String name = jp.getCurrentName();
+						jp.nextToken();
+						if (names.contains(name)) {
+							found.put(name, jp.readValueAsTree());
+							if (found.size() == names.size())
+								return found;
+						}
+						else {
+							jp.skipChildren();
+						}
+					}
+					return found;
+				}
+				return found;
+			}
+			finally {
+				jp.close();
+			}
+		} catch (IOException e) {
+			throw new SlabsException("Exception while projecting fields", e);
+		}
+	}
+
+	/**
+	 * Writes the document in an envelope in its public format, including id
+	 * and revision, copying the stored json without binding it.
+	 */
+	static void writeRecord(JsonGenerator gen, String id, int revision, byte[] data) throws IOException {
+		JsonParser jp = factory.createJsonParser(data);
+		try {
+			if (jp.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("Envelope is not a json object");
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				String field = jp.getCurrentName();
+				JsonToken token = jp.nextToken();
+				if (!"obj".equals(field) || token != JsonToken.START_OBJECT) {
+					jp.skipChildren();
+					continue;
+				}
+				gen.writeStartObject();
+				gen.writeStringField("id", id);
+				gen.writeNumberField("revision", revision);
+				while (jp.nextToken() == JsonToken.FIELD_NAME) {
+					String name = jp.getCurrentName();
+					jp.nextToken();
+					if ("id".equals(name) || "revision".equals(name)) {
+						jp.skipChildren();
+						continue;
+					}
+					gen.writeFieldName(name);
+					copy(jp, gen);
+				}
+				gen.writeEndObject();
+				return;
+			}
+			throw new IOException("Envelope of " + id + " has no document");
+		}
+		finally {
+			jp.close();
+		}
+	}
+
+	// like JsonGenerator.copyCurrentStructure, but keeps all the digits of decimals
+	private static void copy(JsonParser jp, JsonGenerator gen) throws IOException {
+		switch (jp.getCurrentToken()) {
+		case START_OBJECT:
+			gen.writeStartObject();
+			while (jp.nextToken() == JsonToken.FIELD_NAME) {
+				gen.writeFieldName(jp.getCurrentName());
+				jp.nextToken();
+				copy(jp, gen);
+			}
+			gen.writeEndObject();
+			break;
+		case START_ARRAY:
+			gen.writeStartArray();
+			while (jp.nextToken() != JsonToken.END_ARRAY) {
+				copy(jp, gen);
+			}
+			gen.writeEndArray();
+			break;
+		case VALUE_NUMBER_FLOAT:
+			gen.writeNumber(jp.getText());
+			break;
+		default:
+			gen.copyCurrentEvent(jp);
+		}
+	}
+
+	/**
+	 * The type name and the object of an envelope
+	 */
+	public static final class Envelope<T> {
+		private final String name;
+		private final T obj;
+
+		Envelope(String name, T obj) {
+			this.name = name;
+			this.obj = obj;
+		}
+
+		/**
+		 * @return the type name, null if the envelope has none
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the object, null if the envelope has none
+		 */
+		public T getObj() {
+			return obj;
+		}
+	}
+
+	private static abstract class InternalMixin {
+		@JsonIgnore abstract String getId();
+		@JsonIgnore abstract int getRevision();
+	}
+
+}
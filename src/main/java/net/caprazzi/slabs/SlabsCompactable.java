@@ -0,0 +1,15 @@
+package net.caprazzi.slabs;
+
+/**
+ * A store that keeps tombstones of deleted documents
+ */
+public interface SlabsCompactable {
+
+	/**
+	 * Removes the tombstones older than the given age
+	 * @param minAge minimum age of tombstones to remove, in milliseconds
+	 * @return the number of tombstones removed
+	 */
+	public int compact(long minAge);
+
+}
@@ -0,0 +1,62 @@
+package net.caprazzi.slabs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically removes old tombstones from a store, in a background thread.
+ *
+ * Tombstones are kept at least for one period, so that clients still holding
+ * a deleted document get a collision instead of silently creating it again.
+ */
+public class SlabsCompactor {
+
+	private final SlabsCompactable slabs;
+	private final long periodMillis;
+	private ScheduledExecutorService executor;
+
+	public SlabsCompactor(SlabsCompactable slabs, long periodMillis) {
+		this.slabs = slabs;
+		this.periodMillis = periodMillis;
+	}
+
+	public synchronized void start() {
+		if (executor != null)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "slabs-compactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int removed = slabs.compact(periodMillis);
+					if (removed > 0)
+						System.out.println("Compaction removed " + removed + " tombstones");
+				}
+				catch (Exception e) {
+					// keep the schedule going
+					System.err.println("Exception while compacting");
+					e.printStackTrace();
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (executor == null)
+			return;
+		executor.shutdownNow();
+		executor = null;
+	}
+
+}
@@ -3,10 +3,7 @@ package net.caprazzi.slabs;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.annotate.JsonIgnore;
-import org.codehaus.jackson.map.MappingJsonFactory;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 
 public abstract class SlabsDoc {
@@ -44,29 +41,15 @@ public abstract class SlabsDoc {
 	}
 	
 	public void toJson(OutputStream out) {
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			mapper.writeValue(out, this);
-		} catch (Exception e) {
-			new SlabsException("Exception while writing json to outputStream", e);
-		}
+		SlabsCodec.write(out, this);
 	}
 	
 	public byte[] toJson() {
-		ObjectMapper mapper = new ObjectMapper();
-		try {
-			return mapper.writeValueAsBytes(this);
-		} catch (Exception e) {
-			throw new SlabsException("Exception while serializing to json", e);
-		}
+		return SlabsCodec.write(this);
 	}
 	
 	protected ObjectNode toInternalJson() {
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode root = mapper.valueToTree(this);		
-		root.remove("id");
-		root.remove("revision");
-		return root;
+		return SlabsCodec.toInternalTree(this);
 	}
 	
 	/**
@@ -75,40 +58,26 @@ public abstract class SlabsDoc {
 	 * 		name: "<type name, as configured with the annotation>"
 	 * 		obj: { <  the actual data of the object, as returned by toJson(false) > }
 	 * }
+	 * @see SlabsCodec#encode(SlabsDoc, long) to get the encoded bytes without building a tree
 	 * @return a jackson ObjectNode
 	 */
 	ObjectNode getDatabaseJson() {
-		ObjectMapper mapper = new ObjectMapper();
-		ObjectNode root = mapper.createObjectNode();
+		ObjectNode root = SlabsCodec.getMapper().createObjectNode();
 		root.put("name", getTypeName());
 		root.put("obj", toInternalJson());
 		return root;
 	}
 	
 	public ObjectNode toJsonNode() {
-		ObjectMapper mapper = new ObjectMapper();
-		return mapper.valueToTree(this);
+		return SlabsCodec.toTree(this);
 	}
 			
 	public static <T> T fromJson(byte[] in, Class<T> clazz) {
-		 MappingJsonFactory jsonFactory = new MappingJsonFactory(); // or, for data binding, org.codehaus.jackson.mapper.MappingJsonFactory 
-		 try {
-			JsonParser jp = jsonFactory.createJsonParser(in);
-			return jp.readValueAs(clazz);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
+		return SlabsCodec.read(in, clazz);
 	}
 	
 	public static <T> T fromJson(InputStream in, Class<T> clazz) {
-		 MappingJsonFactory jsonFactory = new MappingJsonFactory(); // or, for data binding, org.codehaus.jackson.mapper.MappingJsonFactory 
-		 try {
-			JsonParser jp = jsonFactory.createJsonParser(in);
-			return jp.readValueAs(clazz);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		
+		return SlabsCodec.read(in, clazz);
 	}
 
 }
@@ -3,6 +3,9 @@ package net.caprazzi.slabs;
 
 @SuppressWarnings("serial")
 public final class SlabsException extends RuntimeException {
+	public SlabsException(String msg) {
+		super(msg);
+	}
 	public SlabsException(String msg, Exception ex) {
 		super(msg, ex);
 	}
@@ -0,0 +1,112 @@
+package net.caprazzi.slabs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Syncs the files written in a database directory, such as the one of KeezOnFile.
+ *
+ * KeezOnFile writes each revision to a new file and tells nobody which, so
+ * new files are found by name: the directory is listed without reading the
+ * attributes of its files, and only the files that were not there at the
+ * previous sync are forced to disk. The directory is then forced once, so
+ * that the new entries survive a crash too.
+ */
+public class SlabsFileSync implements SlabsSync {
+
+	// FileChannel.open(Path, OpenOption...) of Java 7, null on older runtimes
+	private static final Method toPath;
+	private static final Method openChannel;
+	private static final Object readOptions;
+	static {
+		Method path = null;
+		Method open = null;
+		Object options = null;
+		try {
+			path = File.class.getMethod("toPath");
+			options = Array.newInstance(Class.forName("java.nio.file.OpenOption"), 1);
+			Array.set(options, 0, Class.forName("java.nio.file.StandardOpenOption").getField("READ").get(null));
+			open = FileChannel.class.getMethod("open", Class.forName("java.nio.file.Path"), options.getClass());
+		}
+		catch (Exception e) {
+			open = null;
+		}
+		toPath = path;
+		openChannel = open;
+		readOptions = options;
+	}
+
+	private final File dir;
+	// names of the files forced by the previous sync, or already there
+	private HashSet<String> synced = new HashSet<String>();
+
+	public SlabsFileSync(File dir) {
+		this.dir = dir;
+	}
+
+	@Override
+	public synchronized void sync() throws IOException {
+		String[] names = dir.list();
+		if (names == null)
+			throw new IOException("Could not list " + dir);
+
+		boolean created = false;
+		for (String name : names) {
+			if (!synced.contains(name))
+				created |= force(new File(dir, name));
+		}
+		if (created)
+			forceDirectory(dir);
+		synced = new HashSet<String>(Arrays.asList(names));
+	}
+
+	// returns false if the file is a directory, or was purged after the listing
+	private static boolean force(File file) throws IOException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		}
+		catch (FileNotFoundException e) {
+			return false;
+		}
+		try {
+			in.getFD().sync();
+		}
+		finally {
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Forces the entries of a directory to disk, so that the files created or
+	 * renamed in it are found after a crash. Java 6 can't open a directory:
+	 * on older runtimes, and where directories can't be opened, nothing is done.
+	 */
+	static void forceDirectory(File dir) throws IOException {
+		if (openChannel == null)
+			return;
+
+		FileChannel channel;
+		try {
+			channel = (FileChannel) openChannel.invoke(null, toPath.invoke(dir), readOptions);
+		}
+		catch (Exception e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		}
+		finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package net.caprazzi.slabs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Keys of the documents in a store, grouped by type name.
+ * Keys of the same type are kept in the order they were first added.
+ */
+final class SlabsKeyIndex {
+
+	private final HashMap<String, String> typeByKey = new HashMap<String, String>();
+	private final HashMap<String, LinkedHashSet<String>> keysByType = new HashMap<String, LinkedHashSet<String>>();
+
+	synchronized void put(String key, String type) {
+		String previous = typeByKey.put(key, type);
+		if (type.equals(previous))
+			return;
+
+		if (previous != null)
+			keysByType.get(previous).remove(key);
+
+		LinkedHashSet<String> keys = keysByType.get(type);
+		if (keys == null) {
+			keys = new LinkedHashSet<String>();
+			keysByType.put(type, keys);
+		}
+		keys.add(key);
+	}
+
+	synchronized void remove(String key) {
+		String type = typeByKey.remove(key);
+		if (type != null)
+			keysByType.get(type).remove(key);
+	}
+
+	/**
+	 * @return the number of keys in the index
+	 */
+	synchronized int size() {
+		return typeByKey.size();
+	}
+
+	/**
+	 * @return the type of the key, null if it is not in the index
+	 */
+	synchronized String get(String key) {
+		return typeByKey.get(key);
+	}
+
+	/**
+	 * @return a copy of the keys of the given type
+	 */
+	synchronized ArrayList<String> keys(String type) {
+		LinkedHashSet<String> keys = keysByType.get(type);
+		if (keys == null)
+			return new ArrayList<String>(0);
+		return new ArrayList<String>(keys);
+	}
+
+}
@@ -0,0 +1,756 @@
+package net.caprazzi.slabs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+/**
+ * Append-only log of key, revision and data records, split in segment files.
+ *
+ * Records are appended to the active segment; when it grows past the segment
+ * size a new one is started and the old one is memory mapped, as it will only
+ * be read from now on. An index in memory keeps the position of the last
+ * record of each key, so reads never scan the log.
+ *
+ * Records written together by append(Entry...) are all replayed or none: a
+ * crash in the middle of a write leaves a torn tail in the active segment,
+ * that is cut when the log is opened again.
+ *
+ * rewrite() copies the records still in use to a single new segment, that
+ * replaces all the segments before it. Its header marks it as merged, so if
+ * a crash leaves older segments around they are removed when the log is opened.
+ * Appends go on while the records are copied, to the segments after it.
+ *
+ * snapshot() writes the position of the last record of each key, with a tag
+ * given by the caller, and the end of the log at that time. When the log is
+ * opened again only the records after that point are read; if the snapshot
+ * is missing, damaged or does not match the segments, the whole log is read.
+ *
+ * Segment file format: magic, format version, merged flag, then records:
+ * length of the body, crc32 of the body, flags, then the body: key, revision, data.
+ */
+final class SlabsLog {
+
+	private static final int MAGIC = 0x534c4f47;
+	private static final int VERSION = 1;
+	private static final int HEADER = 4 + 4 + 1;
+	// length, crc, flags
+	private static final int RECORD_HEADER = 4 + 4 + 1;
+	// the next record belongs to the same group
+	private static final byte CONTINUES = 1;
+
+	private static final int SNAPSHOT_MAGIC = 0x534e4150;
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private final File dir;
+	private final String prefix;
+	private final long segmentSize;
+
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	// held for the whole of a rewrite, that holds the log itself only to start and to swap
+	private final Object rewriteLock = new Object();
+	private boolean closed = false;
+	private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>();
+	private Segment active;
+	// bytes of records that are not the last one of their key
+	private long garbage = 0;
+	private long size = 0;
+
+	private final File snapshotFile;
+	// end of the log when the last snapshot was written or read
+	private long snapshotSegment = -1;
+	private long snapshotOffset = -1;
+	// tags read from the snapshot, for keys not written since
+	private HashMap<String, String> tags = new HashMap<String, String>();
+
+	/**
+	 * Opens the log in dir, creating it if it does not exist, and reads the position of all keys
+	 * @throws IOException if the log could not be read, or a segment other than the last is corrupted
+	 */
+	SlabsLog(File dir, String prefix, long segmentSize) throws IOException {
+		this.dir = dir;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.snapshotFile = new File(dir, prefix + ".snapshot");
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + dir);
+		open();
+	}
+
+	/**
+	 * @return the last record of the key, or null if there is none
+	 */
+	synchronized Entry get(String key) throws IOException {
+		Location location = index.get(key);
+		if (location == null)
+			return null;
+		return new Entry(key, location.revision, location.segment.read(location));
+	}
+
+	/**
+	 * @return the revision of the last record of the key, 0 if there is none
+	 */
+	synchronized int getRevision(String key) {
+		Location location = index.get(key);
+		return location == null ? 0 : location.revision;
+	}
+
+	/**
+	 * @return all keys with a record, in the order they were first written
+	 */
+	synchronized ArrayList<String> keys() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	/**
+	 * Appends the entries in a single write. After a crash, either all of them are in the log or none is.
+	 */
+	synchronized void append(Entry... entries) throws IOException {
+		if (entries.length == 0)
+			return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ArrayList<Integer> lengths = new ArrayList<Integer>(entries.length);
+		for (int i = 0; i < entries.length; i++) {
+			int before = bytes.size();
+			writeRecord(bytes, entries[i], i < entries.length - 1);
+			lengths.add(bytes.size() - before);
+		}
+
+		long position = active.append(bytes.toByteArray());
+		for (int i = 0; i < entries.length; i++) {
+			index(new Location(active, position, lengths.get(i), entries[i].revision, entries[i].key));
+			position += lengths.get(i);
+		}
+
+		if (active.length() >= segmentSize)
+			roll();
+	}
+
+	/**
+	 * Forces the active segment to disk. Sealed segments were forced when sealed.
+	 */
+	void sync() throws IOException {
+		while (true) {
+			Segment current;
+			synchronized (this) {
+				current = active;
+			}
+			try {
+				current.force();
+				return;
+			}
+			catch (IOException e) {
+				synchronized (this) {
+					if (current == active)
+						throw e;
+				}
+				// closed by a rewrite after it was forced or found empty, force the new one
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys in the index
+	 */
+	synchronized int getKeyCount() {
+		return index.size();
+	}
+
+	/**
+	 * @return the share of the log taken by records that were replaced, 0 to 1
+	 */
+	synchronized double getGarbage() {
+		return size == 0 ? 0 : (double) garbage / size;
+	}
+
+	/**
+	 * Copies the last record of each key accepted by keep to a new merged
+	 * segment, then removes all the segments before it. The log is held only
+	 * to seal the active segment and to swap the segments: records appended
+	 * while the others are copied go to the segments after the merged one.
+	 * @return the number of keys left out
+	 */
+	int rewrite(Predicate<Entry> keep) throws IOException {
+		synchronized (rewriteLock) {
+			long number;
+			ArrayList<Location> sources;
+			synchronized (this) {
+				// leave a number free for the merged segment, between the sealed ones and the new active one
+				active.force();
+				active.seal();
+				number = active.number + 1;
+				active = Segment.create(segmentFile(number + 1), number + 1, false);
+				segments.put(active.number, active);
+				SlabsFileSync.forceDirectory(dir);
+				sources = new ArrayList<Location>(index.values());
+			}
+
+			// sealed segments are only read: copy them without holding the log
+			File tmp = new File(dir, prefix + "-" + number + ".tmp");
+			Segment merged = Segment.create(tmp, number, true);
+			ArrayList<Location> kept = new ArrayList<Location>();
+			ArrayList<Location> copies = new ArrayList<Location>();
+			ArrayList<Location> dropped = new ArrayList<Location>();
+			try {
+				for (Location location : sources) {
+					Entry entry = new Entry(location.key, location.revision, location.segment.read(location));
+					if (!keep.apply(entry)) {
+						dropped.add(location);
+						continue;
+					}
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					writeRecord(bytes, entry, false);
+					long position = merged.append(bytes.toByteArray());
+					kept.add(location);
+					copies.add(new Location(merged, position, bytes.size(), entry.revision, entry.key));
+				}
+				merged.force();
+			}
+			catch (IOException e) {
+				merged.close();
+				tmp.delete();
+				throw e;
+			}
+			merged.close();
+
+			synchronized (this) {
+				if (closed) {
+					tmp.delete();
+					throw new IOException("Log closed while rewriting");
+				}
+				File file = segmentFile(number);
+				if (!tmp.renameTo(file)) {
+					tmp.delete();
+					throw new IOException("Could not rename " + tmp + " to " + file);
+				}
+				Segment sealed = Segment.open(file, number);
+				sealed.seal();
+
+				// keys written while copying keep their new record
+				for (int i = 0; i < kept.size(); i++) {
+					Location source = kept.get(i);
+					Location copy = copies.get(i);
+					if (index.get(source.key) == source)
+						index.put(source.key, new Location(sealed, copy.offset, copy.length, copy.revision, copy.key));
+				}
+				int removed = 0;
+				for (Location source : dropped) {
+					if (index.get(source.key) == source) {
+						index.remove(source.key);
+						removed++;
+					}
+				}
+
+				for (Segment segment : new ArrayList<Segment>(segments.headMap(number).values())) {
+					segment.close();
+					segment.file.delete();
+					segments.remove(segment.number);
+				}
+				segments.put(number, sealed);
+				SlabsFileSync.forceDirectory(dir);
+
+				size = 0;
+				for (Segment segment : segments.values()) {
+					size += segment.length() - HEADER;
+				}
+				long live = 0;
+				for (Location location : index.values()) {
+					live += location.length;
+				}
+				garbage = size - live;
+				return removed;
+			}
+		}
+	}
+
+	/**
+	 * Returns the tags of the keys read from the snapshot when the log was
+	 * opened, and not written since. Later calls return an empty map.
+	 */
+	synchronized Map<String, String> takeTags() {
+		Map<String, String> taken = tags;
+		tags = new HashMap<String, String>();
+		return taken;
+	}
+
+	/**
+	 * Writes the position of all keys and the end of the log, after forcing
+	 * the log to disk. Nothing is written if the log did not change since the last snapshot.
+	 * @param tag gives the tag to store for each key
+	 * @return true if the snapshot was written
+	 */
+	synchronized boolean snapshot(Function<String, String> tag) throws IOException {
+		long offset = active.length();
+		if (active.number == snapshotSegment && offset == snapshotOffset)
+			return false;
+		active.force();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(SNAPSHOT_VERSION);
+		out.writeLong(active.number);
+		out.writeLong(offset);
+		out.writeLong(garbage);
+		out.writeLong(size);
+		out.writeInt(index.size());
+		for (Location location : index.values()) {
+			out.writeUTF(location.key);
+			out.writeInt(location.revision);
+			out.writeLong(location.segment.number);
+			out.writeLong(location.offset);
+			out.writeInt(location.length);
+			out.writeUTF(tag.apply(location.key));
+		}
+		out.close();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+
+		File tmp = new File(dir, prefix + ".snapshot.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(file));
+			bytes.writeTo(data);
+			data.writeLong(crc.getValue());
+			data.flush();
+			file.getFD().sync();
+		}
+		finally {
+			file.close();
+		}
+		if (!tmp.renameTo(snapshotFile)) {
+			tmp.delete();
+			throw new IOException("Could not rename " + tmp + " to " + snapshotFile);
+		}
+		SlabsFileSync.forceDirectory(dir);
+
+		snapshotSegment = active.number;
+		snapshotOffset = offset;
+		return true;
+	}
+
+	synchronized void close() throws IOException {
+		closed = true;
+		active.force();
+		for (Segment segment : segments.values()) {
+			segment.close();
+		}
+	}
+
+	private void index(Location location) {
+		if (!tags.isEmpty())
+			tags.remove(location.key);
+		Location previous = index.put(location.key, location);
+		if (previous != null)
+			garbage += previous.length;
+		size += location.length;
+	}
+
+	// seals the active segment and starts a new one
+	private void roll() throws IOException {
+		if (active.length() == HEADER)
+			return;
+		active.force();
+		active.seal();
+		active = Segment.create(segmentFile(active.number + 1), active.number + 1, false);
+		segments.put(active.number, active);
+		SlabsFileSync.forceDirectory(dir);
+	}
+
+	private void open() throws IOException {
+		final String start = prefix + "-";
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(start) && (name.endsWith(".log") || name.endsWith(".tmp"));
+			}
+		});
+		if (names == null)
+			throw new IOException("Could not list " + dir);
+
+		for (String name : names) {
+			// an interrupted rewrite
+			if (name.endsWith(".tmp")) {
+				new File(dir, name).delete();
+				continue;
+			}
+			File file = new File(dir, name);
+			// created just before a crash, before any record
+			if (file.length() < HEADER) {
+				file.delete();
+				continue;
+			}
+			long number;
+			try {
+				number = Long.parseLong(name.substring(start.length(), name.length() - 4));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			segments.put(number, Segment.open(file, number));
+		}
+
+		// segments older than the last merged one were merged in it
+		Long merged = null;
+		for (Segment segment : segments.values()) {
+			if (segment.merged)
+				merged = segment.number;
+		}
+		if (merged != null) {
+			for (Segment segment : new ArrayList<Segment>(segments.headMap(merged).values())) {
+				segment.close();
+				segment.file.delete();
+				segments.remove(segment.number);
+			}
+		}
+
+		// with a valid snapshot, only the records written after it are read
+		long[] mark = segments.isEmpty() ? null : readSnapshot();
+		for (Segment segment : segments.values()) {
+			boolean last = segment.number == segments.lastKey();
+			if (mark == null || segment.number > mark[0])
+				replay(segment, last, HEADER);
+			else if (segment.number == mark[0])
+				replay(segment, last, mark[1]);
+			if (!last)
+				segment.seal();
+		}
+
+		if (segments.isEmpty()) {
+			active = Segment.create(segmentFile(1), 1, false);
+			segments.put(active.number, active);
+			SlabsFileSync.forceDirectory(dir);
+		}
+		else {
+			active = segments.get(segments.lastKey());
+		}
+	}
+
+	/**
+	 * Reads the index from the snapshot file, if it matches the segments
+	 * @return the segment and offset where the snapshot was taken, null if there is no valid snapshot
+	 */
+	private long[] readSnapshot() {
+		if (!snapshotFile.isFile())
+			return null;
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(snapshotFile, "r");
+			byte[] bytes;
+			try {
+				bytes = new byte[(int) raf.length()];
+				raf.readFully(bytes);
+			}
+			finally {
+				raf.close();
+			}
+			if (bytes.length < 8)
+				throw new IOException("Truncated snapshot");
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong())
+				throw new IOException("Snapshot checksum does not match");
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+				throw new IOException("Unknown snapshot format");
+
+			long markSegment = in.readLong();
+			long markOffset = in.readLong();
+			Segment marked = segments.get(markSegment);
+			if (marked == null || markOffset < HEADER || markOffset > marked.length())
+				throw new IOException("Snapshot ends past the log");
+
+			long readGarbage = in.readLong();
+			long readSize = in.readLong();
+			int count = in.readInt();
+			LinkedHashMap<String, Location> read = new LinkedHashMap<String, Location>(count * 2);
+			HashMap<String, String> readTags = new HashMap<String, String>(count * 2);
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				int revision = in.readInt();
+				Segment segment = segments.get(in.readLong());
+				long offset = in.readLong();
+				int length = in.readInt();
+				if (segment == null || offset + length > segment.length())
+					throw new IOException("Snapshot points to a missing record of " + key);
+				read.put(key, new Location(segment, offset, length, revision, key));
+				readTags.put(key, in.readUTF());
+			}
+
+			index.putAll(read);
+			tags = readTags;
+			garbage = readGarbage;
+			size = readSize;
+			snapshotSegment = markSegment;
+			snapshotOffset = markOffset;
+			return new long[] { markSegment, markOffset };
+		}
+		catch (IOException e) {
+			System.err.println("Could not use snapshot " + snapshotFile + ", reading the whole log: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void replay(Segment segment, boolean last, long from) throws IOException {
+		ByteBuffer buffer = segment.map();
+		buffer.position((int) from);
+
+		ArrayList<Location> group = new ArrayList<Location>();
+		long end = from;
+		while (buffer.remaining() > 0) {
+			Location location;
+			boolean continues;
+			try {
+				int position = buffer.position();
+				int length = buffer.getInt();
+				int crc = buffer.getInt();
+				byte flags = buffer.get();
+				if (length < 0 || length > buffer.remaining())
+					break;
+				byte[] body = new byte[length];
+				buffer.get(body);
+				if (crc != checksum(body))
+					break;
+				location = readLocation(segment, position, body);
+				continues = (flags & CONTINUES) != 0;
+			}
+			catch (BufferUnderflowException e) {
+				break;
+			}
+
+			group.add(location);
+			if (!continues) {
+				for (Location done : group) {
+					index(done);
+				}
+				group.clear();
+				end = buffer.position();
+			}
+		}
+
+		if (end < segment.length()) {
+			if (!last)
+				throw new IOException("Corrupted segment " + segment.file + " at " + end);
+			// a write interrupted by a crash
+			segment.truncate(end);
+		}
+	}
+
+	private static Location readLocation(Segment segment, long position, byte[] body) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		byte[] key = new byte[buffer.getShort() & 0xffff];
+		buffer.get(key);
+		int revision = buffer.getInt();
+		return new Location(segment, position, RECORD_HEADER + body.length, revision, new String(key, "UTF-8"));
+	}
+
+	private static void writeRecord(ByteArrayOutputStream out, Entry entry, boolean continues) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream body = new DataOutputStream(bytes);
+		byte[] key = entry.key.getBytes("UTF-8");
+		if (key.length > 0xffff)
+			throw new IOException("Key too long: " + entry.key);
+		body.writeShort(key.length);
+		body.write(key);
+		body.writeInt(entry.revision);
+		body.write(entry.data);
+		body.close();
+
+		DataOutputStream record = new DataOutputStream(out);
+		record.writeInt(bytes.size());
+		record.writeInt(checksum(bytes.toByteArray()));
+		record.writeByte(continues ? CONTINUES : 0);
+		bytes.writeTo(record);
+		record.flush();
+	}
+
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+
+	private File segmentFile(long number) {
+		return new File(dir, prefix + "-" + number + ".log");
+	}
+
+	/**
+	 * A key, its revision and the data of its last record
+	 */
+	static final class Entry {
+
+		final String key;
+		final int revision;
+		final byte[] data;
+
+		Entry(String key, int revision, byte[] data) {
+			this.key = key;
+			this.revision = revision;
+			this.data = data;
+		}
+	}
+
+	private static final class Location {
+
+		final Segment segment;
+		final long offset;
+		final int length;
+		final int revision;
+		final String key;
+
+		Location(Segment segment, long offset, int length, int revision, String key) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.revision = revision;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * One file of the log. Appends go through the file channel; once
+	 * sealed, the file is mapped and only read from the mapping.
+	 */
+	private static final class Segment {
+
+		final File file;
+		final long number;
+		final boolean merged;
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private volatile MappedByteBuffer mapped;
+
+		private Segment(File file, long number, boolean merged, RandomAccessFile raf) {
+			this.file = file;
+			this.number = number;
+			this.merged = merged;
+			this.raf = raf;
+			this.channel = raf.getChannel();
+		}
+
+		static Segment create(File file, long number, boolean merged) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeByte(merged ? 1 : 0);
+			return new Segment(file, number, merged, raf);
+		}
+
+		static Segment open(File file, long number) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < HEADER || raf.readInt() != MAGIC)
+					throw new IOException("Not a log segment: " + file);
+				int version = raf.readInt();
+				if (version != VERSION)
+					throw new IOException("Unknown log version " + version + " in " + file);
+				return new Segment(file, number, raf.readByte() != 0, raf);
+			}
+			catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		long length() throws IOException {
+			return channel.size();
+		}
+
+		/**
+		 * @return the position of the data
+		 */
+		long append(byte[] data) throws IOException {
+			long position = channel.size();
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, position + buffer.position());
+				}
+			}
+			catch (IOException e) {
+				// leave no torn record behind
+				channel.truncate(position);
+				throw e;
+			}
+			return position;
+		}
+
+		byte[] read(Location location) throws IOException {
+			byte[] body = readBody(location);
+			ByteBuffer buffer = ByteBuffer.wrap(body);
+			buffer.position(2 + (buffer.getShort() & 0xffff) + 4);
+			return Arrays.copyOfRange(body, buffer.position(), body.length);
+		}
+
+		byte[] readBody(Location location) throws IOException {
+			byte[] body = new byte[location.length - RECORD_HEADER];
+			long position = location.offset + RECORD_HEADER;
+
+			MappedByteBuffer map = mapped;
+			if (map != null) {
+				ByteBuffer view = map.duplicate();
+				view.position((int) position);
+				view.get(body);
+				return body;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(body);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Unexpected end of " + file);
+			}
+			return body;
+		}
+
+		// a read only view of the whole file
+		MappedByteBuffer map() throws IOException {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		void seal() throws IOException {
+			mapped = map();
+		}
+
+		void truncate(long length) throws IOException {
+			channel.truncate(length);
+			channel.force(true);
+		}
+
+		void force() throws IOException {
+			channel.force(false);
+		}
+
+		void close() throws IOException {
+			// mapped buffers are released by the garbage collector, java has no way to unmap them
+			mapped = null;
+			raf.close();
+		}
+	}
+
+}
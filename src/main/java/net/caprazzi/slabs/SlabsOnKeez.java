@@ -1,39 +1,104 @@
 package net.caprazzi.slabs;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.caprazzi.keez.Keez;
 import net.caprazzi.keez.Keez.Db;
+import net.caprazzi.keez.Keez.Delete;
 import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Get;
 import net.caprazzi.keez.Keez.List;
 import net.caprazzi.keez.Keez.Put;
 import net.caprazzi.keez.KeezException;
+import net.caprazzi.slabs.SlabsArchiveIndex.Position;
 
-import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ObjectNode;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Iterables;
 
 /**
  * Slabs implementations based on Keez
+ * 
+ * Deleted documents are replaced by a tombstone that keeps their revision,
+ * so that late writes based on the deleted revision fail with a collision.
+ * Tombstones are removed from the store by compact().
+ *
+ * Keys are indexed by type name the first time a typed list is requested,
+ * reading only the type name of each document. Typed lists then read and
+ * decode only the documents of the requested type, scans don't decode them
+ * at all.
+ *
+ * With an archive partition, archived documents are moved to a separate Db
+ * when they are written. A marker keeps their revision in the main Db, as
+ * tombstones do, so lists and scans never read them. The archive partition
+ * keeps the revision of each document in the _rev field of its envelope.
  */
-public class SlabsOnKeez implements Slabs {
+public class SlabsOnKeez implements Slabs, SlabsCompactable {
 
+	static final String TOMBSTONE = "_deleted";
+	static final String ARCHIVED = "_archived";
+	
 	private final Db db;
-	private Class<?>[] typeMap;
+	private final SlabsTypes types;
+	
+	// null if archived documents stay in db
+	private final Db archive;
+	// writes to the archive partition are serialized
+	private final Object archiveLock = new Object();
+	private volatile SlabsArchiveIndex archiveIndex = null;
+	
+	// writes share the lock, compaction and index building take it exclusively
+	private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+	
+	// built on the first typed list
+	private volatile SlabsKeyIndex index = null;
 
 	public SlabsOnKeez(Db db, Class<? extends SlabsDoc>... types) {
+		this(db, null, types);
+	}
+	
+	/**
+	 * @param db the active partition
+	 * @param archive the archive partition, null to keep archived documents in db
+	 */
+	public SlabsOnKeez(Db db, Db archive, Class<? extends SlabsDoc>... types) {
 		this.db = db;
-		typeMap = setupTypes(types);
+		this.archive = archive;
+		this.types = new SlabsTypes(types);
 	}		
 	
+	public SlabsTypes getTypes() {
+		return types;
+	}
+	
 	@Override
 	public void list(final SlabsList list) {
  		db.list(new List() {
  			
+			// decoded once here: a lazy view would decode again on every iteration
 			@Override public void entries(Iterable<Entry> entries) {
-				list.callEntries(Iterables.transform(entries, entriesToDocs));
+				ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>();
+				try {
+					for (Entry e : entries) {
+						SlabsDoc doc = entriesToDocs.apply(e);
+						if (doc != null)
+							docs.add(doc);
+					}
+				} catch (Exception ex) {
+					list.callError(ex);
+					return;
+				}
+				
+				if (docs.isEmpty())
+					list.callNotFound();
+				else
+					list.callEntries(docs);
 			}
 
 			@Override public void notFound() {
@@ -50,78 +115,724 @@ public class SlabsOnKeez implements Slabs {
 		});	
 	}
 	
+	/**
+	 * Lists the documents of one type. Documents of other types are not read.
+	 */
+	@Override
+	public void list(Class<? extends SlabsDoc> type, final SlabsList list) {
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>();
+		try {
+			for (SlabsRecord record : read(type)) {
+				docs.add(record.getDoc());
+			}
+		} catch (Exception ex) {
+			list.callError(ex);
+			return;
+		}
+		
+		if (docs.isEmpty())
+			list.callNotFound();
+		else
+			list.callEntries(docs);
+	}
+	
+	/**
+	 * Lists the records of one type, reading only the fields requested by
+	 * the scan. Documents are decoded only if the scan asks for them.
+	 */
+	@Override
+	public void scan(Class<? extends SlabsDoc> type, final SlabsScan scan) {
+		ArrayList<SlabsRecord> records;
+		try {
+			records = read(type);
+			for (SlabsRecord record : records) {
+				record.project(scan.getFields());
+			}
+		} catch (Exception ex) {
+			scan.callError(ex);
+			return;
+		}
+		
+		if (records.isEmpty())
+			scan.callNotFound();
+		else
+			scan.callRecords(records);
+	}
+	
+	/**
+	 * Reads the records of one type, without decoding them
+	 */
+	private ArrayList<SlabsRecord> read(final Class<? extends SlabsDoc> type) {
+		final String name = types.getName(type);
+		ArrayList<String> keys = getIndex().keys(name);
+		
+		final ArrayList<SlabsRecord> records = new ArrayList<SlabsRecord>(keys.size());
+		final KeezException[] failure = new KeezException[1];
+		for (String key : keys) {
+			db.get(key, new Get() {
+
+				@Override public void found(String key, int rev, byte[] data) {
+					// the key could have changed type, or have been deleted, since the keys were copied
+					if (name.equals(SlabsCodec.readTypeName(data)))
+						records.add(new SlabsRecord(key, rev, type, data, types));
+				}
+
+				@Override public void notFound(String key) {}
+
+				@Override public void error(String key, KeezException ex) {
+					failure[0] = ex;
+				}
+			});
+			
+			if (failure[0] != null)
+				throw new SlabsException("Exception while reading " + key, failure[0]);
+		}
+		return records;
+	}
+	
+	// tombstones decode to null
 	private Function<Keez.Entry, SlabsDoc> entriesToDocs = new Function<Keez.Entry, SlabsDoc>() {
 		@Override
 		public SlabsDoc apply(Entry e) {
-			ObjectMapper mapper = new ObjectMapper();
-			try {
-				ObjectNode root = mapper.readValue(e.getData(), ObjectNode.class);
-				String typeName = root.get("name").getTextValue();
-				Class<?> clz = getType(typeName);
-				SlabsDoc doc = (SlabsDoc) mapper.readValue(root.get("obj"), clz);
-				doc.setId(e.getKey());
-				doc.setRevision(e.getRevision());
-				return doc;
-			} catch (Exception ex) {				
-				throw new RuntimeException(ex);
-			}
+			return SlabsCodec.decode(e.getKey(), e.getRevision(), e.getData(), types);
 		}
 	};
 	
+	@Override
+	public void get(final String id, final SlabsGet callback) {
+		db.get(id, new Get() {
+
+			@Override public void found(String key, int rev, byte[] data) {
+				SlabsDoc doc;
+				try {
+					doc = entriesToDocs.apply(new Entry(key, rev, data));
+				} catch (Exception ex) {
+					callback.callError(key, ex);
+					return;
+				}
+				if (doc != null)
+					callback.callFound(doc);
+				else if (archive != null && ARCHIVED.equals(SlabsCodec.readTypeName(data)))
+					getArchived(key, rev, callback);
+				else
+					callback.callNotFound(key);
+			}
+
+			@Override public void notFound(String key) {
+				callback.callNotFound(key);
+			}
+
+			@Override public void error(String key, KeezException ex) {
+				callback.callError(key, ex);
+			}
+		});
+	}
+	
 	@Override
 	public void put(final SlabsDoc doc, final SlabsPut callback) {
+		final long now = new Date().getTime();
+		final boolean toArchive = (archive != null && isArchived(doc));
 		byte[] data;
 		try {
-			ObjectNode databaseJson = doc.getDatabaseJson();
-			databaseJson.put("_last_update", new Date().getTime());
-			ObjectMapper mapper = new ObjectMapper();
-			data = mapper.writeValueAsBytes(databaseJson);
+			data = toArchive
+				? marker(ARCHIVED, now)
+				: SlabsCodec.encode(doc, now);
 		} catch (Exception e) {
 			callback.callError(doc.getId(), e);
 			return;
 		} 
 		
-		db.put(doc.getId(), doc.getRevision(), data, new Put() {
+		compactionLock.readLock().lock();
+		try {
+			db.put(doc.getId(), doc.getRevision(), data, new Put() {
+	
+				@Override public void collision(String key, int yourRev, int foundRev) {
+					callback.callCollision(key, yourRev, foundRev);
+				}
+	
+				@Override public void error(String key, KeezException ex) {
+					callback.callError(key, ex);
+				}
+	
+				@Override public void ok(String key, int revision) {
+					if (toArchive) {
+						try {
+							writeArchived(key, revision, doc, now);
+						} catch (Exception ex) {
+							restore(key, revision, doc, now);
+							callback.callError(key, ex);
+							return;
+						}
+					}
+					else if (archive != null) {
+						removeArchived(key, revision);
+					}
+					
+					SlabsKeyIndex current = index;
+					if (current != null) {
+						if (toArchive)
+							current.remove(key);
+						else
+							current.put(key, doc.getTypeName());
+					}
+					doc.setId(key);
+					doc.setRevision(revision);
+					callback.callOk(doc);
+				}
+			});
+		}
+		finally {
+			compactionLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Writes all documents, or none of them if the revision of any of them
+	 * is not the current one. Other writes wait until the batch is done.
+	 *
+	 * Keez has no transactions: if a write fails halfway, the documents
+	 * already written are put back as they were, with a new revision.
+	 */
+	@Override
+	public void putAll(Collection<? extends SlabsDoc> docs, final SlabsPutAll callback) {
+		compactionLock.writeLock().lock();
+		try {
+			// check all revisions before writing anything
+			final LinkedHashMap<String, SlabsDoc> previous = new LinkedHashMap<String, SlabsDoc>();
+			for (final SlabsDoc doc : docs) {
+				if (previous.containsKey(doc.getId())) {
+					callback.callError(new SlabsException("Document " + doc.getId() + " is in the batch twice"));
+					return;
+				}
+				
+				final Exception[] failure = new Exception[1];
+				final int[] found = new int[] { 0 };
+				get(doc.getId(), new SlabsGet() {
+					@Override public void found(SlabsDoc current) {
+						found[0] = current.getRevision();
+						previous.put(current.getId(), current);
+					}
+					
+					@Override public void notFound(String id) {
+						previous.put(id, null);
+					}
+					
+					@Override public void error(String id, SlabsException e) {
+						failure[0] = e;
+					}
+					
+					@Override public void applicationError(SlabsException ex) {
+						failure[0] = ex;
+					}
+				});
+				
+				if (failure[0] != null) {
+					callback.callError(failure[0]);
+					return;
+				}
+				if (found[0] != doc.getRevision()) {
+					callback.callCollision(doc.getId(), doc.getRevision(), found[0]);
+					return;
+				}
+			}
+			
+			final ArrayList<SlabsDoc> written = new ArrayList<SlabsDoc>();
+			for (SlabsDoc doc : docs) {
+				final Exception[] failure = new Exception[1];
+				final int[] collision = new int[] { -1 };
+				put(doc, new SlabsPut() {
+					@Override public void ok(SlabsDoc doc) {
+						written.add(doc);
+					}
+					
+					@Override public void collision(String id, int yourRev, int foundRev) {
+						collision[0] = foundRev;
+					}
+					
+					@Override public void error(String id, SlabsException e) {
+						failure[0] = e;
+					}
+					
+					@Override public void applicationError(SlabsException ex) {
+						failure[0] = ex;
+					}
+				});
+				
+				if (failure[0] != null || collision[0] >= 0) {
+					rollback(written, previous);
+					if (failure[0] != null)
+						callback.callError(failure[0]);
+					else
+						callback.callCollision(doc.getId(), doc.getRevision(), collision[0]);
+					return;
+				}
+			}
+			callback.callOk(written);
+		}
+		finally {
+			compactionLock.writeLock().unlock();
+		}
+	}
+	
+	// puts back the previous version of documents written by a failed batch
+	private void rollback(ArrayList<SlabsDoc> written, Map<String, SlabsDoc> previous) {
+		for (final SlabsDoc doc : written) {
+			SlabsDoc old = previous.get(doc.getId());
+			if (old == null) {
+				delete(doc.getId(), doc.getRevision(), new SlabsDelete() {
+					@Override public void ok(String id, int revision) {}
+					
+					@Override public void collision(String id, int yourRev, int foundRev) {
+						System.err.println("Could not roll back " + id + ", written again since");
+					}
+					
+					@Override public void notFound(String id) {}
+					
+					@Override public void error(String id, SlabsException e) {
+						System.err.println("Error while rolling back " + id);
+						e.printStackTrace();
+					}
+				});
+			}
+			else {
+				old.setRevision(doc.getRevision());
+				put(old, new SlabsPut() {
+					@Override public void ok(SlabsDoc doc) {}
+					
+					@Override public void collision(String id, int yourRev, int foundRev) {
+						System.err.println("Could not roll back " + id + ", written again since");
+					}
+					
+					@Override public void error(String id, SlabsException e) {
+						System.err.println("Error while rolling back " + id);
+						e.printStackTrace();
+					}
+				});
+			}
+		}
+	}
+	
+	@Override
+	public void delete(final String id, final int revision, final SlabsDelete callback) {
+		compactionLock.readLock().lock();
+		try {
+			db.get(id, new Get() {
+	
+				@Override public void found(String key, int rev, byte[] data) {
+					if (getTombstoneTime(data) >= 0) {
+						callback.callNotFound(key);
+						return;
+					}
+					
+					if (rev != revision) {
+						callback.callCollision(key, revision, rev);
+						return;
+					}
+					
+					db.put(key, revision, tombstone(), new Put() {
+	
+						@Override public void collision(String key, int yourRev, int foundRev) {
+							callback.callCollision(key, yourRev, foundRev);
+						}
+	
+						@Override public void error(String key, KeezException ex) {
+							callback.callError(key, ex);
+						}
+	
+						@Override public void ok(String key, int revision) {
+							SlabsKeyIndex current = index;
+							if (current != null)
+								current.remove(key);
+							if (archive != null)
+								removeArchived(key, revision);
+							callback.callOk(key, revision);
+						}
+					});
+				}
+	
+				@Override public void notFound(String key) {
+					callback.callNotFound(key);
+				}
+	
+				@Override public void error(String key, KeezException ex) {
+					callback.callError(key, ex);
+				}
+			});
+		}
+		finally {
+			compactionLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes from the store all tombstones older than the given age.
+	 * Writes are held while each tombstone is checked and removed.
+	 * @param minAge minimum age of tombstones to remove, in milliseconds
+	 * @return the number of tombstones removed
+	 */
+	@Override
+	public int compact(long minAge) {
+		final long limit = new Date().getTime() - minAge;
+		final ArrayList<String> expired = new ArrayList<String>();
+		
+		db.list(new List() {
+			
+			@Override public void entries(Iterable<Entry> entries) {
+				for (Entry e : entries) {
+					if (isExpiredTombstone(e.getData(), limit))
+						expired.add(e.getKey());
+				}
+			}
 
-			@Override public void collision(String key, int yourRev, int foundRev) {
-				callback.callCollision(key, yourRev, foundRev);
+			@Override public void notFound() {}
+
+			@Override public void error(KeezException ex) {
+				throw new SlabsException("Exception while listing tombstones", ex);
 			}
+		});
+		
+		final int[] removed = new int[] { 0 };
+		for (String id : expired) {
+			compactionLock.writeLock().lock();
+			try {
+				db.get(id, new Get() {
+					
+					@Override public void found(String key, int rev, byte[] data) {
+						// check again, the document could have been written since listing
+						if (!isExpiredTombstone(data, limit))
+							return;
+						
+						db.delete(key, new Delete() {
+							@Override public void deleted(String key, byte[] data) {
+								removed[0]++;
+							}
 
+							@Override public void notFound(String key) {}
+
+							@Override public void error(String key, KeezException e) {
+								System.err.println("Error while removing tombstone " + key);
+								e.printStackTrace();
+							}
+						});
+					}
+					
+					@Override public void notFound(String key) {}
+					
+					@Override public void error(String key, KeezException e) {
+						System.err.println("Error while reading tombstone " + key);
+						e.printStackTrace();
+					}
+				});
+			}
+			finally {
+				compactionLock.writeLock().unlock();
+			}
+		}
+		return removed[0];
+	}
+	
+	private byte[] tombstone() {
+		return marker(TOMBSTONE, new Date().getTime());
+	}
+	
+	// an envelope without document
+	static byte[] marker(String name, long time) {
+		ObjectNode root = SlabsCodec.getMapper().createObjectNode();
+		root.put("name", name);
+		root.put("_last_update", time);
+		return SlabsCodec.write(root);
+	}
+	
+	private boolean isExpiredTombstone(byte[] data, long limit) {
+		long time = getTombstoneTime(data);
+		return time >= 0 && time < limit;
+	}
+	
+	/**
+	 * @return the time the tombstone was written, or -1 if data is not a tombstone
+	 */
+	private long getTombstoneTime(byte[] data) {
+		if (!TOMBSTONE.equals(SlabsCodec.readTypeName(data)))
+			return -1;
+		return SlabsCodec.readLastUpdate(data);
+	}
+	
+	/**
+	 * Lists a page of the archive partition, most recently archived first.
+	 * @param after cursor returned with the previous page, null for the first page
+	 * @param limit maximum number of records in the page
+	 */
+	@Override
+	public void listArchived(String after, int limit, final SlabsPage page) {
+		final ArrayList<SlabsRecord> records = new ArrayList<SlabsRecord>();
+		if (archive == null) {
+			page.callPage(records, null);
+			return;
+		}
+		
+		String next;
+		try {
+			ArrayList<Position> positions = getArchiveIndex().page(after, limit + 1);
+			boolean more = positions.size() > limit;
+			if (more)
+				positions = new ArrayList<Position>(positions.subList(0, limit));
+			
+			for (Position position : positions) {
+				final Exception[] failure = new Exception[1];
+				archive.get(position.key, new Get() {
+					
+					@Override public void found(String key, int rev, byte[] data) {
+						String name = SlabsCodec.readTypeName(data);
+						Class<? extends SlabsDoc> type = types.getType(name);
+						if (type == null) {
+							failure[0] = new SlabsException("Unknown document type " + name + " for " + key);
+							return;
+						}
+						int revision = (int) SlabsCodec.readLong(data, "_rev");
+						records.add(new SlabsRecord(key, revision, type, data, types));
+					}
+					
+					// restored since the page was read
+					@Override public void notFound(String key) {}
+					
+					@Override public void error(String key, KeezException ex) {
+						failure[0] = ex;
+					}
+				});
+				if (failure[0] != null)
+					throw Callback.wrap(failure[0]);
+			}
+			
+			next = more ? positions.get(positions.size() - 1).toCursor() : null;
+		} catch (Exception ex) {
+			page.callError(ex);
+			return;
+		}
+		page.callPage(records, next);
+	}
+	
+	private static boolean isArchived(SlabsDoc doc) {
+		return (doc instanceof SlabsArchivable) && ((SlabsArchivable) doc).isArchived();
+	}
+	
+	private void getArchived(String id, final int revision, final SlabsGet callback) {
+		archive.get(id, new Get() {
+			
+			@Override public void found(String key, int rev, byte[] data) {
+				SlabsDoc doc;
+				try {
+					doc = SlabsCodec.decode(key, revision, data, types);
+				} catch (Exception ex) {
+					callback.callError(key, ex);
+					return;
+				}
+				if (doc == null)
+					callback.callNotFound(key);
+				else
+					callback.callFound(doc);
+			}
+			
+			@Override public void notFound(String key) {
+				callback.callNotFound(key);
+			}
+			
 			@Override public void error(String key, KeezException ex) {
 				callback.callError(key, ex);
 			}
-
-			@Override public void ok(String key, int revision) {
-				doc.setId(key);
-				doc.setRevision(revision);
-				callback.callOk(doc);
+		});
+	}
+	
+	/**
+	 * Writes a document to the archive partition, unless a newer revision is already there
+	 * @throws SlabsException if the document could not be written
+	 */
+	private void writeArchived(final String key, final int revision, SlabsDoc doc, long time) {
+		final byte[] data = SlabsCodec.encode(doc, time, revision);
+		synchronized (archiveLock) {
+			SlabsArchiveIndex current = getArchiveIndex();
+			final int[] found = new int[] { 0 };
+			final boolean[] newer = new boolean[1];
+			final Exception[] failure = new Exception[1];
+			
+			archive.get(key, new Get() {
+				@Override public void found(String key, int rev, byte[] existing) {
+					found[0] = rev;
+					newer[0] = SlabsCodec.readLong(existing, "_rev") > revision;
+				}
+				
+				@Override public void notFound(String key) {}
+				
+				@Override public void error(String key, KeezException ex) {
+					failure[0] = ex;
+				}
+			});
+			if (failure[0] != null)
+				throw Callback.wrap(failure[0]);
+			if (newer[0])
+				return;
+			
+			archive.put(key, found[0], data, new Put() {
+				@Override public void ok(String key, int rev) {}
+				
+				@Override public void collision(String key, int yourRev, int foundRev) {
+					failure[0] = new SlabsException("Concurrent write to archived document " + key);
+				}
+				
+				@Override public void error(String key, KeezException ex) {
+					failure[0] = ex;
+				}
+			});
+			if (failure[0] != null)
+				throw Callback.wrap(failure[0]);
+			current.put(key, time);
+		}
+	}
+	
+	/**
+	 * Puts a document back in the main partition after it could not be archived
+	 */
+	private void restore(String key, int revision, SlabsDoc doc, long time) {
+		db.put(key, revision, SlabsCodec.encode(doc, time), new Put() {
+			@Override public void ok(String key, int rev) {}
+			
+			@Override public void collision(String key, int yourRev, int foundRev) {
+				System.err.println("Could not restore " + key + ", written again since");
+			}
+			
+			@Override public void error(String key, KeezException e) {
+				System.err.println("Error while restoring " + key);
+				e.printStackTrace();
 			}
 		});
 	}
 	
-	/***
-	 * 
-	 *	TODO: this hashmap is not happy at all
-	 *
+	/**
+	 * Removes a document from the archive partition if it has an older revision.
+	 * The index entry goes with the document: a newer archived copy is kept, and
+	 * listed. The main partition was written already: failures are only logged.
 	 */
-	private Class<?>[] setupTypes(Class<? extends SlabsDoc>[] types) {
-		Class<?>[] clz = new Class[100];		
-		for (Class<?> t : types) {			
-			String typeName = t.getAnnotation(SlabsType.class).value();			
-			int hashCode = typeName.hashCode();
-			int pos = Math.abs(hashCode) % clz.length;
-			if (clz[pos] != null) {
-				throw new RuntimeException("collision while building type map list");
+	private void removeArchived(String key, final int revision) {
+		try {
+			synchronized (archiveLock) {
+				final SlabsArchiveIndex current = getArchiveIndex();
+				if (!current.contains(key))
+					return;
+				
+				archive.get(key, new Get() {
+					@Override public void found(String key, int rev, byte[] data) {
+						if (SlabsCodec.readLong(data, "_rev") >= revision)
+							return;
+						archive.delete(key, new Delete() {
+							@Override public void deleted(String key, byte[] data) {
+								current.remove(key);
+							}
+							
+							@Override public void notFound(String key) {
+								current.remove(key);
+							}
+							
+							@Override public void error(String key, KeezException e) {
+								System.err.println("Error while removing archived " + key);
+								e.printStackTrace();
+							}
+						});
+					}
+					
+					@Override public void notFound(String key) {
+						current.remove(key);
+					}
+					
+					@Override public void error(String key, KeezException e) {
+						System.err.println("Error while reading archived " + key);
+						e.printStackTrace();
+					}
+				});
 			}
-			clz[pos] = t;
 		}
-		return clz;
+		catch (Exception e) {
+			System.err.println("Error while removing archived " + key);
+			e.printStackTrace();
+		}
 	}
 	
-	private Class<?> getType(String name) {
-		return typeMap[Math.abs(name.hashCode()) % typeMap.length];
+	/**
+	 * Returns the index of the archive partition, reading the time of
+	 * all its documents the first time.
+	 */
+	private SlabsArchiveIndex getArchiveIndex() {
+		SlabsArchiveIndex current = archiveIndex;
+		if (current != null)
+			return current;
+		
+		synchronized (archiveLock) {
+			if (archiveIndex != null)
+				return archiveIndex;
+			
+			final SlabsArchiveIndex built = new SlabsArchiveIndex();
+			final KeezException[] failure = new KeezException[1];
+			archive.list(new List() {
+				
+				@Override public void entries(Iterable<Entry> entries) {
+					for (Entry e : entries) {
+						built.put(e.getKey(), SlabsCodec.readLastUpdate(e.getData()));
+					}
+				}
+				
+				@Override public void notFound() {}
+				
+				@Override public void error(KeezException ex) {
+					failure[0] = ex;
+				}
+			});
+			if (failure[0] != null)
+				throw new SlabsException("Exception while indexing archive", failure[0]);
+			archiveIndex = built;
+			return built;
+		}
 	}
 	
+	/**
+	 * Returns the index of keys by type, reading the type name of all
+	 * documents in the store the first time. Writes wait while the index is built.
+	 */
+	private SlabsKeyIndex getIndex() {
+		SlabsKeyIndex current = index;
+		if (current != null)
+			return current;
+		
+		compactionLock.writeLock().lock();
+		try {
+			if (index != null)
+				return index;
+			
+			final SlabsKeyIndex built = new SlabsKeyIndex();
+			final KeezException[] failure = new KeezException[1];
+			db.list(new List() {
+				
+				@Override public void entries(Iterable<Entry> entries) {
+					for (Entry e : entries) {
+						String name = SlabsCodec.readTypeName(e.getData());
+						// leave out tombstones and markers
+						if (name != null && !name.startsWith("_"))
+							built.put(e.getKey(), name);
+					}
+				}
+
+				@Override public void notFound() {}
+
+				@Override public void error(KeezException ex) {
+					failure[0] = ex;
+				}
+			});
+			if (failure[0] != null)
+				throw new SlabsException("Exception while indexing keys", failure[0]);
+			index = built;
+			return built;
+		}
+		finally {
+			compactionLock.writeLock().unlock();
+		}
+	}
 	
     /**********************************************************
     /* Callbacks
@@ -135,13 +846,19 @@ public class SlabsOnKeez implements Slabs {
 		
 		void callApplicationError(Exception ex) {
 			try {
-				applicationError(new SlabsException(ex));
+				applicationError(wrap(ex));
 			}
 			catch (Exception e) {
 				System.err.println("Exception while executing applicationError");
 				e.printStackTrace();
 			}
 		}
+		
+		static SlabsException wrap(Exception ex) {
+			return (ex instanceof SlabsException)
+				? (SlabsException) ex
+				: new SlabsException(ex);
+		}
 	}
 	
 	public static abstract class SlabsPut extends Callback {
@@ -154,7 +871,7 @@ public class SlabsOnKeez implements Slabs {
 
 		final void callError(String id, Exception e) {
 			try {
-				error(id, new SlabsException(e));
+				error(id, wrap(e));
 			}
 			catch(Exception ex) {
 				callApplicationError(ex);
@@ -180,6 +897,48 @@ public class SlabsOnKeez implements Slabs {
 		}
 	}
 	
+	public static abstract class SlabsPutAll extends Callback {
+		
+		/**
+		 * @param docs the documents written, with their new revision
+		 */
+		public abstract void ok(Iterable<SlabsDoc> docs);
+		
+		/**
+		 * Called for the first document with a stale revision. Nothing was written
+		 */
+		public abstract void collision(String id, int yourRev, int foundRev);
+		
+		public abstract void error(SlabsException e);
+		
+		final void callOk(Iterable<SlabsDoc> docs) {
+			try {
+				ok(docs);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callCollision(String id, int yourRev, int foundRev) {
+			try {
+				collision(id, yourRev, foundRev);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callError(Exception e) {
+			try {
+				error(wrap(e));
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+	}
+	
 	public static abstract class SlabsList extends Callback {
 		
 		public abstract void entries(Iterable<SlabsDoc> docs);
@@ -199,7 +958,7 @@ public class SlabsOnKeez implements Slabs {
 		
 		public final void callError(Exception ex) {
 			try {
-				error(new SlabsException(ex));
+				error(wrap(ex));
 			}
 			catch (Exception e) {
 				callApplicationError(ex);
@@ -216,8 +975,169 @@ public class SlabsOnKeez implements Slabs {
 		}
 	}
 	
-	public interface SlabsDelete {
+	public static abstract class SlabsScan extends Callback {
+		
+		private final String[] fields;
+		
+		/**
+		 * @param fields fields read from each record before it is handed to records()
+		 */
+		public SlabsScan(String... fields) {
+			this.fields = fields;
+		}
+		
+		public final String[] getFields() {
+			return fields;
+		}
+		
+		public abstract void records(Iterable<SlabsRecord> records);
+		
+		public abstract void error(SlabsException ex);
+		
+		public abstract void notFound();
+		
+		final void callRecords(Iterable<SlabsRecord> records) {
+			try {
+				records(records);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callError(Exception ex) {
+			try {
+				error(wrap(ex));
+			}
+			catch (Exception e) {
+				callApplicationError(e);
+			}
+		}
+		
+		final void callNotFound() {
+			try {
+				notFound();
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+	}
+	
+	public static abstract class SlabsPage extends Callback {
+		
+		/**
+		 * @param records the records in the page
+		 * @param next cursor of the next page, null if this is the last one
+		 */
+		public abstract void page(Iterable<SlabsRecord> records, String next);
+		
+		public abstract void error(SlabsException ex);
+		
+		final void callPage(Iterable<SlabsRecord> records, String next) {
+			try {
+				page(records, next);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callError(Exception ex) {
+			try {
+				error(wrap(ex));
+			}
+			catch (Exception e) {
+				callApplicationError(e);
+			}
+		}
+	}
+	
+	public static abstract class SlabsGet extends Callback {
+		
+		public abstract void found(SlabsDoc doc);
 		
+		public abstract void notFound(String id);
+		
+		public abstract void error(String id, SlabsException e);
+		
+		final void callFound(SlabsDoc doc) {
+			try {
+				found(doc);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callNotFound(String id) {
+			try {
+				notFound(id);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callError(String id, Exception e) {
+			try {
+				error(id, wrap(e));
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+	}
+	
+	public static abstract class SlabsDelete extends Callback {
+		
+		/**
+		 * @param id
+		 * @param revision revision of the tombstone that replaced the document
+		 */
+		public abstract void ok(String id, int revision);
+		
+		public abstract void collision(String id, int yourRev, int foundRev);
+		
+		public abstract void notFound(String id);
+		
+		public abstract void error(String id, SlabsException e);
+		
+		final void callOk(String id, int revision) {
+			try {
+				ok(id, revision);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callCollision(String id, int yourRev, int foundRev) {
+			try {
+				collision(id, yourRev, foundRev);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callNotFound(String id) {
+			try {
+				notFound(id);
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
+		
+		final void callError(String id, Exception e) {
+			try {
+				error(id, wrap(e));
+			}
+			catch (Exception ex) {
+				callApplicationError(ex);
+			}
+		}
 	}
 
 }
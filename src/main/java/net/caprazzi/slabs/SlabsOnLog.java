@@ -0,0 +1,548 @@
+package net.caprazzi.slabs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.caprazzi.keez.Keez.Db;
+import net.caprazzi.keez.Keez.Entry;
+import net.caprazzi.keez.Keez.Get;
+import net.caprazzi.keez.Keez.List;
+import net.caprazzi.keez.KeezException;
+import net.caprazzi.slabs.SlabsArchiveIndex.Position;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+
+import org.codehaus.jackson.JsonNode;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+
+/**
+ * Slabs implementation on a log of segment files (see SlabsLog).
+ *
+ * Documents are stored in the same envelopes as in SlabsOnKeez. Deleted
+ * documents leave a tombstone that keeps their revision until compact()
+ * removes it. Archived documents stay in the log, but the index of keys by type
+ * leaves them out, so lists and scans never read them.
+ *
+ * The indexes are read when the store is opened, from the snapshot written
+ * by compact() and close() and from the records appended after it; without a
+ * valid snapshot the whole log is read. Writes are
+ * serialized, reads go straight to the log. Batches written by putAll() are
+ * appended in a single write: after a crash either all of them are there or none is.
+ */
+public class SlabsOnLog implements Slabs, SlabsSync, SlabsCompactable {
+
+	public static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	// rewrite the log when this share of it is taken by replaced records
+	private static final double MAX_GARBAGE = 0.5;
+
+	private static final Set<String> ARCHIVED_FIELD = Collections.singleton("archived");
+
+	// estimated bytes taken by a key in each index, with the key itself
+	private static final int LOCATION_BYTES = 160;
+	private static final int TYPE_ENTRY_BYTES = 96;
+	private static final int ARCHIVE_ENTRY_BYTES = 160;
+
+	private final SlabsLog log;
+	private final SlabsTypes types;
+
+	private final Object writeLock = new Object();
+	private final SlabsKeyIndex index = new SlabsKeyIndex();
+	private final SlabsArchiveIndex archiveIndex = new SlabsArchiveIndex();
+
+	public SlabsOnLog(File dir, String prefix, Class<? extends SlabsDoc>... types) throws IOException {
+		this(dir, prefix, SEGMENT_SIZE, types);
+	}
+
+	public SlabsOnLog(File dir, String prefix, long segmentSize, Class<? extends SlabsDoc>... types) throws IOException {
+		this.types = new SlabsTypes(types);
+		this.log = new SlabsLog(dir, prefix, segmentSize);
+		Map<String, String> tags = log.takeTags();
+		for (String key : log.keys()) {
+			String tag = tags.get(key);
+			if (tag == null || !index(key, tag)) {
+				SlabsLog.Entry entry = log.get(key);
+				index(key, entry.data);
+			}
+		}
+	}
+
+	public SlabsTypes getTypes() {
+		return types;
+	}
+
+	@Override
+	public void list(SlabsList list) {
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>();
+		try {
+			for (String key : log.keys()) {
+				if (archiveIndex.contains(key))
+					continue;
+				SlabsLog.Entry entry = log.get(key);
+				// tombstones decode to null
+				SlabsDoc doc = (entry == null) ? null : SlabsCodec.decode(key, entry.revision, entry.data, types);
+				if (doc != null)
+					docs.add(doc);
+			}
+		} catch (Exception ex) {
+			list.callError(ex);
+			return;
+		}
+
+		if (docs.isEmpty())
+			list.callNotFound();
+		else
+			list.callEntries(docs);
+	}
+
+	@Override
+	public void list(Class<? extends SlabsDoc> type, SlabsList list) {
+		ArrayList<SlabsDoc> docs = new ArrayList<SlabsDoc>();
+		try {
+			for (SlabsRecord record : read(type)) {
+				docs.add(record.getDoc());
+			}
+		} catch (Exception ex) {
+			list.callError(ex);
+			return;
+		}
+
+		if (docs.isEmpty())
+			list.callNotFound();
+		else
+			list.callEntries(docs);
+	}
+
+	@Override
+	public void scan(Class<? extends SlabsDoc> type, SlabsScan scan) {
+		ArrayList<SlabsRecord> records;
+		try {
+			records = read(type);
+			for (SlabsRecord record : records) {
+				record.project(scan.getFields());
+			}
+		} catch (Exception ex) {
+			scan.callError(ex);
+			return;
+		}
+
+		if (records.isEmpty())
+			scan.callNotFound();
+		else
+			scan.callRecords(records);
+	}
+
+	private ArrayList<SlabsRecord> read(Class<? extends SlabsDoc> type) throws IOException {
+		String name = types.getName(type);
+		ArrayList<String> keys = index.keys(name);
+		ArrayList<SlabsRecord> records = new ArrayList<SlabsRecord>(keys.size());
+		for (String key : keys) {
+			SlabsLog.Entry entry = log.get(key);
+			// the key could have changed type, or have been deleted, since the keys were copied
+			if (entry != null && name.equals(SlabsCodec.readTypeName(entry.data)))
+				records.add(new SlabsRecord(key, entry.revision, type, entry.data, types));
+		}
+		return records;
+	}
+
+	@Override
+	public void listArchived(String after, int limit, SlabsPage page) {
+		ArrayList<SlabsRecord> records = new ArrayList<SlabsRecord>();
+		String next;
+		try {
+			ArrayList<Position> positions = archiveIndex.page(after, limit + 1);
+			boolean more = positions.size() > limit;
+			if (more)
+				positions = new ArrayList<Position>(positions.subList(0, limit));
+
+			for (Position position : positions) {
+				SlabsLog.Entry entry = log.get(position.key);
+				// restored since the page was read
+				if (entry == null || !archiveIndex.contains(position.key))
+					continue;
+				String name = SlabsCodec.readTypeName(entry.data);
+				Class<? extends SlabsDoc> type = types.getType(name);
+				if (type == null)
+					throw new SlabsException("Unknown document type " + name + " for " + position.key);
+				records.add(new SlabsRecord(position.key, entry.revision, type, entry.data, types));
+			}
+
+			next = more ? positions.get(positions.size() - 1).toCursor() : null;
+		} catch (Exception ex) {
+			page.callError(ex);
+			return;
+		}
+		page.callPage(records, next);
+	}
+
+	@Override
+	public void get(String id, SlabsGet callback) {
+		SlabsDoc doc;
+		try {
+			SlabsLog.Entry entry = log.get(id);
+			doc = (entry == null) ? null : SlabsCodec.decode(id, entry.revision, entry.data, types);
+		} catch (Exception ex) {
+			callback.callError(id, ex);
+			return;
+		}
+
+		if (doc == null)
+			callback.callNotFound(id);
+		else
+			callback.callFound(doc);
+	}
+
+	@Override
+	public void put(SlabsDoc doc, SlabsPut callback) {
+		long now = new Date().getTime();
+		int current;
+		Exception failure = null;
+		synchronized (writeLock) {
+			current = log.getRevision(doc.getId());
+			if (current == doc.getRevision()) {
+				try {
+					log.append(new SlabsLog.Entry(doc.getId(), current + 1, SlabsCodec.encode(doc, now)));
+					index(doc.getId(), doc, now);
+				} catch (Exception ex) {
+					failure = ex;
+				}
+			}
+		}
+
+		if (failure != null) {
+			callback.callError(doc.getId(), failure);
+		}
+		else if (current != doc.getRevision()) {
+			callback.callCollision(doc.getId(), doc.getRevision(), current);
+		}
+		else {
+			doc.setRevision(current + 1);
+			callback.callOk(doc);
+		}
+	}
+
+	/**
+	 * Writes all documents in a single append to the log, or none of them if
+	 * the revision of any of them is not the current one.
+	 */
+	@Override
+	public void putAll(Collection<? extends SlabsDoc> docs, SlabsPutAll callback) {
+		long now = new Date().getTime();
+		ArrayList<SlabsDoc> written = new ArrayList<SlabsDoc>(docs);
+		SlabsDoc stale = null;
+		int found = 0;
+		Exception failure = null;
+
+		synchronized (writeLock) {
+			HashSet<String> ids = new HashSet<String>();
+			SlabsLog.Entry[] entries = new SlabsLog.Entry[written.size()];
+			for (int i = 0; i < entries.length && failure == null && stale == null; i++) {
+				SlabsDoc doc = written.get(i);
+				int current = log.getRevision(doc.getId());
+				if (!ids.add(doc.getId())) {
+					failure = new SlabsException("Document " + doc.getId() + " is in the batch twice");
+				}
+				else if (current != doc.getRevision()) {
+					stale = doc;
+					found = current;
+				}
+				else {
+					try {
+						entries[i] = new SlabsLog.Entry(doc.getId(), current + 1, SlabsCodec.encode(doc, now));
+					} catch (Exception ex) {
+						failure = ex;
+					}
+				}
+			}
+
+			if (failure == null && stale == null) {
+				try {
+					log.append(entries);
+					for (SlabsDoc doc : written) {
+						index(doc.getId(), doc, now);
+					}
+				} catch (Exception ex) {
+					failure = ex;
+				}
+			}
+		}
+
+		if (failure != null) {
+			callback.callError(failure);
+		}
+		else if (stale != null) {
+			callback.callCollision(stale.getId(), stale.getRevision(), found);
+		}
+		else {
+			for (SlabsDoc doc : written) {
+				doc.setRevision(doc.getRevision() + 1);
+			}
+			callback.callOk(written);
+		}
+	}
+
+	@Override
+	public void delete(String id, int revision, SlabsDelete callback) {
+		int found = 0;
+		boolean deleted = false;
+		Exception failure = null;
+
+		synchronized (writeLock) {
+			try {
+				SlabsLog.Entry entry = log.get(id);
+				if (entry != null && !SlabsOnKeez.TOMBSTONE.equals(SlabsCodec.readTypeName(entry.data))) {
+					found = entry.revision;
+					if (found == revision) {
+						log.append(new SlabsLog.Entry(id, revision + 1, SlabsOnKeez.marker(SlabsOnKeez.TOMBSTONE, new Date().getTime())));
+						index.remove(id);
+						archiveIndex.remove(id);
+						deleted = true;
+					}
+				}
+			} catch (Exception ex) {
+				failure = ex;
+			}
+		}
+
+		if (failure != null)
+			callback.callError(id, failure);
+		else if (deleted)
+			callback.callOk(id, revision + 1);
+		else if (found == 0)
+			callback.callNotFound(id);
+		else
+			callback.callCollision(id, revision, found);
+	}
+
+	/**
+	 * Rewrites the log without the tombstones older than the given age,
+	 * if there are any or if the log holds too many replaced records.
+	 * Then writes a snapshot of the indexes, if the log changed since the last one.
+	 * Writes go on while the log is rewritten: a tombstone written again
+	 * meanwhile is replaced by the new record, not removed.
+	 * @param minAge minimum age of tombstones to remove, in milliseconds
+	 * @return the number of tombstones removed
+	 */
+	@Override
+	public int compact(long minAge) {
+		final long limit = new Date().getTime() - minAge;
+		try {
+			int removed = 0;
+			boolean expired = false;
+			for (String key : log.keys()) {
+				SlabsLog.Entry entry = log.get(key);
+				if (entry != null && isExpiredTombstone(entry.data, limit)) {
+					expired = true;
+					break;
+				}
+			}
+			if (expired || log.getGarbage() >= MAX_GARBAGE) {
+				removed = log.rewrite(new Predicate<SlabsLog.Entry>() {
+					@Override
+					public boolean apply(SlabsLog.Entry entry) {
+						return !isExpiredTombstone(entry.data, limit);
+					}
+				});
+			}
+			snapshot();
+			return removed;
+		} catch (IOException e) {
+			throw new SlabsException("Exception while compacting", e);
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the indexes, so that the next time the store is
+	 * opened only the records written after it are read.
+	 * @return false if the log did not change since the last snapshot
+	 */
+	public boolean snapshot() throws IOException {
+		synchronized (writeLock) {
+			return log.snapshot(new Function<String, String>() {
+				@Override
+				public String apply(String key) {
+					return tag(key);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void sync() throws IOException {
+		log.sync();
+	}
+
+	/**
+	 * @return an estimate of the memory held by the indexes, in bytes. The
+	 * 	segments are memory mapped and not counted
+	 */
+	public long getSize() {
+		return (long) log.getKeyCount() * LOCATION_BYTES
+				+ (long) index.size() * TYPE_ENTRY_BYTES
+				+ (long) archiveIndex.size() * ARCHIVE_ENTRY_BYTES;
+	}
+
+	public void close() throws IOException {
+		synchronized (writeLock) {
+			try {
+				snapshot();
+			}
+			finally {
+				log.close();
+			}
+		}
+	}
+
+	/**
+	 * Copies all the documents of a Keez store, and of its archive partition,
+	 * to this store. Revisions and times of last update are kept.
+	 * @param archive the archive partition, null if there is none
+	 * @return the number of documents copied
+	 */
+	public int importFrom(Db db, final Db archive) throws IOException {
+		final ArrayList<SlabsLog.Entry> entries = new ArrayList<SlabsLog.Entry>();
+		final KeezException[] failure = new KeezException[1];
+		db.list(new List() {
+
+			@Override public void entries(Iterable<Entry> found) {
+				for (Entry e : found) {
+					entries.add(new SlabsLog.Entry(e.getKey(), e.getRevision(), e.getData()));
+				}
+			}
+
+			@Override public void notFound() {}
+
+			@Override public void error(KeezException ex) {
+				failure[0] = ex;
+			}
+		});
+		if (failure[0] != null)
+			throw new IOException("Exception while listing " + db, failure[0]);
+
+		int copied = 0;
+		synchronized (writeLock) {
+			for (final SlabsLog.Entry entry : entries) {
+				SlabsLog.Entry copy = entry;
+				if (SlabsOnKeez.ARCHIVED.equals(SlabsCodec.readTypeName(entry.data))) {
+					if (archive == null)
+						continue;
+					final SlabsLog.Entry[] archived = new SlabsLog.Entry[1];
+					archive.get(entry.key, new Get() {
+						@Override public void found(String key, int rev, byte[] data) {
+							archived[0] = new SlabsLog.Entry(key, entry.revision, data);
+						}
+
+						@Override public void notFound(String key) {}
+
+						@Override public void error(String key, KeezException ex) {
+							failure[0] = ex;
+						}
+					});
+					if (failure[0] != null)
+						throw new IOException("Exception while reading archived " + entry.key, failure[0]);
+					if (archived[0] == null)
+						continue;
+					copy = archived[0];
+				}
+
+				if (log.getRevision(copy.key) >= copy.revision)
+					continue;
+				log.append(copy);
+				index(copy.key, copy.data);
+				copied++;
+			}
+			log.sync();
+		}
+		return copied;
+	}
+
+	// updates the indexes after a document was written
+	private void index(String key, SlabsDoc doc, long time) {
+		if ((doc instanceof SlabsArchivable) && ((SlabsArchivable) doc).isArchived()) {
+			index.remove(key);
+			archiveIndex.put(key, time);
+		}
+		else {
+			archiveIndex.remove(key);
+			index.put(key, doc.getTypeName());
+		}
+	}
+
+	// updates the indexes from the envelope of a document, without decoding it
+	private void index(String key, byte[] data) {
+		String name = SlabsCodec.readTypeName(data);
+		// leave out tombstones
+		if (name == null || name.startsWith("_")) {
+			index.remove(key);
+			archiveIndex.remove(key);
+			return;
+		}
+
+		Class<? extends SlabsDoc> type = types.getType(name);
+		if (type != null && SlabsArchivable.class.isAssignableFrom(type)) {
+			Map<String, JsonNode> fields = SlabsCodec.project(data, ARCHIVED_FIELD);
+			JsonNode archived = fields.get("archived");
+			if (archived != null && archived.getBooleanValue()) {
+				index.remove(key);
+				archiveIndex.put(key, SlabsCodec.readLastUpdate(data));
+				return;
+			}
+		}
+		archiveIndex.remove(key);
+		index.put(key, name);
+	}
+
+	// the state of a key in the indexes, as stored in the snapshot
+	private String tag(String key) {
+		long time = archiveIndex.getTime(key);
+		if (time >= 0)
+			return "a:" + time;
+		String name = index.get(key);
+		if (name != null)
+			return "t:" + name;
+		return "d";
+	}
+
+	// updates the indexes from a tag read from the snapshot
+	// returns false if the tag is not valid, and the document has to be read
+	private boolean index(String key, String tag) {
+		try {
+			if (tag.equals("d")) {
+				return true;
+			}
+			if (tag.startsWith("a:")) {
+				archiveIndex.put(key, Long.parseLong(tag.substring(2)));
+				return true;
+			}
+			if (tag.startsWith("t:") && types.getType(tag.substring(2)) != null) {
+				index.put(key, tag.substring(2));
+				return true;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		return false;
+	}
+
+	private static boolean isExpiredTombstone(byte[] data, long limit) {
+		if (!SlabsOnKeez.TOMBSTONE.equals(SlabsCodec.readTypeName(data)))
+			return false;
+		long time = SlabsCodec.readLastUpdate(data);
+		return time >= 0 && time < limit;
+	}
+
+}
@@ -0,0 +1,172 @@
+package net.caprazzi.slabs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.MissingNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * A document as read from the store, decoded only when needed.
+ *
+ * Single fields can be read with getField() without binding the whole
+ * document, and the record can be written in its public format by copying
+ * the stored json. The document is bound once, on the first call to getDoc().
+ *
+ * Records are shared and thread safe. The document returned by getDoc()
+ * must not be modified.
+ */
+public final class SlabsRecord {
+
+	// estimated bytes of a record besides its envelope, and of a document
+	// whose envelope is not kept
+	private static final int RECORD_BYTES = 128;
+	private static final int DOC_BYTES = 1024;
+
+	private final String id;
+	private final int revision;
+	private final Class<? extends SlabsDoc> type;
+
+	// the envelope, null if the record was made from a document
+	private final byte[] data;
+	private final SlabsTypes types;
+
+	private volatile long lastUpdate = -1;
+	private volatile SlabsDoc doc;
+	private volatile ObjectNode tree;
+	private final ConcurrentHashMap<String, JsonNode> fields = new ConcurrentHashMap<String, JsonNode>();
+
+	SlabsRecord(String id, int revision, Class<? extends SlabsDoc> type, byte[] data, SlabsTypes types) {
+		this.id = id;
+		this.revision = revision;
+		this.type = type;
+		this.data = data;
+		this.types = types;
+	}
+
+	public SlabsRecord(SlabsDoc doc) {
+		this.id = doc.getId();
+		this.revision = doc.getRevision();
+		this.type = doc.getClass();
+		this.data = null;
+		this.types = null;
+		this.lastUpdate = System.currentTimeMillis();
+		this.doc = doc;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public int getRevision() {
+		return revision;
+	}
+
+	public Class<? extends SlabsDoc> getType() {
+		return type;
+	}
+
+	public String getTypeName() {
+		return type.getAnnotation(SlabsType.class).value();
+	}
+
+	/**
+	 * @return time of the last write of the document, in milliseconds.
+	 * 	For records made from a document, the time the record was made
+	 */
+	public long getLastUpdate() {
+		long current = lastUpdate;
+		if (current < 0) {
+			current = SlabsCodec.readLastUpdate(data);
+			lastUpdate = current;
+		}
+		return current;
+	}
+
+	/**
+	 * @return the document, bound on the first call
+	 * @throws SlabsException if the document can't be decoded
+	 */
+	public SlabsDoc getDoc() {
+		SlabsDoc current = doc;
+		if (current == null) {
+			current = SlabsCodec.decode(id, revision, data, types);
+			if (current == null || current.getClass() != type)
+				throw new SlabsException("Record " + id + " is not a " + type.getSimpleName());
+			doc = current;
+		}
+		return current;
+	}
+
+	/**
+	 * @return an estimate of the memory held by the record, in bytes: the
+	 * 	envelope, and the document once bound, taken as twice the envelope
+	 * 	since its strings are made of chars
+	 */
+	long getSize() {
+		if (data == null)
+			return RECORD_BYTES + DOC_BYTES;
+		long size = RECORD_BYTES + data.length;
+		if (doc != null)
+			size += 2L * data.length;
+		return size;
+	}
+
+	/**
+	 * Reads the given fields in a single pass, if they were not read yet.
+	 */
+	public void project(String... names) {
+		if (data == null)
+			return;
+
+		HashSet<String> missing = new HashSet<String>();
+		for (String name : Arrays.asList(names)) {
+			if (!fields.containsKey(name))
+				missing.add(name);
+		}
+		if (missing.isEmpty())
+			return;
+
+		Map<String, JsonNode> found = SlabsCodec.project(data, missing);
+		for (String name : missing) {
+			JsonNode value = found.get(name);
+			fields.put(name, value == null ? MissingNode.getInstance() : value);
+		}
+	}
+
+	/**
+	 * @return the value of a top level field of the document, null if missing
+	 */
+	public JsonNode getField(String name) {
+		JsonNode value;
+		if (data == null) {
+			ObjectNode current = tree;
+			if (current == null) {
+				current = SlabsCodec.toTree(doc);
+				tree = current;
+			}
+			value = current.get(name);
+		}
+		else {
+			project(name);
+			value = fields.get(name);
+		}
+		return (value == null || value.isMissingNode()) ? null : value;
+	}
+
+	/**
+	 * Writes the document in its public format, including id and revision
+	 */
+	public void writeTo(JsonGenerator gen) throws IOException {
+		if (data == null)
+			SlabsCodec.write(gen, doc);
+		else
+			SlabsCodec.writeRecord(gen, id, revision, data);
+	}
+
+}
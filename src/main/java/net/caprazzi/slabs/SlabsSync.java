@@ -0,0 +1,15 @@
+package net.caprazzi.slabs;
+
+import java.io.IOException;
+
+/**
+ * Forces the writes of a store to stable storage
+ */
+public interface SlabsSync {
+
+	/**
+	 * Returns once all the writes completed so far are durable
+	 */
+	public void sync() throws IOException;
+
+}
@@ -0,0 +1,77 @@
+package net.caprazzi.slabs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import com.google.common.base.Function;
+
+/**
+ * Registry of the document types known to a store, by the name given with
+ * the SlabsType annotation.
+ *
+ * Names are matched exactly: looking up a name that was not registered
+ * returns null, never some other type.
+ */
+public final class SlabsTypes implements Function<String, Class<? extends SlabsDoc>> {
+
+	private final LinkedHashMap<String, Class<? extends SlabsDoc>> byName
+		= new LinkedHashMap<String, Class<? extends SlabsDoc>>();
+	private final HashMap<Class<?>, String> byClass = new HashMap<Class<?>, String>();
+
+	/**
+	 * @throws IllegalArgumentException if a type is not annotated with SlabsType,
+	 * 	if two types share the same name or if a name is reserved
+	 */
+	public SlabsTypes(Class<? extends SlabsDoc>... types) {
+		for (Class<? extends SlabsDoc> type : types) {
+			SlabsType annotation = type.getAnnotation(SlabsType.class);
+			if (annotation == null)
+				throw new IllegalArgumentException(type.getName() + " is not annotated with SlabsType");
+
+			String name = annotation.value();
+			if (name.startsWith("_"))
+				throw new IllegalArgumentException("Type name " + name + " of " + type.getName() + " is reserved");
+
+			Class<? extends SlabsDoc> other = byName.get(name);
+			if (other != null && other != type)
+				throw new IllegalArgumentException("Type name " + name + " used by both " + other.getName() + " and " + type.getName());
+
+			byName.put(name, type);
+			byClass.put(type, name);
+		}
+	}
+
+	/**
+	 * @return the type registered with the given name, or null
+	 */
+	public Class<? extends SlabsDoc> getType(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @return the name of a registered type
+	 * @throws SlabsException if the type is not registered
+	 */
+	public String getName(Class<? extends SlabsDoc> type) {
+		String name = byClass.get(type);
+		if (name == null)
+			throw new SlabsException("Type " + type.getName() + " is not registered");
+		return name;
+	}
+
+	public boolean contains(String name) {
+		return byName.containsKey(name);
+	}
+
+	public Collection<Class<? extends SlabsDoc>> getTypes() {
+		return Collections.unmodifiableCollection(byName.values());
+	}
+
+	@Override
+	public Class<? extends SlabsDoc> apply(String name) {
+		return getType(name);
+	}
+
+}
@@ -2,34 +2,130 @@ function MinimaClient(options) {
 	this.mode = options.appModel.get('mode');
 	this.web_socket_location = options.appModel.get('ws_location');
 	this.comet_location = options.appModel.get('comet_location');
+	this.events_location = options.appModel.get('events_location');
 	this.data_location = options.appModel.get('data_location');
 	this.client_tag = options.appModel.get('CLIENT_TAG');
+	// last change of the board this client has, null until the board is loaded
+	this.seq = null;
+	this.connected = false;
+	// last comet message this client got, null until the first poll returns
+	this.comet_cursor = null;
+	// ids of the lists this client shows, null for all of them
+	this.lists = options.lists || null;
 }
 
 _.extend(MinimaClient.prototype, Backbone.Events, {
 	
+	// only receive the changes of some lists, null for all of them
+	subscribe: function(lists) {
+		this.lists = lists;
+		if (this.ws && this.ws.readyState == 1)
+			this.ws.send(JSON.stringify({ subscribe: lists || 'all' }));
+	},
+	
+	_listsParam: function() {
+		return (this.lists === null) ? 'all' : encodeURIComponent(this.lists.join(','));
+	},
+	
+	// the server skips the changes made by this client and can address it
+	_params: function() {
+		return 'lists=' + this._listsParam() + '&tag=' + encodeURIComponent(this.client_tag);
+	},
+	
 	connect: function() {
 		if (this.mode == 'websocket')
 			this._connectWebsocket();
 		
+		if (this.mode == 'events')
+			this._connectEvents();
+		
 		if (this.mode == 'comet')
 			this._connectComet();
 	},
 	
 	loadBoard: function() {
 		var store = this;
-		$.getJSON(this.data_location + '/stories?' + new Date().getTime(), function(board) {
+		// the server can put the board in the page: then it is only missing
+		// the changes made since the page was sent
+		var inline = $.trim($('#minima-board-data').html() || '');
+		if (inline.length > 0) {
+			var board = $.parseJSON(inline);
+			board.name = 'A Board';
+			store.seq = (board.seq === undefined) ? null : board.seq;
+			store.trigger('board', board);
+			store.catchUp();
+			return;
+		}
+		// no cache-busting here: the server answers with 304 if the board did not change
+		$.getJSON(this.data_location + '/stories', function(board) {
 			board.name = 'A Board';
+			store.seq = (board.seq === undefined) ? null : board.seq;
 			store.trigger('board', board);
 		});
 	},
 	
+	// after a reconnection, reads what changed while the client was away
+	catchUp: function() {
+		var store = this;
+		if (store.seq === null)
+			return;
+		$.getJSON(this.data_location + '/changes?since=' + store.seq, function(changes) {
+			if (changes.resync) {
+				$.getJSON(store.data_location + '/stories', function(board) {
+					store.seq = board.seq;
+					store.trigger('resync', board);
+				});
+				return;
+			}
+			for (var i = 0; i < changes.items.length; i++)
+				store._receiveItem(changes.items[i]);
+			store.seq = changes.seq;
+		});
+	},
+	
 	_receiveMessage: function(msg) {
-		var obj = $.parseJSON(msg);
+		this._receiveObject($.parseJSON(msg));
+	},
+	
+	_receiveObject: function(obj) {
+		if (obj.resync) {
+			// the server dropped messages this client was too slow to get
+			this.catchUp();
+			return;
+		}
+		this._receiveSeq(obj);
+		// the server skips them already, unless a batch mixes clients
 		if (obj.sender == this.client_tag) {
 			console.log("CLIENT: ignoring message from self");
 			return;
 		}
+		if (obj.batch) {
+			for (var i = 0; i < obj.batch.length; i++) {
+				// coalesced batches carry a sender and a seq for each change
+				this._receiveSeq(obj.batch[i]);
+				if (obj.batch[i].sender == this.client_tag)
+					continue;
+				this._receiveItem(obj.batch[i]);
+			}
+			return;
+		}
+		this._receiveItem(obj);
+	},
+	
+	// a pushed change moves the point to catch up from, once the board is loaded
+	_receiveSeq: function(obj) {
+		if (obj.seq !== undefined && this.seq !== null && obj.seq > this.seq)
+			this.seq = obj.seq;
+	},
+	
+	_receiveItem: function(obj) {
+		if (obj.deleted) {
+			if (obj.name == "story")
+				this.trigger('note-deleted', obj.obj);
+			else if (obj.name == "list")
+				this.trigger('list-deleted', obj.obj);
+			return;
+		}
 		if (obj.name == "story")
 			this.trigger('note', obj.obj);
 		else if (obj.name == "list")
@@ -43,9 +139,13 @@ _.extend(MinimaClient.prototype, Backbone.Events, {
 			return;
 		}
 		
-		var ws = new WebSocket(this.web_socket_location);
+		var ws = new WebSocket(this.web_socket_location + '?' + this._params());
+		this.ws = ws;
 		ws.onopen = function() {
 			console.log('WebSocket.onopen');
+			if (client.connected)
+				client.catchUp();
+			client.connected = true;
 		}
 		ws.onclose = function() {
 			console.log('WebSocket.onclose');
@@ -63,23 +163,49 @@ _.extend(MinimaClient.prototype, Backbone.Events, {
 		}
 	},
 	
+	// all the messages pushed since the last poll
+	_receivePoll: function(poll) {
+		this.comet_cursor = poll.cursor;
+		if (poll.resync) {
+			this.catchUp();
+			return;
+		}
+		for (var i = 0; i < poll.messages.length; i++)
+			this._receiveObject(poll.messages[i]);
+	},
+	
+	// the browser reconnects on its own, and the server sends what was
+	// missed from the last event id, or asks to resync
+	_connectEvents: function() {
+		var client = this;
+		var source = new EventSource(this.events_location + '?' + this._params());
+		source.onmessage = function(e) {
+			client._receiveMessage(e.data);
+		};
+		source.onerror = function(err) {
+			console.log('EventSource.onerror', err);
+		};
+	},
+	
 	_connectComet: function() {
 		console.log('connect comet');
 		console.log(this.comet_location);
 		var client = this;
 		function listen() {
+			var cursor = (client.comet_cursor === null) ? '' : client.comet_cursor;
 			$.ajax({
-				url: client.comet_location + '?' + new Date().getTime(),
+				url: client.comet_location + '?cursor=' + cursor + '&' + client._params() + '&' + new Date().getTime(),
 				processData: false,
 				type: 'get',
 				cache: 'false',
 				success: function(data, textStatus, xhr) {
-					client._receiveMessage(data);
+					client._receivePoll($.parseJSON(data));
 					listen();
 				},
 				error: function(jqXhr, errorString) {
 					// TODO: if error is 403, do not retry
 					setTimeout(function() {
+						client.catchUp();
 						client._connectComet();
 					}, 1500);
 				}
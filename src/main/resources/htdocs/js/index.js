@@ -35,6 +35,25 @@ $(function() {
 		notes.add(board.stories);		
 	});
 	
+	// missed too many changes while disconnected: apply the whole board
+	client.bind('resync', function(board) {
+		var listIds = {}, noteIds = {};
+		_.each(board.lists, function(list) {
+			listIds[list.id] = true;
+			client.trigger('list', list);
+		});
+		_.each(board.stories, function(note) {
+			noteIds[note.id] = true;
+			client.trigger('note', note);
+		});
+		_.each(notes.reject(function(note) { return noteIds[note.id]; }), function(note) {
+			notes.remove(note);
+		});
+		_.each(lists.reject(function(list) { return listIds[list.id]; }), function(list) {
+			lists.remove(list);
+		});
+	});
+	
 	client.bind('note', function(note) {
 						
 		var found = notes.get(note.id);		
@@ -71,6 +90,20 @@ $(function() {
 		}
 	});
 	
+	client.bind('note-deleted', function(note) {
+		var found = notes.get(note.id);
+		if (found) {
+			notes.remove(found);
+		}
+	});
+	
+	client.bind('list-deleted', function(list) {
+		var found = lists.get(list.id);
+		if (found) {
+			lists.remove(found);
+		}
+	});
+	
 	var view = new AppView({
 		lists: filteredLists,
 		notes: notes,
@@ -9,9 +9,10 @@ AppModel = Backbone.Model.extend({
 	readPageConfig: function() {
 		this.set({
 			readonly : ($('#minima-read-only').val() == "true"),	
-			mode: (window.WebSocket) ? 'websocket' : 'comet',					
+			mode: (window.WebSocket) ? 'websocket' : (window.EventSource) ? 'events' : 'comet',					
 			ws_location: $('#minima-websocket-location').val(),
 			comet_location: $('#minima-comet-location').val(),	
+			events_location: $('#minima-events-location').val(),
 			data_location: $('#minima-data-location').val(),
 			board_title: $('#minima-board-title').val(),
 			login_url: $('#minima-login-url').val(),
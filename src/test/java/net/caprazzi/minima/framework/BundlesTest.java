@@ -0,0 +1,54 @@
+package net.caprazzi.minima.framework;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.eclipse.jetty.util.IO;
+import org.junit.Test;
+
+public class BundlesTest {
+
+	@Test
+	public void build_should_concatenate_hash_and_gzip() throws Exception {
+		Bundle css = Bundles.build(descriptor(), false).get("css");
+
+		byte[] app = new BuildDescriptor().getData("/htdocs/css/app.css");
+		byte[] list = new BuildDescriptor().getData("/htdocs/css/list.css");
+		assertEquals(app.length + list.length + 2, css.getPlain().length);
+		assertEquals(BuildServices.contentHash(css.getPlain()), css.getHash());
+		assertArrayEquals(css.getPlain(), gunzip(css.getGzip()));
+		assertEquals("text/css", css.getContentType());
+	}
+
+	@Test
+	public void write_should_name_files_by_hash() throws Exception {
+		Bundles bundles = Bundles.build(descriptor(), false);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "minima-bundles-" + System.nanoTime());
+
+		bundles.write(dir);
+
+		String hash = bundles.get("main").getHash();
+		assertTrue(new File(dir, "bundles/main." + hash + ".js").isFile());
+		assertTrue(new File(dir, "bundles/main." + hash + ".js.gz").isFile());
+		assertTrue(new File(dir, "bundles/bundles.js").isFile());
+	}
+
+	private static BuildDescriptor descriptor() {
+		BuildDescriptor descriptor = new BuildDescriptor();
+		descriptor.setCss(new String[] { "/htdocs/css/app.css", "/htdocs/css/list.css" });
+		descriptor.setLibs(new String[] { "/htdocs/js/lib/json2.js" });
+		descriptor.setMain(new String[] { "/htdocs/js/Minima.js" });
+		return descriptor;
+	}
+
+	private static byte[] gunzip(byte[] data) throws IOException {
+		return IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(data)));
+	}
+
+}
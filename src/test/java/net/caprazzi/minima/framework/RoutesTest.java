@@ -0,0 +1,108 @@
+package net.caprazzi.minima.framework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import net.caprazzi.minima.framework.Routes.Match;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoutesTest {
+
+	private Routes<String> routes;
+
+	@Before
+	public void setUp() {
+		routes = new Routes<String>()
+			.add("GET", "/data/stories", "board")
+			.add("GET", "/data/stories/{id}", "story")
+			.add("PUT", "/data/stories/{id}/{revision:int}", "save")
+			.add("GET", "/data/stories/archived/count", "count")
+			.add("GET", "/", "root")
+			.add(Routes.ANY, "/login", "login");
+	}
+
+	@Test
+	public void match_should_follow_literals() {
+		assertEquals("board", target("GET", "/data/stories"));
+		assertEquals("root", target("GET", "/"));
+		assertNull(target("GET", "/data"));
+		assertNull(target("GET", "/data/stories/a/b"));
+		assertNull(target("GET", "/other"));
+		assertNull(target("GET", ""));
+	}
+
+	@Test
+	public void match_should_tell_trailing_slash() {
+		assertNull(target("GET", "/data/stories/"));
+		assertNull(target("GET", "/data//stories"));
+	}
+
+	@Test
+	public void match_should_read_parameters() {
+		Match<String> match = routes.match("PUT", "/data/stories/abc/12", 0);
+		assertEquals("save", match.getTarget());
+		assertEquals("abc", match.get("id"));
+		assertEquals(12, match.getInt("revision"));
+		assertTrue(match.is("id", "abc"));
+		assertFalse(match.is("id", "ab"));
+	}
+
+	@Test
+	public void match_should_check_number_parameters() {
+		assertNull(target("PUT", "/data/stories/abc/x"));
+		assertNull(target("PUT", "/data/stories/abc/-1"));
+		// does not fit an int
+		assertNull(target("PUT", "/data/stories/abc/12345678901"));
+	}
+
+	@Test
+	public void match_should_fall_back_from_literal_to_parameter() {
+		assertEquals("count", target("GET", "/data/stories/archived/count"));
+		Match<String> match = routes.match("PUT", "/data/stories/archived/3", 0);
+		assertEquals("save", match.getTarget());
+		assertEquals("archived", match.get("id"));
+	}
+
+	@Test
+	public void match_should_dispatch_on_method() {
+		assertNull(target("DELETE", "/data/stories/abc/12"));
+		assertNull(target("POST", "/data/stories"));
+		assertEquals("board", target("HEAD", "/data/stories"));
+		assertEquals("login", target("POST", "/login"));
+		assertEquals("login", target("GET", "/login"));
+	}
+
+	@Test
+	public void match_should_start_after_prefix() {
+		Match<String> match = routes.match("GET", "/b/team/data/stories/abc", "/b/team".length());
+		assertEquals("story", match.getTarget());
+		assertEquals("abc", match.get("id"));
+	}
+
+	@Test
+	public void match_should_be_reused_by_thread() {
+		Match<String> first = routes.match("GET", "/data/stories", 0);
+		assertSame(first, routes.match("GET", "/data/stories/abc", 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_should_refuse_taken_route() {
+		routes.add("GET", "/data/stories/{other}", "again");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_should_refuse_relative_pattern() {
+		routes.add("GET", "data", "relative");
+	}
+
+	private String target(String method, String path) {
+		Match<String> match = routes.match(method, path, 0);
+		return (match == null) ? null : match.getTarget();
+	}
+
+}
@@ -0,0 +1,87 @@
+package net.caprazzi.minima.framework;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class SkimpyTemplateTest {
+
+	@Test
+	public void write_should_replace_placeholders() throws Exception {
+		SkimpyTemplate template = new SkimpyTemplate("<h1>{{ TITLE }}</h1><p>{{ TITLE }} by {{ AUTHOR }}</p>");
+		assertEquals("<h1>Minima</h1><p>Minima by me</p>", write(template, values("TITLE", "Minima", "AUTHOR", "me")));
+	}
+
+	@Test
+	public void write_should_keep_placeholders_without_value() throws Exception {
+		SkimpyTemplate template = new SkimpyTemplate("a {{ ONE }} b {{ TWO }}");
+		assertEquals("a 1 b {{ TWO }}", write(template, values("ONE", "1")));
+	}
+
+	@Test
+	public void write_should_not_interpret_values() throws Exception {
+		SkimpyTemplate template = new SkimpyTemplate("{{ A }}");
+		// replaceAll would have read these as group references
+		assertEquals("$1 \\ {{ A }}", write(template, values("A", "$1 \\ {{ A }}")));
+	}
+
+	@Test
+	public void parse_should_leave_other_braces() throws Exception {
+		SkimpyTemplate template = new SkimpyTemplate("{{ not a key }} {{ KEY }} {{ x");
+		assertEquals("{{ not a key }} v {{ x", write(template, values("KEY", "v")));
+	}
+
+	@Test
+	public void bind_should_fill_some_placeholders() throws Exception {
+		SkimpyTemplate template = new SkimpyTemplate("{{ A }}-{{ B }}-{{ A }}");
+		SkimpyTemplate bound = template.bind(values("A", "a"));
+		assertEquals("a-b-a", write(bound, values("B", "b", "A", "ignored")));
+		// the original is unchanged
+		assertEquals("x-b-x", write(template, values("A", "x", "B", "b")));
+	}
+
+	@Test
+	public void write_should_grow_buffer() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			big.append("0123456789");
+		}
+		SkimpyTemplate template = new SkimpyTemplate("[{{ BIG }}]");
+		assertEquals("[" + big + "]", write(template, values("BIG", big.toString())));
+		assertEquals("[]", write(template, values("BIG", "")));
+	}
+
+	@Test
+	public void write_should_write_large_pages_in_parts() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			big.append("0123456789");
+		}
+		SkimpyTemplate template = new SkimpyTemplate("[{{ BIG }}|{{ SMALL }}]");
+		assertEquals("[" + big + "|x]", write(template, values("BIG", big.toString(), "SMALL", "x")));
+		assertEquals("[|x]", write(template, values("BIG", "", "SMALL", "x")));
+	}
+
+	private static String write(SkimpyTemplate template, Map<String, String> values) throws IOException {
+		StringWriter out = new StringWriter();
+		template.write(out, values);
+		return out.toString();
+	}
+
+	private static Map<String, String> values(String... keyValues) {
+		if (keyValues.length == 0)
+			return Collections.emptyMap();
+		HashMap<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			values.put(keyValues[i], keyValues[i + 1]);
+		}
+		return values;
+	}
+
+}
@@ -32,6 +32,14 @@ public class MetaTest {
 		assertEquals("moo", metaModel.getObj().getValue());
 	}
 	
+	@Test
+	public void test_build_from_json_with_name_last() {
+		byte[] json = "{\"obj\": {\"value\":\"moo\"}, \"name\":\"mock\"}".getBytes();
+		Meta<MockModel> metaModel = Meta.fromJson(MockModel.class, json);
+		assertEquals("mock", metaModel.getName());
+		assertEquals("moo", metaModel.getObj().getValue());
+	}
+	
 	@Test
 	public void test_should_convert_to_json() {
 		byte[] asJson = Meta.wrap("mock", model).toJson();
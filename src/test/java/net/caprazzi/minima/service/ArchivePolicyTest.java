@@ -0,0 +1,123 @@
+package net.caprazzi.minima.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsException;
+import net.caprazzi.slabs.SlabsOnKeez;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchivePolicyTest {
+
+	private KeezInMemory active;
+	private SlabsOnKeez db;
+	private PushService pushService;
+	private ArchivePolicy policy;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() {
+		active = new KeezInMemory();
+		db = new SlabsOnKeez(active, new KeezInMemory(), new Class[] { List.class, Note.class });
+		pushService = mock(PushService.class);
+		policy = new ArchivePolicy(db, pushService, "Done", 1000);
+	}
+
+	@Test
+	public void should_archive_stories_in_done_list() {
+		put(db, list("l1", "done"));
+		put(db, list("l2", "todo"));
+		put(db, note("n1", "l1", false));
+		put(db, note("n2", "l2", false));
+
+		assertEquals(1, policy.archiveDone(System.currentTimeMillis() + 1000));
+		assertTrue(get("n1").isArchived());
+		assertEquals(2, get("n1").getRevision());
+		assertTrue(!get("n2").isArchived());
+		verify(pushService, times(1)).send(anyString(), any(SlabsDoc.class));
+	}
+
+	@Test
+	public void should_keep_recent_stories_in_done_list() {
+		put(db, list("l1", "done"));
+		put(db, note("n1", "l1", false));
+
+		assertEquals(0, policy.archiveDone(System.currentTimeMillis() - 60 * 1000));
+		assertTrue(!get("n1").isArchived());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void should_move_archived_documents_to_archive() {
+		// written before the store had an archive
+		SlabsOnKeez old = new SlabsOnKeez(active, new Class[] { List.class, Note.class });
+		put(old, list("l1", "todo"));
+		put(old, note("n1", "l1", true));
+		put(old, note("n2", "l1", false));
+
+		assertEquals(1, policy.migrate());
+		assertEquals(0, policy.migrate());
+		assertTrue(get("n1").isArchived());
+	}
+
+	private Note get(String id) {
+		final Note[] found = new Note[1];
+		db.get(id, new SlabsGet() {
+			@Override public void found(SlabsDoc doc) {
+				found[0] = (Note) doc;
+			}
+
+			@Override public void notFound(String id) {
+				throw new RuntimeException("unexpected notFound");
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				throw new RuntimeException("unexpected error", e);
+			}
+		});
+		return found[0];
+	}
+
+	private static void put(SlabsOnKeez db, SlabsDoc doc) {
+		db.put(doc, new SlabsPut() {
+			@Override public void ok(SlabsDoc doc) {}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				throw new RuntimeException("unexpected collision");
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				throw new RuntimeException("unexpected error", e);
+			}
+		});
+	}
+
+	private static List list(String id, String name) {
+		List list = new List();
+		list.setId(id);
+		list.setName(name);
+		list.setPos(new BigDecimal(65536));
+		return list;
+	}
+
+	private static Note note(String id, String list, boolean archived) {
+		Note note = new Note("desc " + id, list, 65536, archived);
+		note.setId(id);
+		return note;
+	}
+}
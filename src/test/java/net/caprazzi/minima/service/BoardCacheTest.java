@@ -0,0 +1,122 @@
+package net.caprazzi.minima.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.minima.service.BoardCache.EncodedBoard;
+import net.caprazzi.slabs.CachingSlabs;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsException;
+import net.caprazzi.slabs.SlabsOnKeez;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoardCacheTest {
+
+	private CachingSlabs db;
+	private BoardCache cache;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() {
+		db = new CachingSlabs(new SlabsOnKeez(new KeezInMemory(), new Class[] { List.class, Note.class }));
+		cache = new BoardCache(db);
+	}
+
+	@Test
+	public void should_encode_empty_board() throws Exception {
+		JsonNode root = new ObjectMapper().readValue(cache.getBoard().getPlain(), JsonNode.class);
+		assertEquals(0, root.get("lists").size());
+		assertEquals(0, root.get("stories").size());
+	}
+
+	@Test
+	public void should_reuse_board_until_store_changes() {
+		put(list("l1", false));
+		EncodedBoard first = cache.getBoard();
+		assertSame(first, cache.getBoard());
+
+		put(note("n1", "l1", false));
+		EncodedBoard second = cache.getBoard();
+		assertFalse(first.getETag().equals(second.getETag()));
+		assertSame(second, cache.getBoard());
+	}
+
+	@Test
+	public void should_leave_out_archived_items() throws Exception {
+		put(list("l1", false));
+		put(list("l2", true));
+		put(note("n1", "l1", false));
+		put(note("n2", "l1", true));
+		put(note("n3", "l2", false));
+
+		JsonNode root = new ObjectMapper().readValue(cache.getBoard().getPlain(), JsonNode.class);
+		assertEquals(1, root.get("lists").size());
+		assertEquals("l1", root.get("lists").get(0).get("id").getTextValue());
+		assertEquals(1, root.get("stories").size());
+		assertEquals("n1", root.get("stories").get(0).get("id").getTextValue());
+	}
+
+	@Test
+	public void inline_should_not_close_the_script() throws Exception {
+		put(list("l1", false));
+		Note note = note("n1", "l1", false);
+		note.setDesc("</script><!-- \u00e9");
+		put(note);
+
+		String inline = cache.getBoard().getInline();
+		assertFalse(inline.contains("<"));
+		JsonNode root = new ObjectMapper().readTree(inline);
+		assertEquals("</script><!-- \u00e9", root.get("stories").get(0).get("desc").getTextValue());
+	}
+
+	@Test
+	public void size_should_count_the_inline_board() throws Exception {
+		put(list("l1", false));
+		EncodedBoard board = cache.getBoard();
+		long size = cache.getSize();
+		assertEquals(board.getPlain().length + board.getGzip().length, size);
+
+		String inline = board.getInline();
+		assertEquals(size + 2 * inline.length(), cache.getSize());
+	}
+
+	private void put(SlabsDoc doc) {
+		db.put(doc, new SlabsPut() {
+			@Override public void ok(SlabsDoc doc) {}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				throw new RuntimeException("unexpected collision");
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				throw new RuntimeException("unexpected error", e);
+			}
+		});
+	}
+
+	private static List list(String id, boolean archived) {
+		List list = new List();
+		list.setId(id);
+		list.setName(id);
+		list.setPos(new BigDecimal(65536));
+		list.setArchived(archived);
+		return list;
+	}
+
+	private static Note note(String id, String list, boolean archived) {
+		Note note = new Note("desc " + id, list, 65536, archived);
+		note.setId(id);
+		return note;
+	}
+}
@@ -0,0 +1,203 @@
+package net.caprazzi.minima.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.minima.model.List;
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.slabs.Slabs;
+import net.caprazzi.slabs.SlabsDoc;
+import net.caprazzi.slabs.SlabsException;
+import net.caprazzi.slabs.SlabsOnKeez;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnLog;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+public class BoardRegistryTest {
+
+	private ArrayList<String> opened;
+	private ArrayList<String> closed;
+	private int connections;
+	// boards are stored in logs under this directory, in memory if null
+	private File dir;
+
+	@Before
+	public void setUp() {
+		opened = new ArrayList<String>();
+		closed = new ArrayList<String>();
+		connections = 0;
+		dir = null;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (dir != null)
+			FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void get_should_open_board_once() throws IOException {
+		BoardRegistry registry = registry(10, Long.MAX_VALUE);
+		Board board = registry.create("team");
+		assertEquals("team", board.getName());
+		assertSame(board, registry.get("team"));
+		assertEquals(1, opened.size());
+	}
+
+	@Test
+	public void get_should_not_create_boards() throws IOException {
+		BoardRegistry registry = registry(10, Long.MAX_VALUE);
+		assertNull(registry.get("team"));
+		assertEquals(0, opened.size());
+		assertEquals(0, registry.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void get_should_refuse_invalid_names() throws IOException {
+		registry(10, Long.MAX_VALUE).create("../team");
+	}
+
+	@Test
+	public void should_close_least_recently_used_boards() throws IOException {
+		BoardRegistry registry = registry(2, Long.MAX_VALUE);
+		registry.create("a");
+		registry.create("b");
+		registry.get("a");
+		registry.create("c");
+
+		assertEquals(2, registry.size());
+		assertEquals("b", closed.get(0));
+
+		// closed boards are opened again
+		registry.get("b");
+		assertEquals(4, opened.size());
+	}
+
+	@Test
+	public void should_close_boards_over_memory_limit() throws IOException {
+		BoardRegistry registry = registry(10, 1);
+		registry.create("a").getCache().getBoard();
+		registry.create("b").getCache().getBoard();
+
+		assertEquals(1, registry.size());
+		assertEquals("a", closed.get(0));
+	}
+
+	@Test
+	public void should_close_boards_over_memory_limit_before_they_are_fetched() throws IOException {
+		dir = Files.createTempDir();
+		BoardRegistry registry = registry(10, 1);
+		Board board = registry.create("a");
+		put(board, note("n1"));
+		put(board, note("n2"));
+		assertEquals(0, board.getCache().getSize());
+		assertTrue(board.getFootprint() > 1);
+
+		registry.create("b");
+		assertEquals(1, registry.size());
+		assertEquals("a", closed.get(0));
+	}
+
+	@Test
+	public void should_keep_boards_with_clients() throws IOException {
+		connections = 1;
+		BoardRegistry registry = registry(1, Long.MAX_VALUE);
+		registry.create("a");
+		registry.create("b");
+		assertEquals(2, registry.size());
+		assertTrue(closed.isEmpty());
+	}
+
+	@Test
+	public void should_keep_recently_used_boards() throws IOException {
+		BoardRegistry registry = registry(1, Long.MAX_VALUE);
+		registry.minIdleMillis = 60 * 1000;
+		registry.create("a");
+		registry.create("b");
+		assertEquals(2, registry.size());
+	}
+
+	@Test
+	public void close_should_close_all_boards() throws IOException {
+		BoardRegistry registry = registry(10, Long.MAX_VALUE);
+		registry.create("a");
+		registry.create("b");
+		registry.close();
+		assertEquals(2, closed.size());
+		assertEquals(0, registry.size());
+		try {
+			registry.get("a");
+			fail("get() after close() should fail");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+
+	private BoardRegistry registry(int maxOpen, long maxBytes) {
+		BoardRegistry registry = new BoardRegistry(null, null, null, 0, null, null, null, 0, null, maxOpen, maxBytes) {
+			@Override
+			protected boolean exists(String name) {
+				return opened.contains(name);
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			protected Board open(final String name) throws IOException {
+				opened.add(name);
+				PushService pushService = mock(PushService.class);
+				when(pushService.getConnectionCount()).thenReturn(connections);
+				Class<? extends SlabsDoc>[] types = new Class[] { List.class, Note.class };
+				Slabs store = (dir == null)
+						? new SlabsOnKeez(new KeezInMemory(), types)
+						: new SlabsOnLog(new File(dir, name), "test", types);
+				return new Board(name, store, null, null, pushService) {
+					@Override
+					public void close() throws IOException {
+						closed.add(name);
+						super.close();
+					}
+				};
+			}
+		};
+		registry.minIdleMillis = 0;
+		return registry;
+	}
+
+	private static Note note(String id) {
+		Note note = new Note("desc " + id, "l1", 65536, false);
+		note.setId(id);
+		return note;
+	}
+
+	private static void put(Board board, SlabsDoc doc) {
+		board.getDb().put(doc, new SlabsPut() {
+			@Override public void ok(SlabsDoc doc) {}
+
+			@Override public void collision(String id, int yourRev, int foundRev) {
+				throw new RuntimeException("unexpected collision");
+			}
+
+			@Override public void error(String id, SlabsException e) {
+				throw new RuntimeException("unexpected error", e);
+			}
+		});
+	}
+
+}
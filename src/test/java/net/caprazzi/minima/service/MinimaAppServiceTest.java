@@ -20,7 +20,7 @@ public class MinimaAppServiceTest {
 
 
 	@Before
-	public void setup() {
+	public void setup() throws IOException {
 		descriptor = spy(new BuildDescriptor());
 		service = new BuildServices(descriptor);
 
@@ -35,6 +35,18 @@ public class MinimaAppServiceTest {
 		descriptor.setMain(new String[] {
 			"/js/main/a.js", "/js/main/b.js", "/js/main/c.js"	
 		});
+		
+		doReturn("a.css".getBytes()).when(descriptor).getData("/css/a.css");
+		doReturn("b.css".getBytes()).when(descriptor).getData("/css/b.css");
+		doReturn("c.css".getBytes()).when(descriptor).getData("/css/c.css");
+		
+		doReturn("a.js".getBytes()).when(descriptor).getData("/js/lib/a.js");
+		doReturn("b.js".getBytes()).when(descriptor).getData("/js/lib/b.js");
+		doReturn("c.js".getBytes()).when(descriptor).getData("/js/lib/c.js");
+		
+		doReturn("a.js".getBytes()).when(descriptor).getData("/js/main/a.js");
+		doReturn("b.js".getBytes()).when(descriptor).getData("/js/main/b.js");
+		doReturn("c.js".getBytes()).when(descriptor).getData("/js/main/c.js");
 	}
 	
 	@Test
@@ -65,30 +77,29 @@ public class MinimaAppServiceTest {
 	}
 	
 	@Test
-	public void test_should_return_compact_css_html_link() {
+	public void test_should_return_compact_css_html_link() throws IOException {
 		String link = service.getProductionCssTag("xxxx/");
+		String hash = BuildServices.contentHash("a.css\nb.css\nc.css\n".getBytes());
 		assertEquals(link, 
-			"<link href=\"xxxx/app/css\" rel=\"stylesheet\" type=\"text/css\"/>");
+			"<link href=\"xxxx/app/css/" + hash + "\" rel=\"stylesheet\" type=\"text/css\"/>");
 	}
 	
 	@Test
-	public void test_should_return_compact_libs_html_link() {
+	public void test_should_return_compact_libs_html_link() throws IOException {
 		String link = service.getProductionLibsTag("xxxx/");
-		assertEquals(link, "<script src=\"xxxx/app/libs\" type=\"text/javascript\"></script>");
+		String hash = BuildServices.contentHash("a.js\nb.js\nc.js\n".getBytes());
+		assertEquals(link, "<script src=\"xxxx/app/libs/" + hash + "\" type=\"text/javascript\"></script>");
 	}
 	
 	@Test
-	public void test_should_Return_compact_main_html_link() {
+	public void test_should_Return_compact_main_html_link() throws IOException {
 		String link = service.getProductionMainTag("xxxx/");
-		assertEquals(link, "<script src=\"xxxx/app/main\" type=\"text/javascript\"></script>");
+		String hash = BuildServices.contentHash("a.js\nb.js\nc.js\n".getBytes());
+		assertEquals(link, "<script src=\"xxxx/app/main/" + hash + "\" type=\"text/javascript\"></script>");
 	}
 	
 	@Test
 	public void test_should_return_all_css_in_one_go() throws IOException {
-		doReturn("a.css".getBytes()).when(descriptor).getData("/css/a.css");
-		doReturn("b.css".getBytes()).when(descriptor).getData("/css/b.css");
-		doReturn("c.css".getBytes()).when(descriptor).getData("/css/c.css");
-		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		service.writeProductionCssData(baos);
 		
@@ -97,10 +108,6 @@ public class MinimaAppServiceTest {
 	
 	@Test
 	public void test_should_return_all_libs_in_one_go() throws IOException {
-		doReturn("a.js".getBytes()).when(descriptor).getData("/js/lib/a.js");
-		doReturn("b.js".getBytes()).when(descriptor).getData("/js/lib/b.js");
-		doReturn("c.js".getBytes()).when(descriptor).getData("/js/lib/c.js");
-		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		service.writeProductionLibsData(baos);
 		
@@ -109,10 +116,6 @@ public class MinimaAppServiceTest {
 	
 	@Test
 	public void test_should_return_all_main_in_one_go() throws IOException {
-		doReturn("a.js".getBytes()).when(descriptor).getData("/js/main/a.js");
-		doReturn("b.js".getBytes()).when(descriptor).getData("/js/main/b.js");
-		doReturn("c.js".getBytes()).when(descriptor).getData("/js/main/c.js");
-		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		service.writeProductionMainData(baos);
 		
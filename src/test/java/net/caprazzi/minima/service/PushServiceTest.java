@@ -0,0 +1,203 @@
+package net.caprazzi.minima.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.caprazzi.minima.model.Note;
+import net.caprazzi.minima.servlet.CometServlet;
+import net.caprazzi.minima.servlet.WebsocketServlet;
+import net.caprazzi.slabs.SlabsChanges;
+import net.caprazzi.slabs.SlabsDoc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class PushServiceTest {
+
+	private WebsocketServlet websocketServlet;
+	private CometServlet cometServlet;
+	private ScheduledExecutorService fanout;
+
+	@Before
+	public void setUp() {
+		websocketServlet = mock(WebsocketServlet.class);
+		cometServlet = mock(CometServlet.class);
+		fanout = mock(ScheduledExecutorService.class);
+	}
+
+	@Test
+	public void send_should_push_in_fanout_executor() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 0);
+		push.send("client", note("a", 1));
+		verify(websocketServlet, never()).send(any(String.class), anyTopics(), any(String.class), any(byte[].class));
+
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout).execute(task.capture());
+		task.getValue().run();
+
+		String sent = sent(1);
+		assertTrue(sent.contains("\"sender\":\"client\""));
+		assertFalse(sent.contains("batch"));
+		verify(cometServlet).send(eq("team"), anyTopics(), any(String.class), any(byte[].class));
+	}
+
+	@Test
+	public void send_should_carry_seq_of_change() throws Exception {
+		SlabsChanges changes = mock(SlabsChanges.class);
+		when(changes.getPushSeq("a", 1)).thenReturn(42L);
+		when(changes.getPushSeq("b", 3)).thenReturn(-1L);
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 0);
+		push.setChanges(changes);
+		push.send("client", note("a", 1));
+		push.sendDelete("client", "story", "b", 3);
+
+		ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout, times(2)).execute(tasks.capture());
+		for (Runnable task : tasks.getAllValues()) {
+			task.run();
+		}
+
+		ArgumentCaptor<byte[]> data = ArgumentCaptor.forClass(byte[].class);
+		verify(websocketServlet, times(2)).send(eq("team"), anyTopics(), any(String.class), data.capture());
+		assertTrue(new String(data.getAllValues().get(0), "UTF-8").contains("\"seq\":42"));
+		// not recorded: no seq
+		assertFalse(new String(data.getAllValues().get(1), "UTF-8").contains("\"seq\""));
+	}
+
+	@Test
+	public void send_should_coalesce_changes_in_window() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 20);
+		push.send("one", note("a", 1));
+		push.sendAll("two", Arrays.<SlabsDoc>asList(note("b", 1), note("a", 2)));
+		push.sendDelete("one", "story", "c", 3);
+
+		// a single flush for the window
+		ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout).schedule(flush.capture(), eq(20L), eq(TimeUnit.MILLISECONDS));
+		verify(fanout, never()).execute(any(Runnable.class));
+		flush.getValue().run();
+
+		String sent = sent(1);
+		assertTrue(sent.startsWith("{\"batch\":["));
+		// only the last revision of a, in the place of its last change
+		assertEquals(sent.indexOf("desc a"), sent.lastIndexOf("desc a"));
+		assertTrue(sent.indexOf("desc b") < sent.indexOf("desc a"));
+		assertTrue(sent.indexOf("desc a") < sent.indexOf("\"id\":\"c\""));
+		assertTrue(sent.contains("\"sender\":\"two\""));
+		assertTrue(sent.contains("\"deleted\":true"));
+		// changes from several clients: each one skips its own items
+		verify(websocketServlet).send(eq("team"), anyTopics(), (String) isNull(), any(byte[].class));
+
+		// the next change opens a new window
+		push.send("one", note("d", 1));
+		verify(fanout, times(2)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void flush_should_send_single_change_as_is() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 20);
+		push.send("one", note("a", 1));
+		push.send("one", note("a", 2));
+
+		ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout).schedule(flush.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		flush.getValue().run();
+
+		String sent = sent(1);
+		assertFalse(sent.contains("batch"));
+		assertTrue(sent.contains("\"sender\":\"one\""));
+	}
+
+	private String sent(int count) throws Exception {
+		ArgumentCaptor<byte[]> data = ArgumentCaptor.forClass(byte[].class);
+		verify(websocketServlet, times(count)).send(eq("team"), anyTopics(), any(String.class), data.capture());
+		assertEquals(count, data.getAllValues().size());
+		return new String(data.getValue(), "UTF-8");
+	}
+
+	@Test
+	public void send_should_route_to_lists_of_change() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 0);
+		push.send("client", note("a", 2, "done"), note("a", 1, "todo"));
+		push.sendDelete("client", "story", "b", 1, note("b", 1, "later"));
+		push.sendDelete("client", "story", "c", 1, null);
+
+		ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout, times(3)).execute(tasks.capture());
+		for (Runnable task : tasks.getAllValues()) {
+			task.run();
+		}
+
+		verify(websocketServlet).send(eq("team"), eq(topics("todo", "done")), eq("client"), any(byte[].class));
+		verify(websocketServlet).send(eq("team"), eq(topics("later")), eq("client"), any(byte[].class));
+		// unknown list: everybody
+		verify(websocketServlet).send(eq("team"), (Set<String>) isNull(), eq("client"), any(byte[].class));
+	}
+
+	@Test
+	public void flush_should_route_to_all_lists_in_window() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 20);
+		push.send("one", note("a", 2, "doing"), note("a", 1, "todo"));
+		push.send("one", note("a", 3, "done"), note("a", 2, "doing"));
+		push.send("one", note("b", 1, "later"));
+
+		ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout).schedule(flush.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+		flush.getValue().run();
+
+		verify(websocketServlet).send(eq("team"), eq(topics("todo", "doing", "done", "later")), eq("one"), any(byte[].class));
+	}
+
+	@Test
+	public void sendResync_should_reach_only_the_client() throws Exception {
+		PushService push = new PushService(websocketServlet, cometServlet, "team", fanout, 20);
+		push.sendResync("client");
+		push.sendResync(null);
+
+		ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+		verify(fanout).execute(task.capture());
+		task.getValue().run();
+
+		verify(websocketServlet).sendTo(eq("team"), eq("client"), any(byte[].class));
+		verify(cometServlet).sendTo(eq("team"), eq("client"), any(byte[].class));
+		verify(websocketServlet, never()).send(any(String.class), anyTopics(), any(String.class), any(byte[].class));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<String> anyTopics() {
+		return any(Set.class);
+	}
+
+	private static Set<String> topics(String... lists) {
+		return new HashSet<String>(Arrays.asList(lists));
+	}
+
+	private static Note note(String id, int revision) {
+		return note(id, revision, "todo");
+	}
+
+	private static Note note(String id, int revision, String list) {
+		Note note = new Note("desc " + id, list, 65536, false);
+		note.setId(id);
+		note.setRevision(revision);
+		return note;
+	}
+
+}
@@ -0,0 +1,97 @@
+package net.caprazzi.minima.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.caprazzi.minima.framework.BuildServices;
+import net.caprazzi.minima.framework.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppServletTest {
+
+	private AppServlet servlet;
+	private HttpServletRequest req;
+	private HttpServletResponse resp;
+	private ByteArrayOutputStream written;
+
+	@Before
+	public void setUp() throws IOException {
+		BuildServices service = mock(BuildServices.class);
+		when(service.getBundle("libs")).thenReturn(bundle("libs", "1b", "var libs;"));
+		when(service.getBundle("main")).thenReturn(bundle("main", "2a", "var main;"));
+		when(service.getBundle("css")).thenReturn(bundle("css", "3c", "body {}"));
+		servlet = new AppServlet(service);
+
+		written = new ByteArrayOutputStream();
+		req = mock(HttpServletRequest.class);
+		resp = mock(HttpServletResponse.class);
+		when(req.getMethod()).thenReturn("GET");
+		when(req.getContextPath()).thenReturn("");
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				written.write(b);
+			}
+		});
+	}
+
+	@Test
+	public void hashed_url_should_be_cached_forever() throws Exception {
+		when(req.getRequestURI()).thenReturn("/app/main/2a");
+		servlet.doGet(req, resp);
+
+		verify(resp).setContentType("text/javascript");
+		verify(resp).setHeader("Cache-Control", "public, max-age=31536000, immutable");
+		verify(resp).setHeader("ETag", "\"2a\"");
+		assertEquals("var main;", written.toString("UTF-8"));
+	}
+
+	@Test
+	public void old_hash_should_get_current_content_uncached() throws Exception {
+		when(req.getRequestURI()).thenReturn("/app/libs/0f");
+		servlet.doGet(req, resp);
+
+		verify(resp).setHeader("Cache-Control", "no-cache");
+		assertEquals("var libs;", written.toString("UTF-8"));
+	}
+
+	@Test
+	public void matching_etag_should_get_304() throws Exception {
+		when(req.getRequestURI()).thenReturn("/app/css/3c");
+		when(req.getHeader("If-None-Match")).thenReturn("\"3c\"");
+		servlet.doGet(req, resp);
+
+		verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		verify(resp, never()).getOutputStream();
+	}
+
+	@Test
+	public void gzip_should_have_own_etag() throws Exception {
+		when(req.getRequestURI()).thenReturn("/app/css/3c");
+		when(req.getHeader("accept-encoding")).thenReturn("gzip, deflate");
+		when(req.getHeader("If-None-Match")).thenReturn("\"3c\"");
+		servlet.doGet(req, resp);
+
+		verify(resp).setHeader("ETag", "\"3c-gz\"");
+		verify(resp).setHeader("Content-Encoding", "gzip");
+		assertEquals("gz body {}", written.toString("UTF-8"));
+	}
+
+	private static Bundle bundle(String name, String hash, String data) throws IOException {
+		// not gzipped, the servlet sends it as it is
+		return new Bundle(name, hash, data.getBytes("UTF-8"), ("gz " + data).getBytes("UTF-8"));
+	}
+
+}
@@ -0,0 +1,175 @@
+package net.caprazzi.minima.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.caprazzi.minima.servlet.CometMailbox.Batch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CometMailboxTest {
+
+	private CometMailbox mailbox;
+	private int woken;
+
+	@Before
+	public void setUp() {
+		mailbox = new CometMailbox(4);
+		woken = 0;
+	}
+
+	@Test
+	public void read_should_return_all_messages_after_cursor() throws Exception {
+		mailbox.publish(bytes("a"));
+		mailbox.publish(bytes("b"));
+		mailbox.publish(bytes("c"));
+
+		Batch batch = mailbox.read(1);
+		assertFalse(batch.resync);
+		assertEquals(3, batch.cursor);
+		assertEquals(2, batch.messages.size());
+		assertArrayEquals(bytes("b"), batch.messages.get(0));
+		assertArrayEquals(bytes("c"), batch.messages.get(1));
+
+		assertTrue(mailbox.read(3).messages.isEmpty());
+	}
+
+	@Test
+	public void read_should_ask_to_resync_when_messages_are_gone() throws Exception {
+		for (int i = 0; i < 6; i++) {
+			mailbox.publish(bytes("m" + i));
+		}
+		// messages 3 to 6 are kept
+		assertEquals(4, mailbox.read(2).messages.size());
+		assertTrue(mailbox.read(1).resync);
+		// cursor from before a restart
+		assertTrue(mailbox.read(7).resync);
+	}
+
+	@Test
+	public void parse_should_refuse_cursor_of_another_mailbox() throws Exception {
+		assertEquals(3, mailbox.parse(mailbox.format(3)));
+		// the mailbox before a restart
+		CometMailbox other = new CometMailbox(4);
+		assertEquals(-1, mailbox.parse(other.format(3)));
+
+		mailbox.publish(bytes("a"));
+		assertTrue(mailbox.read(mailbox.parse(other.format(0))).resync);
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void parse_should_refuse_invalid_cursor() throws Exception {
+		mailbox.parse("3");
+	}
+
+	@Test
+	public void publish_should_wake_waiters_once() throws Exception {
+		Runnable waiter = waiter();
+		assertTrue(mailbox.await(0, waiter));
+		assertEquals(1, mailbox.getWaiting());
+
+		mailbox.publish(bytes("a"));
+		mailbox.publish(bytes("b"));
+		assertEquals(1, woken);
+		assertEquals(0, mailbox.getWaiting());
+		assertFalse(mailbox.cancel(waiter));
+	}
+
+	@Test
+	public void await_should_refuse_client_behind() throws Exception {
+		mailbox.publish(bytes("a"));
+		assertFalse(mailbox.await(0, waiter()));
+		assertEquals(0, mailbox.getWaiting());
+	}
+
+	@Test
+	public void cancel_should_remove_waiter() throws Exception {
+		Runnable waiter = waiter();
+		mailbox.await(0, waiter);
+		assertTrue(mailbox.cancel(waiter));
+		mailbox.publish(bytes("a"));
+		assertEquals(0, woken);
+	}
+
+	@Test
+	public void read_should_filter_topics() throws Exception {
+		mailbox.publish(topics("todo"), bytes("a"));
+		mailbox.publish(topics("done"), bytes("b"));
+		mailbox.publish(null, bytes("c"));
+
+		Batch batch = mailbox.read(0, topics("done"));
+		assertEquals(3, batch.cursor);
+		assertEquals(2, batch.messages.size());
+		assertArrayEquals(bytes("b"), batch.messages.get(0));
+		assertArrayEquals(bytes("c"), batch.messages.get(1));
+	}
+
+	@Test
+	public void publish_should_only_wake_waiters_of_topics() throws Exception {
+		Runnable waiter = waiter();
+		assertTrue(mailbox.await(0, topics("done"), waiter));
+		mailbox.publish(topics("todo"), bytes("a"));
+		assertEquals(0, woken);
+
+		// still nothing for it after its cursor
+		assertTrue(mailbox.cancel(waiter));
+		assertTrue(mailbox.await(0, topics("done"), waiter));
+
+		mailbox.publish(topics("todo", "done"), bytes("b"));
+		assertEquals(1, woken);
+	}
+
+	@Test
+	public void read_should_skip_own_messages_and_keep_addressed_ones() throws Exception {
+		mailbox.publish(null, "one", null, bytes("a"));
+		mailbox.publish(null, "two", null, bytes("b"));
+		mailbox.publish(null, null, "one", bytes("c"));
+		mailbox.publish(null, null, "two", bytes("d"));
+
+		Batch batch = mailbox.read(0, new Subscription(null, "one"));
+		assertEquals(4, batch.cursor);
+		assertEquals(2, batch.messages.size());
+		assertArrayEquals(bytes("b"), batch.messages.get(0));
+		assertArrayEquals(bytes("c"), batch.messages.get(1));
+
+		// anonymous clients get no addressed messages
+		assertEquals(2, mailbox.read(0).messages.size());
+	}
+
+	@Test
+	public void publish_should_not_wake_the_sender() throws Exception {
+		Runnable waiter = waiter();
+		assertTrue(mailbox.await(0, new Subscription(null, "one"), waiter));
+
+		mailbox.publish(null, "one", null, bytes("a"));
+		assertEquals(0, woken);
+		mailbox.publish(null, null, "one", bytes("b"));
+		assertEquals(1, woken);
+	}
+
+	static Set<String> topics(String... lists) {
+		return new HashSet<String>(Arrays.asList(lists));
+	}
+
+	private Runnable waiter() {
+		return new Runnable() {
+			@Override
+			public void run() {
+				woken++;
+			}
+		};
+	}
+
+	private static byte[] bytes(String s) throws UnsupportedEncodingException {
+		return s.getBytes("UTF-8");
+	}
+
+}
@@ -0,0 +1,116 @@
+package net.caprazzi.minima.servlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class EventsServletTest {
+
+	private CometServlet cometServlet;
+	private EventsServlet servlet;
+	private ByteArrayOutputStream written;
+	private HttpServletRequest req;
+	private HttpServletResponse resp;
+	private AsyncContext ac;
+
+	@Before
+	public void setUp() throws IOException {
+		cometServlet = new CometServlet();
+		servlet = new EventsServlet(cometServlet);
+		written = new ByteArrayOutputStream();
+
+		req = mock(HttpServletRequest.class);
+		resp = mock(HttpServletResponse.class);
+		ac = mock(AsyncContext.class);
+		when(req.startAsync(req, resp)).thenReturn(ac);
+		when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				written.write(b);
+			}
+		});
+		// runs the writes of the stream at once
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				((Runnable) invocation.getArguments()[0]).run();
+				return null;
+			}
+		}).when(ac).start(any(Runnable.class));
+	}
+
+	@Test
+	public void stream_should_write_pushed_messages() throws Exception {
+		servlet.doGet(req, resp);
+		verify(resp).setContentType("text/event-stream");
+
+		cometServlet.send("", "{\"a\":1}".getBytes("UTF-8"));
+		cometServlet.send("", "{\"b\":2}".getBytes("UTF-8"));
+
+		CometMailbox mailbox = cometServlet.getMailbox("");
+		String events = written.toString("UTF-8");
+		assertTrue(events.contains("id: " + mailbox.format(1) + "\ndata: {\"a\":1}\n\n"));
+		assertTrue(events.contains("id: " + mailbox.format(2) + "\ndata: {\"b\":2}\n\n"));
+	}
+
+	@Test
+	public void stream_should_resume_from_last_event_id() throws Exception {
+		CometMailbox mailbox = cometServlet.getMailbox("");
+		cometServlet.send("", "{\"a\":1}".getBytes("UTF-8"));
+		cometServlet.send("", "{\"b\":2}".getBytes("UTF-8"));
+		cometServlet.send("", "{\"c\":3}".getBytes("UTF-8"));
+
+		when(req.getHeader("Last-Event-ID")).thenReturn(mailbox.format(1));
+		servlet.doGet(req, resp);
+
+		String events = written.toString("UTF-8");
+		assertFalse(events.contains("{\"a\":1}"));
+		// the id on the last event of the batch
+		assertTrue(events.contains("data: {\"b\":2}\n\nid: " + mailbox.format(3) + "\ndata: {\"c\":3}\n\n"));
+	}
+
+	@Test
+	public void stream_should_ask_to_resync_unknown_event_id() throws Exception {
+		CometMailbox mailbox = cometServlet.getMailbox("");
+		cometServlet.send("", "{\"a\":1}".getBytes("UTF-8"));
+
+		// from before a restart, with a lower number than the current cursor
+		when(req.getHeader("Last-Event-ID")).thenReturn(new CometMailbox(4).format(0));
+		servlet.doGet(req, resp);
+
+		String events = written.toString("UTF-8");
+		assertTrue(events.contains("id: " + mailbox.format(1) + "\ndata: {\"resync\":true}\n\n"));
+		assertFalse(events.contains("{\"a\":1}"));
+	}
+
+	@Test
+	public void stream_should_only_write_subscribed_lists() throws Exception {
+		when(req.getParameter("lists")).thenReturn("done");
+		servlet.doGet(req, resp);
+
+		cometServlet.send("", CometMailboxTest.topics("todo"), "{\"a\":1}".getBytes("UTF-8"));
+		cometServlet.send("", CometMailboxTest.topics("done"), "{\"b\":2}".getBytes("UTF-8"));
+
+		String events = written.toString("UTF-8");
+		assertFalse(events.contains("{\"a\":1}"));
+		assertTrue(events.contains("id: " + cometServlet.getMailbox("").format(2) + "\ndata: {\"b\":2}\n\n"));
+	}
+
+}
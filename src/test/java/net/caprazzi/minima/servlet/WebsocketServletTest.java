@@ -0,0 +1,200 @@
+package net.caprazzi.minima.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import net.caprazzi.minima.servlet.WebsocketServlet.MinimaWebSocket;
+
+import org.eclipse.jetty.websocket.WebSocket.Connection;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class WebsocketServletTest {
+
+	// sends run when the test says so
+	private ArrayList<Runnable> tasks;
+	private WebsocketServlet servlet;
+
+	@Before
+	public void setUp() {
+		tasks = new ArrayList<Runnable>();
+		servlet = new WebsocketServlet(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				tasks.add(command);
+			}
+		}, 3);
+	}
+
+	@Test
+	public void send_should_queue_messages_in_order() throws IOException {
+		Connection connection = connect("");
+		servlet.send("", "a".getBytes("UTF-8"));
+		servlet.send("", "b".getBytes("UTF-8"));
+		verify(connection, never()).sendMessage("a");
+
+		// one sender per connection at a time
+		assertEquals(1, tasks.size());
+		runTasks();
+
+		InOrder order = inOrder(connection);
+		order.verify(connection).sendMessage("a");
+		order.verify(connection).sendMessage("b");
+	}
+
+	@Test
+	public void send_should_only_reach_the_channel() throws IOException {
+		Connection connection = connect("team");
+		Connection other = connect("");
+		servlet.send("team", "a".getBytes("UTF-8"));
+		runTasks();
+
+		verify(connection).sendMessage("a");
+		verify(other, never()).sendMessage("a");
+		assertEquals(1, servlet.getConnectionCount("team"));
+	}
+
+	@Test
+	public void send_should_replace_backlog_with_resync() throws IOException {
+		Connection slow = connect("");
+		for (int i = 0; i < 10; i++) {
+			servlet.send("", ("m" + i).getBytes("UTF-8"));
+		}
+		runTasks();
+
+		verify(slow).sendMessage(WebsocketServlet.RESYNC);
+		verify(slow, never()).sendMessage("m0");
+		verify(slow, never()).sendMessage("m9");
+
+		// back to normal once the resync is sent
+		servlet.send("", "after".getBytes("UTF-8"));
+		runTasks();
+		verify(slow).sendMessage("after");
+	}
+
+	@Test
+	public void send_should_not_wait_for_failed_connection() throws IOException {
+		Connection broken = connect("");
+		Connection good = connect("");
+		doThrow(new IOException("gone")).when(broken).sendMessage("a");
+		servlet.send("", "a".getBytes("UTF-8"));
+		servlet.send("", "b".getBytes("UTF-8"));
+		runTasks();
+
+		verify(good).sendMessage("a");
+		verify(good).sendMessage("b");
+		verify(broken, never()).sendMessage("b");
+	}
+
+	@Test
+	public void send_should_route_by_list() throws IOException {
+		Connection todo = connect("", new HashSet<String>(Arrays.asList("todo")));
+		Connection done = connect("", new HashSet<String>(Arrays.asList("done", "later")));
+		Connection all = connect("");
+
+		servlet.send("", new HashSet<String>(Arrays.asList("todo")), "a".getBytes("UTF-8"));
+		// a move from todo to done
+		servlet.send("", new HashSet<String>(Arrays.asList("todo", "done")), "b".getBytes("UTF-8"));
+		servlet.send("", null, "c".getBytes("UTF-8"));
+		runTasks();
+
+		verify(todo).sendMessage("a");
+		verify(todo).sendMessage("b");
+		verify(todo).sendMessage("c");
+		verify(done, never()).sendMessage("a");
+		verify(done).sendMessage("b");
+		verify(done).sendMessage("c");
+		verify(all).sendMessage("a");
+		verify(all).sendMessage("b");
+		verify(all).sendMessage("c");
+	}
+
+	@Test
+	public void subscribe_message_should_change_lists() throws IOException {
+		Connection connection = mock(Connection.class);
+		MinimaWebSocket socket = servlet.new MinimaWebSocket("", null, null);
+		socket.onOpen(connection);
+
+		socket.onMessage("{\"subscribe\":[\"done\"]}");
+		servlet.send("", new HashSet<String>(Arrays.asList("todo")), "a".getBytes("UTF-8"));
+		servlet.send("", new HashSet<String>(Arrays.asList("done")), "b".getBytes("UTF-8"));
+		runTasks();
+		verify(connection, never()).sendMessage("a");
+		verify(connection).sendMessage("b");
+
+		socket.onMessage("{\"subscribe\":\"all\"}");
+		servlet.send("", new HashSet<String>(Arrays.asList("todo")), "c".getBytes("UTF-8"));
+		runTasks();
+		verify(connection).sendMessage("c");
+		assertEquals(1, servlet.getConnectionCount(""));
+	}
+
+	@Test
+	public void send_should_skip_the_sender() throws IOException {
+		Connection sender = connect("", "one", null);
+		Connection other = connect("", "two", null);
+		servlet.send("", null, "one", "a".getBytes("UTF-8"));
+		runTasks();
+
+		verify(sender, never()).sendMessage("a");
+		verify(other).sendMessage("a");
+	}
+
+	@Test
+	public void sendTo_should_reach_only_the_tag() throws IOException {
+		Connection target = connect("", "one", null);
+		Connection other = connect("", "two", null);
+		assertTrue(servlet.sendTo("", "one", "a".getBytes("UTF-8")));
+		assertFalse(servlet.sendTo("", "three", "b".getBytes("UTF-8")));
+		runTasks();
+
+		verify(target).sendMessage("a");
+		verify(other, never()).sendMessage("a");
+	}
+
+	@Test
+	public void sendTo_should_forget_closed_connections() throws IOException {
+		Connection connection = mock(Connection.class);
+		MinimaWebSocket socket = servlet.new MinimaWebSocket("", "one", null);
+		socket.onOpen(connection);
+		socket.onClose(1000, "bye");
+
+		assertFalse(servlet.sendTo("", "one", "a".getBytes("UTF-8")));
+	}
+
+	private Connection connect(String channel) {
+		return connect(channel, null);
+	}
+
+	private Connection connect(String channel, Set<String> lists) {
+		return connect(channel, null, lists);
+	}
+
+	private Connection connect(String channel, String tag, Set<String> lists) {
+		Connection connection = mock(Connection.class);
+		MinimaWebSocket socket = servlet.new MinimaWebSocket(channel, tag, lists);
+		socket.onOpen(connection);
+		return connection;
+	}
+
+	private void runTasks() {
+		while (!tasks.isEmpty()) {
+			tasks.remove(0).run();
+		}
+	}
+
+}
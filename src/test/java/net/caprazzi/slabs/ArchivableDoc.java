@@ -0,0 +1,34 @@
+package net.caprazzi.slabs;
+
+@SlabsType("archivable_doc") class ArchivableDoc extends SlabsDoc implements SlabsArchivable {
+	
+	private String value;
+	private boolean archived;
+	
+	public ArchivableDoc() {
+	
+	}
+	
+	public ArchivableDoc(String key, int revision, String value, boolean archived) {
+		this.setId(key);
+		this.setRevision(revision);
+		this.value = value;
+		this.archived = archived;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	public void setValue(String value) {
+		this.value = value;
+	}
+	
+	public boolean isArchived() {
+		return archived;
+	}
+	
+	public void setArchived(boolean archived) {
+		this.archived = archived;
+	}
+}
@@ -0,0 +1,283 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.GroupCommitSlabs.Durability;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
+import net.caprazzi.slabs.SlabsTest.DeleteHelp;
+import net.caprazzi.slabs.SlabsTest.GetHelp;
+import net.caprazzi.slabs.SlabsTest.ListHelp;
+import net.caprazzi.slabs.SlabsTest.PutAllHelp;
+import net.caprazzi.slabs.SlabsTest.PutHelp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.Iterables;
+
+public class CachingSlabsTest {
+
+	private Slabs store;
+	private CachingSlabs slabs;
+	private boolean called;
+
+	@SuppressWarnings("unchecked")
+	@Before public void setup() {
+		store = spy(new SlabsOnKeez(new KeezInMemory(), new Class[] { TestDoc.class, OtherDoc.class }));
+		slabs = new CachingSlabs(store);
+		called = false;
+	}
+
+	@Test public void list_should_call_notFound_if_db_empty() {
+		slabs.list(new ListHelp() {
+			@Override
+			public void notFound() {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void list_should_read_the_store_only_once() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		slabs.list(listAny);
+		slabs.list(listAny);
+		verify(store, times(1)).list(any(SlabsList.class));
+	}
+
+	@Test public void put_should_update_loaded_cache() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+
+		slabs.put(new TestDoc("a", 1, "A2"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc[] docs = Iterables.toArray(found, SlabsDoc.class);
+				assertEquals(2, docs.length);
+				assertEquals("a", docs[0].getId());
+				assertEquals(2, docs[0].getRevision());
+				assertEquals("A2", ((TestDoc) docs[0]).getValue());
+				assertEquals("b", docs[1].getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		verify(store, times(1)).list(any(SlabsList.class));
+	}
+
+	@Test public void collision_should_not_update_cache() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+
+		slabs.put(new TestDoc("a", 0, "stale"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {}
+		});
+
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				TestDoc doc = (TestDoc) Iterables.getOnlyElement(found);
+				assertEquals("A", doc.getValue());
+				assertEquals(1, doc.getRevision());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void putAll_should_update_loaded_cache() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		long version = slabs.getVersion();
+		
+		slabs.putAll(Arrays.asList(new TestDoc("a", 1, "A2"), new TestDoc("b", 0, "B")), new PutAllHelp() {
+			@Override public void ok(Iterable<SlabsDoc> docs) {}
+		});
+		assertTrue(slabs.getVersion() > version);
+		
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc[] docs = Iterables.toArray(found, SlabsDoc.class);
+				assertEquals(2, docs.length);
+				assertEquals("A2", ((TestDoc) docs[0]).getValue());
+				assertEquals("b", docs[1].getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		verify(store, times(1)).list(any(SlabsList.class));
+	}
+	
+	@Test public void get_should_be_served_from_loaded_cache() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		slabs.put(new TestDoc("a", 1, "A2"), putOk);
+
+		slabs.get("a", new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals(2, doc.getRevision());
+				assertEquals("A2", ((TestDoc) doc).getValue());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		verify(store, never()).get(any(String.class), any(SlabsGet.class));
+	}
+
+	@Test public void get_should_read_from_store_if_not_loaded() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.get("a", new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals("A", ((TestDoc) doc).getValue());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		verify(store).get(any(String.class), any(SlabsGet.class));
+	}
+
+	@Test public void delete_should_remove_from_cache() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		long version = slabs.getVersion();
+
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override public void ok(String id, int revision) {}
+		});
+		assertEquals(version + 1, slabs.getVersion());
+
+		slabs.list(new ListHelp() {
+			@Override
+			public void notFound() {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void invalidate_should_reload_from_store() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		slabs.invalidate();
+		slabs.list(listAny);
+		verify(store, times(2)).list(any(SlabsList.class));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test public void list_by_type_should_load_only_that_type() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new OtherDoc("b", 0, 1), putOk);
+		
+		slabs.list(TestDoc.class, listAny);
+		slabs.put(new TestDoc("c", 0, "C"), putOk);
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc[] docs = Iterables.toArray(found, SlabsDoc.class);
+				assertEquals(2, docs.length);
+				assertEquals("a", docs[0].getId());
+				assertEquals("c", docs[1].getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		verify(store, times(1)).scan(any(Class.class), any(SlabsScan.class));
+		verify(store, never()).list(any(SlabsList.class));
+		
+		// not cached, read from the store
+		slabs.get("b", new GetHelp() {
+			@Override public void found(SlabsDoc doc) {}
+		});
+		verify(store).get(any(String.class), any(SlabsGet.class));
+	}
+	
+	@Test public void failed_write_should_read_the_document_again() throws InterruptedException {
+		final boolean[] failing = new boolean[1];
+		GroupCommitSlabs writer = new GroupCommitSlabs(store, new SlabsSync() {
+			@Override
+			public void sync() throws IOException {
+				if (failing[0])
+					throw new IOException("disk full");
+			}
+		}, Durability.GROUP);
+		writer.start();
+		slabs = new CachingSlabs(writer);
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		
+		failing[0] = true;
+		slabs.put(new TestDoc("a", 1, "A2"), new PutHelp() {
+			@Override public void error(String id, SlabsException e) {}
+		});
+		
+		// the store applied the write, only the sync failed
+		slabs.get("a", new GetHelp() {
+			@Override public void found(SlabsDoc doc) {
+				assertEquals(2, doc.getRevision());
+				assertEquals("A2", ((TestDoc) doc).getValue());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		writer.stop();
+	}
+	
+	@Test public void failed_write_and_read_should_change_the_version() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.list(listAny);
+		long version = slabs.getVersion();
+
+		doAnswer(new Answer<Void>() {
+			@Override public Void answer(InvocationOnMock invocation) {
+				((SlabsPut) invocation.getArguments()[1]).callError("a", new SlabsException("disk full"));
+				return null;
+			}
+		}).when(store).put(any(SlabsDoc.class), any(SlabsPut.class));
+		doAnswer(new Answer<Void>() {
+			@Override public Void answer(InvocationOnMock invocation) {
+				((SlabsGet) invocation.getArguments()[1]).callError("a", new SlabsException("disk full"));
+				return null;
+			}
+		}).when(store).get(any(String.class), any(SlabsGet.class));
+
+		// the store may have applied the write: what was encoded is stale
+		slabs.put(new TestDoc("a", 1, "A2"), new PutHelp() {
+			@Override public void error(String id, SlabsException e) {}
+		});
+		assertTrue(slabs.getVersion() > version);
+	}
+
+	private static final SlabsList listAny = new ListHelp() {
+		@Override public void entries(Iterable<SlabsDoc> docs) {}
+	};
+
+	private static final PutHelp putOk = new PutHelp() {
+		@Override public void ok(SlabsDoc doc) {}
+	};
+
+}
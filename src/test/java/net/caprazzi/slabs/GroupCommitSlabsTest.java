@@ -0,0 +1,185 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.GroupCommitSlabs.Durability;
+import net.caprazzi.slabs.SlabsTest.DeleteHelp;
+import net.caprazzi.slabs.SlabsTest.PutHelp;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class GroupCommitSlabsTest {
+
+	private GroupCommitSlabs slabs;
+	private boolean called = false;
+
+	@After public void tearDown() throws InterruptedException {
+		if (slabs != null)
+			slabs.stop();
+	}
+
+	@Test public void put_should_sync_after_each_write() {
+		CountingSync sync = new CountingSync();
+		slabs = start(sync, Durability.WRITE);
+
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		assertEquals(3, sync.count.get());
+	}
+
+	@Test public void put_should_run_callback_before_returning() {
+		slabs = start(new CountingSync(), Durability.GROUP);
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override
+			public void ok(SlabsDoc doc) {
+				assertEquals(1, doc.getRevision());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void collision_should_not_sync() {
+		CountingSync sync = new CountingSync();
+		slabs = start(sync, Durability.WRITE);
+
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("a", 0, "stale"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertEquals(1, sync.count.get());
+	}
+
+	@Test public void concurrent_writes_should_share_a_sync() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountingSync sync = new CountingSync() {
+			@Override
+			public void sync() throws IOException {
+				// hold the first group until all the other writes are queued
+				if (count.get() == 0) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				super.sync();
+			}
+		};
+		slabs = start(sync, Durability.GROUP);
+
+		final AtomicInteger acked = new AtomicInteger();
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 20; i++) {
+			final String id = "doc" + i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					slabs.put(new TestDoc(id, 0, id), new PutHelp() {
+						@Override public void ok(SlabsDoc doc) {
+							acked.incrementAndGet();
+						}
+					});
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+
+		// let the other writes queue behind the first group
+		Thread.sleep(200);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(20, acked.get());
+		assertTrue("synced " + sync.count.get() + " times", sync.count.get() < 5);
+	}
+
+	@Test public void failed_sync_should_report_error() {
+		slabs = start(new SlabsSync() {
+			@Override
+			public void sync() throws IOException {
+				throw new IOException("disk full");
+			}
+		}, Durability.GROUP);
+
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override
+			public void error(String id, SlabsException e) {
+				assertEquals("a", id);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void periodic_should_acknowledge_before_sync() {
+		CountingSync sync = new CountingSync();
+		slabs = start(sync, Durability.PERIODIC);
+
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		assertEquals(0, sync.count.get());
+	}
+
+	@Test public void stop_should_sync_pending_periodic_writes() throws InterruptedException {
+		CountingSync sync = new CountingSync();
+		slabs = start(sync, Durability.PERIODIC);
+
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.stop();
+		assertEquals(1, sync.count.get());
+	}
+
+	@Test public void write_after_stop_should_fail() throws InterruptedException {
+		slabs = start(new CountingSync(), Durability.GROUP);
+		slabs.stop();
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override
+			public void error(String id, SlabsException e) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static GroupCommitSlabs start(SlabsSync sync, Durability durability) {
+		SlabsOnKeez store = new SlabsOnKeez(new KeezInMemory(), new Class[] { TestDoc.class });
+		GroupCommitSlabs slabs = new GroupCommitSlabs(store, sync, durability, 60 * 1000);
+		slabs.start();
+		return slabs;
+	}
+
+	private static class CountingSync implements SlabsSync {
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void sync() throws IOException {
+			count.incrementAndGet();
+		}
+	}
+
+	private static final PutHelp putOk = new PutHelp() {
+		@Override public void ok(SlabsDoc doc) {}
+	};
+
+	private static final DeleteHelp deleteOk = new DeleteHelp() {
+		@Override public void ok(String id, int revision) {}
+	};
+
+}
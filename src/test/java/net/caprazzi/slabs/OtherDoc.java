@@ -0,0 +1,24 @@
+package net.caprazzi.slabs;
+
+@SlabsType("other_doc") class OtherDoc extends SlabsDoc {
+	
+	private int count;
+	
+	public OtherDoc() {
+	
+	}
+	
+	public OtherDoc(String key, int revision, int count) {
+		this.setId(key);
+		this.setRevision(revision);
+		this.count = count;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public void setCount(int count) {
+		this.count = count;
+	}
+}
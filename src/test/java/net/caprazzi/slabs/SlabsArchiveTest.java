@@ -0,0 +1,190 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPage;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsTest.DeleteHelp;
+import net.caprazzi.slabs.SlabsTest.GetHelp;
+import net.caprazzi.slabs.SlabsTest.ListHelp;
+import net.caprazzi.slabs.SlabsTest.PutHelp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+
+public class SlabsArchiveTest {
+
+	private SlabsOnKeez slabs;
+	private boolean called;
+
+	@SuppressWarnings("unchecked")
+	@Before public void setup() {
+		slabs = new SlabsOnKeez(new KeezInMemory(), new KeezInMemory(), new Class[] { ArchivableDoc.class });
+		called = false;
+	}
+
+	@Test public void archived_document_should_leave_lists() {
+		slabs.put(new ArchivableDoc("a", 0, "A", false), putOk);
+		slabs.put(new ArchivableDoc("b", 0, "B", false), putOk);
+		slabs.put(new ArchivableDoc("a", 1, "A", true), putOk);
+
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				assertEquals("b", Iterables.getOnlyElement(found).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+
+		called = false;
+		slabs.list(ArchivableDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				assertEquals("b", Iterables.getOnlyElement(found).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void archived_document_should_be_found_by_id() {
+		slabs.put(new ArchivableDoc("a", 0, "A", false), putOk);
+		slabs.put(new ArchivableDoc("a", 1, "A", true), putOk);
+
+		slabs.get("a", new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals(2, doc.getRevision());
+				assertTrue(((ArchivableDoc) doc).isArchived());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void archived_document_should_keep_its_revision() {
+		slabs.put(new ArchivableDoc("a", 0, "A", true), putOk);
+
+		slabs.put(new ArchivableDoc("a", 0, "stale", false), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals(1, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void restored_document_should_leave_the_archive() {
+		slabs.put(new ArchivableDoc("a", 0, "A", true), putOk);
+		slabs.put(new ArchivableDoc("a", 1, "A", false), putOk);
+
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc doc = Iterables.getOnlyElement(found);
+				assertEquals(2, doc.getRevision());
+				called = true;
+			}
+		});
+		assertTrue(called);
+
+		called = false;
+		slabs.listArchived(null, 10, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				assertTrue(Iterables.isEmpty(records));
+				assertNull(next);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void deleted_document_should_leave_the_archive() {
+		slabs.put(new ArchivableDoc("a", 0, "A", true), putOk);
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override public void ok(String id, int revision) {}
+		});
+
+		slabs.listArchived(null, 10, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				assertTrue(Iterables.isEmpty(records));
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void archive_should_be_paged() throws InterruptedException {
+		for (String id : new String[] { "a", "b", "c" }) {
+			slabs.put(new ArchivableDoc(id, 0, id, true), putOk);
+			Thread.sleep(2);
+		}
+
+		final String[] cursor = new String[1];
+		slabs.listArchived(null, 2, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				SlabsRecord[] found = Iterables.toArray(records, SlabsRecord.class);
+				assertEquals(2, found.length);
+				// most recent first
+				assertEquals("c", found[0].getId());
+				assertEquals("b", found[1].getId());
+				assertEquals(1, found[1].getRevision());
+				assertEquals("b", found[1].getField("value").getTextValue());
+				cursor[0] = next;
+			}
+		});
+
+		slabs.listArchived(cursor[0], 2, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				assertEquals("a", Iterables.getOnlyElement(records).getId());
+				assertNull(next);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void invalid_cursor_should_call_error() {
+		slabs.listArchived("nope", 2, new PageHelp() {
+			@Override
+			public void error(SlabsException ex) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	public static class PageHelp extends SlabsPage {
+
+		@Override
+		public void page(Iterable<SlabsRecord> records, String next) {
+			throw new RuntimeException("Unexpected call to page()");
+		}
+
+		@Override
+		public void error(SlabsException ex) {
+			throw new RuntimeException("Unexpected error", ex);
+		}
+
+		@Override
+		public void applicationError(SlabsException ex) {
+			throw new RuntimeException("Unexpected applicationError()", ex);
+		}
+
+	}
+
+	private static final SlabsPut putOk = new PutHelp() {
+		@Override public void ok(SlabsDoc doc) {}
+	};
+
+}
@@ -0,0 +1,203 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.SlabsChanges.Change;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsTest.DeleteHelp;
+import net.caprazzi.slabs.SlabsTest.PutAllHelp;
+import net.caprazzi.slabs.SlabsTest.PutHelp;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.io.Files;
+
+public class SlabsChangesTest {
+
+	private File dir;
+	private File file;
+	private SlabsChanges changes;
+
+	@Before public void setup() throws IOException {
+		dir = Files.createTempDir();
+		file = new File(dir, "test.changes");
+		changes = new SlabsChanges(file, 5);
+	}
+
+	@After public void tearDown() throws IOException {
+		changes.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test public void since_should_return_later_changes() {
+		assertEquals(1, changes.record("test_doc", "a", 1, false));
+		assertEquals(2, changes.record("test_doc", "b", 1, false));
+		assertEquals(3, changes.record("test_doc", "a", 2, true));
+
+		ArrayList<Change> found = changes.since(1);
+		assertEquals(2, found.size());
+		assertEquals("b", found.get(0).getKey());
+		assertEquals(3, found.get(1).getSeq());
+		assertTrue(found.get(1).isDeleted());
+		assertTrue(changes.since(3).isEmpty());
+	}
+
+	@Test public void since_should_refuse_changes_no_longer_retained() {
+		for (int i = 0; i < 8; i++) {
+			changes.record("test_doc", "doc" + i, 1, false);
+		}
+		assertNull(changes.since(2));
+		assertEquals(5, changes.since(3).size());
+	}
+
+	@Test public void since_should_refuse_unknown_sequence() {
+		changes.record("test_doc", "a", 1, false);
+		assertNull(changes.since(2));
+	}
+
+	@Test public void reopen_should_keep_sequence_and_changes() throws IOException {
+		for (int i = 0; i < 12; i++) {
+			changes.record("test_doc", "doc" + i, 1, false);
+		}
+		changes.close();
+
+		changes = new SlabsChanges(file, 5);
+		assertEquals(12, changes.getSeq());
+		assertEquals(2, changes.since(10).size());
+		assertNull(changes.since(6));
+		assertEquals(13, changes.record("test_doc", "x", 1, false));
+	}
+
+	@Test public void reopen_should_keep_sequence_without_changes() throws IOException {
+		changes.record("test_doc", "a", 1, false);
+		changes.close();
+		changes = new SlabsChanges(file, 0);
+		changes.close();
+
+		changes = new SlabsChanges(file, 5);
+		assertEquals(1, changes.getSeq());
+	}
+
+	@Test public void reopen_after_crash_should_drop_changes() throws IOException {
+		changes.record("test_doc", "a", 1, false);
+		changes.record("test_doc", "b", 1, false);
+
+		// as if the process died: no closing marker
+		SlabsChanges reopened = new SlabsChanges(file, 5);
+		assertTrue(reopened.getSeq() > 2);
+		assertNull(reopened.since(2));
+		assertTrue(reopened.since(reopened.getSeq()).isEmpty());
+		reopened.close();
+	}
+
+	@Test public void push_seq_should_stop_before_held_changes() {
+		long held = changes.hold("test_doc", "a", 1, false);
+		changes.record("test_doc", "b", 1, false);
+		changes.hold("test_doc", "c", 1, false);
+
+		assertEquals(1, changes.getPushSeq("a", 1));
+		assertEquals(0, changes.getPushSeq("b", 1));
+		assertEquals(0, changes.getPushSeq("c", 1));
+		assertEquals(-1, changes.getPushSeq("d", 1));
+
+		changes.release(held);
+		assertEquals(2, changes.getPushSeq("b", 1));
+		assertEquals(3, changes.getPushSeq("c", 1));
+		assertEquals(3, changes.getPushSeq(Arrays.asList(new TestDoc("b", 1, "B"), new TestDoc("c", 1, "C"))));
+	}
+
+	@Test public void skip_should_drop_changes_also_after_reopen() throws IOException {
+		changes.record("test_doc", "a", 1, false);
+		changes.skip();
+		assertEquals(2, changes.getSeq());
+		assertNull(changes.since(1));
+		assertTrue(changes.since(2).isEmpty());
+
+		changes.close();
+		changes = new SlabsChanges(file, 5);
+		assertEquals(2, changes.getSeq());
+		assertNull(changes.since(1));
+	}
+
+	@Test public void tracking_should_skip_failed_writes() {
+		Slabs db = mock(Slabs.class);
+		doAnswer(new Answer<Void>() {
+			@Override public Void answer(InvocationOnMock invocation) {
+				((SlabsPut) invocation.getArguments()[1]).callError("a", new SlabsException("disk full"));
+				return null;
+			}
+		}).when(db).put(any(SlabsDoc.class), any(SlabsPut.class));
+
+		changes.record("test_doc", "a", 1, false);
+		ChangeTrackingSlabs slabs = new ChangeTrackingSlabs(db, changes);
+		slabs.put(new TestDoc("a", 1, "A"), new PutHelp() {
+			@Override public void error(String id, SlabsException e) {}
+		});
+
+		// the store may have applied the write: clients read it all again
+		assertEquals(2, changes.getSeq());
+		assertNull(changes.since(1));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test public void tracking_should_hold_changes_until_callback_returns() {
+		ChangeTrackingSlabs slabs = new ChangeTrackingSlabs(
+				new SlabsOnKeez(new KeezInMemory(), new Class[] { TestDoc.class }), changes);
+
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override public void ok(SlabsDoc doc) {
+				// another writer, while this change is being pushed
+				changes.record("test_doc", "b", 1, false);
+				assertEquals(0, changes.getPushSeq("b", 1));
+			}
+		});
+		assertEquals(2, changes.getPushSeq("b", 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test public void tracking_should_record_writes() {
+		ChangeTrackingSlabs slabs = new ChangeTrackingSlabs(
+				new SlabsOnKeez(new KeezInMemory(), new Class[] { TestDoc.class }), changes);
+
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override public void ok(SlabsDoc doc) {
+				// recorded before the callback
+				assertEquals(1, changes.getSeq());
+			}
+		});
+		slabs.put(new TestDoc("a", 0, "stale"), new PutHelp() {
+			@Override public void collision(String id, int yourRev, int foundRev) {}
+		});
+		slabs.putAll(Arrays.asList(new TestDoc("b", 0, "B"), new TestDoc("c", 0, "C")), new PutAllHelp() {
+			@Override public void ok(Iterable<SlabsDoc> docs) {}
+		});
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override public void ok(String id, int revision) {}
+		});
+
+		ArrayList<Change> found = changes.since(0);
+		assertEquals(4, found.size());
+		Change deleted = found.get(3);
+		assertEquals("a", deleted.getKey());
+		assertEquals("test_doc", deleted.getTypeName());
+		assertEquals(2, deleted.getRevision());
+		assertTrue(deleted.isDeleted());
+	}
+
+}
@@ -0,0 +1,106 @@
+package net.caprazzi.slabs;
+
+import java.util.Date;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import com.google.common.base.Function;
+
+/**
+ * Compares the codec with the tree based encoding it replaced.
+ * Not a unit test, run it by hand:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=net.caprazzi.slabs.SlabsCodecBenchmark
+ */
+public class SlabsCodecBenchmark {
+
+	private static final int DOCS = 2000;
+	private static final int ROUNDS = 20;
+
+	private static final Function<String, Class<? extends SlabsDoc>> types = new Function<String, Class<? extends SlabsDoc>>() {
+		@Override
+		public Class<? extends SlabsDoc> apply(String name) {
+			return TestDoc.class;
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		final TestDoc[] docs = new TestDoc[DOCS];
+		final byte[][] data = new byte[DOCS][];
+		for (int i = 0; i < DOCS; i++) {
+			docs[i] = new TestDoc("doc" + i, i, "a value of some length for document " + i);
+			data[i] = SlabsCodec.encode(docs[i], new Date().getTime());
+		}
+
+		// warm up both paths
+		for (int r = 0; r < ROUNDS; r++) {
+			oldEncode(docs);
+			newEncode(docs);
+			oldDecode(data);
+			newDecode(data);
+		}
+
+		report("encode, tree per document", time(new Runnable() { public void run() { oldEncode(docs); } }));
+		report("encode, SlabsCodec", time(new Runnable() { public void run() { newEncode(docs); } }));
+		report("decode, tree per document", time(new Runnable() { public void run() { oldDecode(data); } }));
+		report("decode, SlabsCodec", time(new Runnable() { public void run() { newDecode(data); } }));
+	}
+
+	private static long time(Runnable run) {
+		long start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++)
+			run.run();
+		return (System.nanoTime() - start) / ROUNDS;
+	}
+
+	private static void report(String what, long nanosPerRound) {
+		System.out.printf("%-30s %8.1f us/doc%n", what, nanosPerRound / 1000.0 / DOCS);
+	}
+
+	// what SlabsOnKeez did before the codec
+	private static void oldEncode(TestDoc[] docs) {
+		try {
+			for (TestDoc doc : docs) {
+				ObjectMapper mapper = new ObjectMapper();
+				ObjectNode root = mapper.createObjectNode();
+				root.put("name", doc.getTypeName());
+				ObjectNode obj = mapper.valueToTree(doc);
+				obj.remove("id");
+				obj.remove("revision");
+				root.put("obj", obj);
+				root.put("_last_update", new Date().getTime());
+				mapper.writeValueAsBytes(root);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void newEncode(TestDoc[] docs) {
+		for (TestDoc doc : docs)
+			SlabsCodec.encode(doc, new Date().getTime());
+	}
+
+	private static void oldDecode(byte[][] data) {
+		try {
+			for (int i = 0; i < data.length; i++) {
+				ObjectMapper mapper = new ObjectMapper();
+				JsonNode root = mapper.readValue(data[i], JsonNode.class);
+				String name = root.get("name").getTextValue();
+				SlabsDoc doc = mapper.readValue(root.get("obj"), types.apply(name));
+				doc.setId("doc" + i);
+				doc.setRevision(i);
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void newDecode(byte[][] data) {
+		for (int i = 0; i < data.length; i++)
+			SlabsCodec.decode("doc" + i, i, data[i], types);
+	}
+
+}
@@ -0,0 +1,102 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+public class SlabsCodecTest {
+
+	private static final Function<String, Class<? extends SlabsDoc>> types = new Function<String, Class<? extends SlabsDoc>>() {
+		@Override
+		public Class<? extends SlabsDoc> apply(String name) {
+			return "test_doc".equals(name) ? TestDoc.class : null;
+		}
+	};
+
+	@Test public void encode_should_leave_out_id_and_revision() throws Exception {
+		byte[] data = SlabsCodec.encode(new TestDoc("a", 3, "A"), 1234L);
+		JsonNode root = SlabsCodec.getMapper().readValue(data, JsonNode.class);
+		assertEquals("test_doc", root.get("name").getTextValue());
+		assertEquals("A", root.get("obj").get("value").getTextValue());
+		assertFalse(root.get("obj").has("id"));
+		assertFalse(root.get("obj").has("revision"));
+		assertEquals(1234L, root.get("_last_update").getLongValue());
+	}
+
+	@Test public void decode_should_read_encoded_document() {
+		byte[] data = SlabsCodec.encode(new TestDoc("a", 3, "A"), 1234L);
+		TestDoc doc = (TestDoc) SlabsCodec.decode("a", 4, data, types);
+		assertEquals("a", doc.getId());
+		assertEquals(4, doc.getRevision());
+		assertEquals("A", doc.getValue());
+	}
+
+	@Test public void decode_should_accept_obj_before_name() {
+		byte[] data = "{\"obj\":{\"value\":\"A\"},\"_last_update\":1,\"name\":\"test_doc\"}".getBytes();
+		TestDoc doc = (TestDoc) SlabsCodec.decode("a", 1, data, types);
+		assertEquals("A", doc.getValue());
+	}
+
+	@Test public void decode_should_return_null_without_obj() {
+		byte[] data = "{\"name\":\"_deleted\",\"_last_update\":1}".getBytes();
+		assertNull(SlabsCodec.decode("a", 1, data, types));
+	}
+
+	@Test public void decode_should_fail_on_unknown_type() {
+		byte[] data = "{\"name\":\"nope\",\"obj\":{}}".getBytes();
+		try {
+			SlabsCodec.decode("doc-7", 1, data, types);
+			fail();
+		}
+		catch (SlabsException e) {
+			assertEquals("Exception while decoding doc-7", e.getMessage());
+			assertEquals(IOException.class, e.getCause().getClass());
+			assertEquals("Unknown document type nope", e.getCause().getMessage());
+		}
+	}
+
+	@Test public void should_read_envelope_fields() {
+		byte[] data = SlabsCodec.encode(new TestDoc("a", 1, "A"), 1234L);
+		assertEquals("test_doc", SlabsCodec.readTypeName(data));
+		assertEquals(1234L, SlabsCodec.readLastUpdate(data));
+	}
+
+	@Test public void project_should_read_only_requested_fields() {
+		byte[] data = "{\"name\":\"test_doc\",\"obj\":{\"value\":\"A\",\"other\":[1,2],\"flag\":true}}".getBytes();
+		Map<String, JsonNode> found = SlabsCodec.project(data, new HashSet<String>(Arrays.asList("flag", "missing")));
+		assertEquals(1, found.size());
+		assertTrue(found.get("flag").getBooleanValue());
+	}
+
+	@Test public void writeRecord_should_copy_document_with_id_and_revision() throws Exception {
+		byte[] data = "{\"name\":\"test_doc\",\"obj\":{\"value\":\"A\",\"pos\":0.1234567890123456789012345},\"_last_update\":1}".getBytes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonGenerator gen = SlabsCodec.createGenerator(out);
+		SlabsCodec.writeRecord(gen, "a", 3, data);
+		gen.close();
+
+		String json = new String(out.toByteArray(), "UTF-8");
+		assertEquals("{\"id\":\"a\",\"revision\":3,\"value\":\"A\",\"pos\":0.1234567890123456789012345}", json);
+	}
+
+	@Test public void write_should_include_id_and_revision() throws Exception {
+		JsonNode root = SlabsCodec.getMapper().readValue(SlabsCodec.write(new TestDoc("a", 2, "A")), JsonNode.class);
+		assertEquals("a", root.get("id").getTextValue());
+		assertEquals(2, root.get("revision").getIntValue());
+	}
+
+}
@@ -0,0 +1,473 @@
+package net.caprazzi.slabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.KeezException;
+import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.SlabsArchiveTest.PageHelp;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsTest.DeleteHelp;
+import net.caprazzi.slabs.SlabsTest.GetHelp;
+import net.caprazzi.slabs.SlabsTest.ListHelp;
+import net.caprazzi.slabs.SlabsTest.PutAllHelp;
+import net.caprazzi.slabs.SlabsTest.PutHelp;
+import net.caprazzi.slabs.SlabsTest.ScanHelp;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+
+public class SlabsOnLogTest {
+
+	private File dir;
+	private SlabsOnLog slabs;
+	private boolean called = false;
+
+	@Before public void setup() throws IOException {
+		dir = Files.createTempDir();
+		slabs = open();
+	}
+
+	@After public void tearDown() throws IOException {
+		slabs.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test public void list_should_call_notFound_if_db_empty() {
+		slabs.list(new ListHelp() {
+			@Override
+			public void notFound() {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void put_should_store_new_revision() {
+		slabs.put(new TestDoc("a", 0, "A"), new PutHelp() {
+			@Override
+			public void ok(SlabsDoc doc) {
+				assertEquals(1, doc.getRevision());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertValue("a", 1, "A");
+	}
+
+	@Test public void put_should_call_collision_on_stale_revision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("a", 1, "A2"), putOk);
+		slabs.put(new TestDoc("a", 1, "stale"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals(1, yourRev);
+				assertEquals(2, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void delete_should_leave_a_tombstone() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.delete("a", 1, deleteOk);
+
+		slabs.get("a", new GetHelp() {
+			@Override public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+
+		called = false;
+		slabs.put(new TestDoc("a", 1, "late"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals(2, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void delete_should_call_notFound() {
+		slabs.delete("nope", 1, new DeleteHelp() {
+			@Override public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void reopened_store_should_find_all_documents() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new OtherDoc("b", 0, 1), putOk);
+		slabs.put(new TestDoc("a", 1, "A2"), putOk);
+		slabs.put(new TestDoc("c", 0, "C"), putOk);
+		slabs.delete("c", 1, deleteOk);
+
+		reopen();
+		assertValue("a", 2, "A2");
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> docs) {
+				assertEquals("a", Iterables.getOnlyElement(docs).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void segments_should_roll_over() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			slabs.put(new TestDoc("doc" + i, 0, "value of doc " + i), putOk);
+		}
+		assertTrue(segments().length > 1);
+
+		reopen();
+		for (int i = 0; i < 20; i++) {
+			assertValue("doc" + i, 1, "value of doc " + i);
+		}
+	}
+
+	@Test public void torn_tail_should_be_cut() throws IOException {
+		reopen(1024 * 1024);
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.close();
+
+		// cut the last record in half, as a crash during the write would
+		File last = segments()[segments().length - 1];
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		slabs = open();
+		assertValue("a", 1, "A");
+		slabs.get("b", new GetHelp() {
+			@Override public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+		slabs.put(new TestDoc("b", 0, "B again"), putOk);
+		assertValue("b", 1, "B again");
+	}
+
+	@Test public void torn_batch_should_be_left_out() throws IOException {
+		reopen(1024 * 1024);
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.putAll(Arrays.asList(new TestDoc("a", 1, "A2"), new TestDoc("b", 0, "B")), putAllOk);
+		slabs.close();
+
+		// the first record of the batch is whole, the second is not
+		File last = segments()[segments().length - 1];
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		slabs = open();
+		assertValue("a", 1, "A");
+	}
+
+	@Test public void putAll_should_write_nothing_on_collision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.putAll(Arrays.asList(new TestDoc("b", 0, "B"), new TestDoc("a", 0, "stale")), new PutAllHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals("a", id);
+				called = true;
+			}
+		});
+		assertTrue(called);
+		slabs.get("b", new GetHelp() {
+			@Override public void notFound(String id) {}
+		});
+	}
+
+	@Test public void compact_should_remove_tombstones() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, deleteOk);
+
+		assertEquals(1, slabs.compact(-1));
+		// the merged segment and a new active one
+		assertEquals(2, segments().length);
+
+		// the key can be created again
+		slabs.put(new TestDoc("a", 0, "new A"), putOk);
+		reopen();
+		assertValue("a", 1, "new A");
+		assertValue("b", 1, "B");
+	}
+
+	@Test public void compact_should_keep_recent_tombstones() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		assertEquals(0, slabs.compact(60 * 1000));
+	}
+
+	@Test public void leftover_segments_of_a_rewrite_should_be_removed() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			slabs.put(new TestDoc("doc" + i, 0, "value of doc " + i), putOk);
+		}
+		File[] before = segments();
+		byte[][] contents = new byte[before.length][];
+		for (int i = 0; i < before.length; i++) {
+			contents[i] = FileUtils.readFileToByteArray(before[i]);
+		}
+
+		slabs.delete("doc0", 1, deleteOk);
+		slabs.compact(-1);
+		slabs.close();
+
+		// as if the old segments were still there after a crash
+		for (int i = 0; i < before.length - 1; i++) {
+			FileUtils.writeByteArrayToFile(before[i], contents[i]);
+		}
+
+		slabs = open();
+		slabs.get("doc0", new GetHelp() {
+			@Override public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertValue("doc1", 1, "value of doc 1");
+	}
+
+	@Test public void reopen_should_read_index_from_snapshot() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new ArchivableDoc("b", 0, "B", true), putOk);
+		slabs.put(new TestDoc("c", 0, "C"), putOk);
+		slabs.delete("c", 1, deleteOk);
+		assertTrue(slabs.snapshot());
+		// nothing changed since
+		assertFalse(slabs.snapshot());
+
+		reopen();
+		assertTrue(snapshotFile().isFile());
+		assertValue("a", 1, "A");
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> docs) {
+				assertEquals("a", Iterables.getOnlyElement(docs).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+
+		called = false;
+		slabs.listArchived(null, 10, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				assertEquals("b", Iterables.getOnlyElement(records).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@Test public void reopen_should_replay_records_after_snapshot() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.snapshot();
+		for (int i = 0; i < 20; i++) {
+			slabs.put(new TestDoc("doc" + i, 0, "value of doc " + i), putOk);
+		}
+		slabs.put(new TestDoc("a", 1, "A2"), putOk);
+
+		// keep the snapshot taken before the writes
+		File snapshot = snapshotFile();
+		byte[] saved = FileUtils.readFileToByteArray(snapshot);
+		slabs.close();
+		FileUtils.writeByteArrayToFile(snapshot, saved);
+
+		slabs = open();
+		assertValue("a", 2, "A2");
+		assertValue("doc19", 1, "value of doc 19");
+	}
+
+	@Test public void damaged_snapshot_should_fall_back_to_full_read() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.close();
+
+		File snapshot = snapshotFile();
+		byte[] bytes = FileUtils.readFileToByteArray(snapshot);
+		bytes[bytes.length / 2] ^= 0xff;
+		FileUtils.writeByteArrayToFile(snapshot, bytes);
+
+		slabs = open();
+		assertValue("a", 1, "A");
+		assertValue("b", 1, "B");
+	}
+
+	@Test public void snapshot_should_follow_rewrite() throws IOException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.snapshot();
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		slabs.compact(-1);
+
+		reopen();
+		slabs.get("a", new GetHelp() {
+			@Override public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertValue("b", 1, "B");
+	}
+
+	@Test public void archived_documents_should_leave_lists() throws IOException {
+		slabs.put(new ArchivableDoc("a", 0, "A", false), putOk);
+		slabs.put(new ArchivableDoc("b", 0, "B", true), putOk);
+
+		reopen();
+		slabs.scan(ArchivableDoc.class, new ScanHelp("value") {
+			@Override
+			public void records(Iterable<SlabsRecord> records) {
+				assertEquals("a", Iterables.getOnlyElement(records).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+
+		called = false;
+		slabs.listArchived(null, 10, new PageHelp() {
+			@Override
+			public void page(Iterable<SlabsRecord> records, String next) {
+				SlabsRecord record = Iterables.getOnlyElement(records);
+				assertEquals("b", record.getId());
+				assertEquals(1, record.getRevision());
+				assertNull(next);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test public void import_should_copy_keez_store() throws IOException {
+		KeezInMemory keez = new KeezInMemory();
+		SlabsOnKeez source = new SlabsOnKeez(keez, new Class[] { TestDoc.class, OtherDoc.class });
+		source.put(new TestDoc("a", 0, "A"), putOk);
+		source.put(new TestDoc("a", 1, "A2"), putOk);
+		source.put(new TestDoc("b", 0, "B"), putOk);
+		source.delete("b", 1, deleteOk);
+		keezPut(keez, "c", "{\"name\":\"other_doc\",\"obj\":{\"count\":3}}");
+
+		assertEquals(3, slabs.importFrom(keez, null));
+		// once only
+		assertEquals(0, slabs.importFrom(keez, null));
+
+		assertValue("a", 2, "A2");
+		slabs.put(new TestDoc("b", 0, "B"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+
+	private void assertValue(String id, final int revision, final String value) {
+		final boolean[] found = new boolean[1];
+		slabs.get(id, new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals(revision, doc.getRevision());
+				assertEquals(value, ((TestDoc) doc).getValue());
+				found[0] = true;
+			}
+		});
+		assertTrue(found[0]);
+	}
+
+	private File[] segments() {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".log");
+			}
+		});
+		Arrays.sort(files, new java.util.Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return number(a) < number(b) ? -1 : number(a) == number(b) ? 0 : 1;
+			}
+
+			private long number(File file) {
+				String name = file.getName();
+				return Long.parseLong(name.substring(name.indexOf('-') + 1, name.length() - 4));
+			}
+		});
+		return files;
+	}
+
+	private File snapshotFile() {
+		return new File(dir, "test.snapshot");
+	}
+
+	private void reopen() throws IOException {
+		reopen(256);
+	}
+
+	private void reopen(long segmentSize) throws IOException {
+		slabs.close();
+		slabs = open(segmentSize);
+	}
+
+	private SlabsOnLog open() throws IOException {
+		return open(256);
+	}
+
+	// small segments, to roll over after a few documents
+	@SuppressWarnings("unchecked")
+	private SlabsOnLog open(long segmentSize) throws IOException {
+		return new SlabsOnLog(dir, "test", segmentSize, new Class[] { TestDoc.class, OtherDoc.class, ArchivableDoc.class });
+	}
+
+	private static void keezPut(KeezInMemory db, String key, String json) {
+		db.put(key, 0, json.getBytes(), new Put() {
+			@Override public void ok(String key, int rev) {}
+
+			@Override public void collision(String key, int yourRev, int foundRev) {
+				throw new RuntimeException("Unexpected collision " + key);
+			}
+
+			@Override public void error(String key, KeezException e) {
+				throw new RuntimeException("Unexpected error " + key, e);
+			}
+		});
+	}
+
+	private static final SlabsPut putOk = new PutHelp() {
+		@Override public void ok(SlabsDoc doc) {}
+	};
+
+	private static final PutAllHelp putAllOk = new PutAllHelp() {
+		@Override public void ok(Iterable<SlabsDoc> docs) {}
+	};
+
+	private static final SlabsDelete deleteOk = new DeleteHelp() {
+		@Override public void ok(String id, int revision) {}
+	};
+
+}
@@ -1,8 +1,17 @@
 package net.caprazzi.slabs;
 
+import java.io.IOException;
+import java.util.Arrays;
+
+import net.caprazzi.keez.Keez.Put;
+import net.caprazzi.keez.KeezException;
 import net.caprazzi.keez.inmemory.KeezInMemory;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsDelete;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsGet;
 import net.caprazzi.slabs.SlabsOnKeez.SlabsList;
 import net.caprazzi.slabs.SlabsOnKeez.SlabsPut;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsPutAll;
+import net.caprazzi.slabs.SlabsOnKeez.SlabsScan;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -14,13 +23,13 @@ import static org.junit.Assert.*;
 public class SlabsTest {
 
 	private KeezInMemory db;
-	private Slabs slabs;
+	private SlabsOnKeez slabs;
 	private boolean called = false;
 
 	@SuppressWarnings("unchecked")
 	@Before public void setup() {
 		db = new KeezInMemory();
-		slabs = new SlabsOnKeez(db, new Class[] { TestDoc.class });
+		slabs = new SlabsOnKeez(db, new Class[] { TestDoc.class, OtherDoc.class });
 		called = false;
 	}
 	
@@ -82,6 +91,386 @@ public class SlabsTest {
 		});
 	}
 	
+	@Test public void get_should_call_found() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.get("b", new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals("b", doc.getId());
+				assertEquals(1, doc.getRevision());
+				assertEquals("B", ((TestDoc)doc).getValue());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void get_should_call_notFound() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.get("b", new GetHelp() {
+			@Override
+			public void notFound(String id) {
+				assertEquals("b", id);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void delete_should_call_ok_and_hide_document() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override
+			public void ok(String id, int revision) {
+				assertEquals("a", id);
+				assertEquals(2, revision);
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		slabs.get("a", new GetHelp() {
+			@Override public void notFound(String id) {}
+		});
+		
+		slabs.list(new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc[] docs = Iterables.toArray(found, SlabsDoc.class);
+				assertEquals(1, docs.length);
+				assertEquals("b", docs[0].getId());
+			}
+		});
+	}
+	
+	@Test public void delete_should_call_collision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("a", 1, "A"), putOk);
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals(1, yourRev);
+				assertEquals(2, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void delete_should_call_notFound() {
+		slabs.delete("a", 1, new DeleteHelp() {
+			@Override
+			public void notFound(String id) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void put_on_deleted_revision_should_call_collision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		slabs.put(new TestDoc("a", 1, "late"), new PutHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals(2, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void compact_should_remove_tombstones() throws InterruptedException {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		
+		Thread.sleep(5);
+		assertEquals(1, slabs.compact(0));
+		assertEquals(0, slabs.compact(0));
+		
+		// the id can be used again from scratch
+		slabs.put(new TestDoc("a", 0, "new A"), putOk);
+	}
+	
+	@Test public void compact_should_keep_recent_tombstones() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		assertEquals(0, slabs.compact(60 * 1000));
+	}
+	
+	@Test public void list_by_type_should_return_only_that_type() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new OtherDoc("b", 0, 1), putOk);
+		slabs.put(new TestDoc("c", 0, "C"), putOk);
+		
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				SlabsDoc[] docs = Iterables.toArray(found, SlabsDoc.class);
+				assertEquals(2, docs.length);
+				assertEquals("a", docs[0].getId());
+				assertEquals("c", docs[1].getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void list_by_type_should_not_decode_other_types() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		// would fail to decode
+		putRaw("b", "{\"name\":\"other_doc\",\"obj\":{\"count\":\"not a number\"}}");
+		
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				assertEquals("a", Iterables.getOnlyElement(found).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void list_by_type_should_follow_writes() {
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override public void notFound() {}
+		});
+		
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("a", 1, deleteOk);
+		
+		slabs.list(TestDoc.class, new ListHelp() {
+			@Override
+			public void entries(Iterable<SlabsDoc> found) {
+				assertEquals("b", Iterables.getOnlyElement(found).getId());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		slabs.list(OtherDoc.class, new ListHelp() {
+			@Override public void notFound() {}
+		});
+	}
+	
+	@Test public void scan_should_read_requested_fields_without_decoding() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		putRaw("b", "{\"name\":\"test_doc\",\"obj\":{\"value\":\"B\",\"unknown\":1}}");
+		
+		slabs.scan(TestDoc.class, new ScanHelp("value") {
+			@Override
+			public void records(Iterable<SlabsRecord> found) {
+				SlabsRecord[] records = Iterables.toArray(found, SlabsRecord.class);
+				assertEquals(2, records.length);
+				assertEquals("A", records[0].getField("value").getTextValue());
+				assertEquals(1, records[0].getRevision());
+				assertEquals("B", records[1].getField("value").getTextValue());
+				assertNull(records[1].getField("missing"));
+				
+				// b can't be decoded, but the scan doesn't need to
+				assertEquals("A", ((TestDoc) records[0].getDoc()).getValue());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void list_should_fail_on_unknown_type() {
+		putRaw("broken", "{\"name\":\"nobody\",\"obj\":{}}");
+		slabs.list(new ListHelp() {
+			@Override
+			public void error(SlabsException ex) {
+				assertEquals("Exception while decoding broken", ex.getMessage());
+				assertEquals(IOException.class, ex.getCause().getClass());
+				assertEquals("Unknown document type nobody", ex.getCause().getMessage());
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void putAll_should_write_all_documents() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.putAll(Arrays.asList(new TestDoc("a", 1, "A2"), new OtherDoc("b", 0, 1)), new PutAllHelp() {
+			@Override
+			public void ok(Iterable<SlabsDoc> docs) {
+				SlabsDoc[] written = Iterables.toArray(docs, SlabsDoc.class);
+				assertEquals(2, written.length);
+				assertEquals(2, written[0].getRevision());
+				assertEquals(1, written[1].getRevision());
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertValue("a", 2, "A2");
+	}
+	
+	@Test public void putAll_should_write_nothing_on_collision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.putAll(Arrays.asList(new TestDoc("b", 0, "B"), new TestDoc("a", 0, "stale")), new PutAllHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals("a", id);
+				assertEquals(1, foundRev);
+				called = true;
+			}
+		});
+		assertTrue(called);
+		assertValue("a", 1, "A");
+		slabs.get("b", new GetHelp() {
+			@Override public void notFound(String id) {}
+		});
+	}
+	
+	@Test public void putAll_should_refuse_the_same_document_twice() {
+		slabs.putAll(Arrays.asList(new TestDoc("a", 0, "A"), new TestDoc("a", 0, "A")), new PutAllHelp() {
+			@Override
+			public void error(SlabsException e) {
+				called = true;
+			}
+		});
+		assertTrue(called);
+	}
+	
+	@Test public void putAll_should_roll_back_on_late_collision() {
+		slabs.put(new TestDoc("a", 0, "A"), putOk);
+		slabs.put(new TestDoc("b", 0, "B"), putOk);
+		slabs.delete("b", 1, deleteOk);
+		
+		// b is deleted: it passes the revision check but the tombstone refuses the write
+		slabs.putAll(Arrays.asList(new TestDoc("a", 1, "A2"), new TestDoc("b", 0, "B2")), new PutAllHelp() {
+			@Override
+			public void collision(String id, int yourRev, int foundRev) {
+				assertEquals("b", id);
+				called = true;
+			}
+		});
+		assertTrue(called);
+		
+		slabs.get("a", new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals("A", ((TestDoc) doc).getValue());
+			}
+		});
+	}
+	
+	private void assertValue(String id, final int revision, final String value) {
+		slabs.get(id, new GetHelp() {
+			@Override
+			public void found(SlabsDoc doc) {
+				assertEquals(revision, doc.getRevision());
+				assertEquals(value, ((TestDoc) doc).getValue());
+			}
+		});
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void should_refuse_types_with_the_same_name() {
+		new SlabsTypes(TestDoc.class, SameNameDoc.class);
+	}
+	
+	@SlabsType("test_doc") static class SameNameDoc extends SlabsDoc {}
+	
+	private void putRaw(String key, String json) {
+		db.put(key, 0, json.getBytes(), new Put() {
+			@Override public void ok(String key, int rev) {}
+			
+			@Override public void collision(String key, int yourRev, int foundRev) {
+				throw new RuntimeException("Unexpected collision " + key);
+			}
+			
+			@Override public void error(String key, KeezException e) {
+				throw new RuntimeException("Unexpected error " + key, e);
+			}
+		});
+	}
+	
+	public static class ScanHelp extends SlabsScan {
+		
+		public ScanHelp(String... fields) {
+			super(fields);
+		}
+		
+		@Override
+		public void records(Iterable<SlabsRecord> records) {
+			throw new RuntimeException("Unexpected call to records()");
+		}
+		
+		@Override
+		public void error(SlabsException ex) {
+			throw new RuntimeException("Unexpected error", ex);
+		}
+		
+		@Override
+		public void notFound() {
+			throw new RuntimeException("Unexpected notFound()");
+		}
+		
+		@Override
+		public void applicationError(SlabsException ex) {
+			throw new RuntimeException("Unexpected applicationError()", ex);
+		}
+		
+	}
+	
+	public static class DeleteHelp extends SlabsDelete {
+		
+		@Override
+		public void ok(String id, int revision) {
+			throw new RuntimeException("Unexpected ok " + id);
+		}
+		
+		@Override
+		public void collision(String id, int yourRev, int foundRev) {
+			throw new RuntimeException("Unexpected collision " + yourRev + " " + foundRev);
+		}
+		
+		@Override
+		public void notFound(String id) {
+			throw new RuntimeException("Unexpected notFound " + id);
+		}
+		
+		@Override
+		public void error(String id, SlabsException e) {
+			throw new RuntimeException("Unexpected error " + id, e);
+		}
+		
+		@Override
+		public void applicationError(SlabsException ex) {
+			throw new RuntimeException("Unexpected applicationError()", ex);
+		}
+		
+	}
+	
+	public static class GetHelp extends SlabsGet {
+		
+		@Override
+		public void found(SlabsDoc doc) {
+			throw new RuntimeException("Unexpected found " + doc);
+		}
+		
+		@Override
+		public void notFound(String id) {
+			throw new RuntimeException("Unexpected notFound " + id);
+		}
+		
+		@Override
+		public void error(String id, SlabsException e) {
+			throw new RuntimeException("Unexpected error " + id, e);
+		}
+		
+		@Override
+		public void applicationError(SlabsException ex) {
+			throw new RuntimeException("Unexpected applicationError()", ex);
+		}
+		
+	}
+	
 	public static class PutHelp extends SlabsPut {
 		
 		@Override
@@ -106,6 +495,30 @@ public class SlabsTest {
 		
 	}
 	
+	public static class PutAllHelp extends SlabsPutAll {
+		
+		@Override
+		public void ok(Iterable<SlabsDoc> docs) {
+			throw new RuntimeException("Unexpected ok " + docs);
+		}
+		
+		@Override
+		public void collision(String id, int yourRev, int foundRev) {
+			throw new RuntimeException("Unexpected collision " + id + " " + yourRev + " " + foundRev);
+		}
+		
+		@Override
+		public void error(SlabsException e) {
+			throw new RuntimeException("Unexpected error", e);
+		}
+		
+		@Override
+		public void applicationError(SlabsException ex) {
+			throw new RuntimeException("Unexpected applicationError()", ex);
+		}
+		
+	}
+	
 	public static class ListHelp extends SlabsList {
 
 		@Override
@@ -134,4 +547,8 @@ public class SlabsTest {
 		@Override public void ok(SlabsDoc doc) {};
 	};
 	
+	private static final SlabsDelete deleteOk = new DeleteHelp() {
+		@Override public void ok(String id, int revision) {};
+	};
+	
 }